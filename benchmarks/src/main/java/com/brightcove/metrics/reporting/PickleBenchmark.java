@@ -0,0 +1,87 @@
+package com.brightcove.metrics.reporting;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes one batch of data points, which is what the reporter does for every
+ * batch. The batch mixes int and float values the way a registry of meters and timers
+ * does, and repeats some values so memoization has something to find. The size of the
+ * encoded frame is reported next to the throughput, since memoization trades one for
+ * the other.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PickleBenchmark {
+
+    @Param({"100", "500", "1000"})
+    public int batchSize;
+
+    @Param({"PROTOCOL_0", "PROTOCOL_2"})
+    public PickleProtocol protocol;
+
+    @Param({"FIXED_TWO_DECIMALS", "SHORTEST_ROUND_TRIP"})
+    public FloatFormat floatFormat;
+
+    @Param({"false", "true"})
+    public boolean memoize;
+
+    private PickleEncoder encoder;
+    private List<MetricTuple> batch;
+    private final PickleBuffer pickled = new PickleBuffer(4096);
+
+    @Setup
+    public void setUp() {
+        encoder = protocol.newEncoder(floatFormat, memoize);
+        Random random = new Random(42);
+        long timestamp = System.currentTimeMillis() / 1000;
+        batch = new ArrayList<MetricTuple>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            byte[] name = encoder.encodeName("benchmark.com.example.service" + (i % 50) + ".Type.metric" + i + ".mean");
+            if (i % 4 == 0) {
+                batch.add(MetricTuple.ofInt(name, timestamp, random.nextInt(1000)));
+            } else if (i % 4 == 1) {
+                batch.add(MetricTuple.ofFloat(name, timestamp, 0.0));
+            } else {
+                batch.add(MetricTuple.ofFloat(name, timestamp, random.nextDouble() * 1000));
+            }
+        }
+    }
+
+    /**
+     * Reported as the {@code bytesPerFrame} secondary result.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class FrameSize {
+        public long bytesPerFrame;
+    }
+
+    @Benchmark
+    public PickleBuffer pickleMetrics(FrameSize frameSize) {
+        pickled.clear();
+        encoder.encode(batch, pickled);
+        // every frame of the batch is the same size
+        frameSize.bytesPerFrame = pickled.length();
+        return pickled;
+    }
+}
@@ -0,0 +1,94 @@
+package com.brightcove.metrics.reporting;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports synthetic registries to a socket that discards everything.
+ *
+ * {@code addMetrics} feeds every metric through the reporter's processors, which
+ * builds and writes the batches just as a cycle does, without the registry traversal
+ * and VM metrics. {@code run} is a whole reporting cycle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReporterBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int size;
+
+    @Param({"COUNTER", "METER", "HISTOGRAM", "TIMER"})
+    public String kind;
+
+    @Param({"100", "500"})
+    public int batchSize;
+
+    private GraphitePickleReporter reporter;
+    private List<MetricName> names;
+    private List<Metric> metrics;
+    private Long epoch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        MetricsRegistry registry = SyntheticRegistry.create(SyntheticRegistry.Kind.valueOf(kind), size);
+        reporter = new GraphitePickleReporter(registry, "benchmark", MetricPredicate.ALL,
+                                              new NullSocketProvider(), Clock.defaultClock(), batchSize);
+        reporter.printVMMetrics = false;
+        // creates the pickler and fills the name cache
+        reporter.run();
+
+        names = new ArrayList<MetricName>(size);
+        metrics = new ArrayList<Metric>(size);
+        for (SortedMap<MetricName, Metric> group : registry.groupedMetrics().values()) {
+            for (Map.Entry<MetricName, Metric> entry : group.entrySet()) {
+                names.add(entry.getKey());
+                metrics.add(entry.getValue());
+            }
+        }
+        epoch = System.currentTimeMillis() / 1000;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        reporter.shutdown();
+    }
+
+    @Benchmark
+    public void addMetrics() throws Exception {
+        for (int i = 0; i < metrics.size(); i++) {
+            metrics.get(i).processWith(reporter, names.get(i), epoch);
+        }
+    }
+
+    @Benchmark
+    public void run() {
+        reporter.run();
+    }
+}
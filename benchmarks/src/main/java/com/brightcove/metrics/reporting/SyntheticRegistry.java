@@ -0,0 +1,53 @@
+package com.brightcove.metrics.reporting;
+
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds registries full of one kind of metric, with some data in each.
+ */
+final class SyntheticRegistry {
+    enum Kind {
+        COUNTER, METER, HISTOGRAM, TIMER
+    }
+
+    private SyntheticRegistry() {
+    }
+
+    static MetricsRegistry create(Kind kind, int size) {
+        MetricsRegistry registry = new MetricsRegistry();
+        Random random = new Random(42);
+        for (int i = 0; i < size; i++) {
+            // spread the metrics over groups like a real application would
+            MetricName name = new MetricName("com.example.service" + (i % 50), "Type" + (i % 7), "metric" + i);
+            switch (kind) {
+                case COUNTER:
+                    registry.newCounter(name).inc(random.nextInt(1000));
+                    break;
+                case METER:
+                    Meter meter = registry.newMeter(name, "requests", TimeUnit.SECONDS);
+                    meter.mark(random.nextInt(1000));
+                    break;
+                case HISTOGRAM:
+                    Histogram histogram = registry.newHistogram(name, true);
+                    for (int j = 0; j < 100; j++) {
+                        histogram.update(random.nextInt(10000));
+                    }
+                    break;
+                case TIMER:
+                    Timer timer = registry.newTimer(name, TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+                    for (int j = 0; j < 100; j++) {
+                        timer.update(random.nextInt(10000), TimeUnit.MICROSECONDS);
+                    }
+                    break;
+            }
+        }
+        return registry;
+    }
+}
@@ -0,0 +1,85 @@
+package com.brightcove.metrics.reporting;
+
+/**
+ * Lines reporting cycles up with wall-clock period boundaries, the slots whisper stores
+ * data points in, and sends each cycle a fixed offset into its slot.
+ *
+ * The offset is derived from a key, the host name by default, so every host sends at
+ * the same point of every period but a fleet that was started together spreads its
+ * sends across the jitter window instead of hitting carbon in the same second.
+ *
+ * All times are wall-clock milliseconds.
+ */
+final class AlignedSchedule {
+    private final long periodMillis;
+    private final long jitterMillis;
+    private long lastSlot = Long.MIN_VALUE;
+
+    AlignedSchedule(long periodMillis, long maxJitterMillis, String jitterKey) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("period must be at least a millisecond");
+        }
+        if (maxJitterMillis < 0 || maxJitterMillis >= periodMillis) {
+            throw new IllegalArgumentException("jitter must be shorter than the period");
+        }
+        this.periodMillis = periodMillis;
+        this.jitterMillis = jitter(jitterKey, maxJitterMillis);
+    }
+
+    /**
+     * @return a deterministic offset in {@code [0, maxJitterMillis)}
+     */
+    static long jitter(String key, long maxJitterMillis) {
+        if (maxJitterMillis == 0) {
+            return 0;
+        }
+        // host names differ in a character or two, which String.hashCode barely spreads.
+        // mix the bits (the MurmurHash3 finalizer) before taking the remainder.
+        long h = key.hashCode();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (h & Long.MAX_VALUE) % maxJitterMillis;
+    }
+
+    long getJitterMillis() {
+        return jitterMillis;
+    }
+
+    /**
+     * @return the start of the slot a cycle running at {@code now} reports on
+     */
+    long slot(long now) {
+        long sinceSlot = now - jitterMillis;
+        return sinceSlot - mod(sinceSlot, periodMillis);
+    }
+
+    /**
+     * @return how long to wait from {@code now} until the next cycle is due
+     */
+    long delayUntilNext(long now) {
+        return slot(now) + periodMillis + jitterMillis - now;
+    }
+
+    /**
+     * Record that a cycle is about to report on {@code slot}.
+     *
+     * @return how many slots were skipped since the last cycle, or -1 if this slot has
+     *         been reported on already and the cycle should not run
+     */
+    long advance(long slot) {
+        if (slot <= lastSlot) {
+            return -1;
+        }
+        long missed = lastSlot == Long.MIN_VALUE ? 0 : (slot - lastSlot) / periodMillis - 1;
+        lastSlot = slot;
+        return missed;
+    }
+
+    private static long mod(long value, long divisor) {
+        long remainder = value % divisor;
+        return remainder < 0 ? remainder + divisor : remainder;
+    }
+}
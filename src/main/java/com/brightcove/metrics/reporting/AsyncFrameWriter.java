@@ -0,0 +1,318 @@
+package com.brightcove.metrics.reporting;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands encoded messages to a dedicated sender thread through a bounded queue, so the
+ * reporting thread never waits on the network (unless the overflow policy is
+ * {@link OverflowPolicy#BLOCK} and the queue is full). A blocked write waits no longer
+ * than the {@link Deadline} of the cycle, if there is one, and the batch is dropped
+ * when it runs out.
+ *
+ * The end of a reporting cycle is passed on to the connection once the sender has caught
+ * up with the batches written before it, so the connection (and an outbox in front of
+ * it) sees one end of cycle per reporting cycle, however often the queue runs dry.
+ * Cycles that end while the sender is behind are passed on together.
+ *
+ * Given an {@link Executor}, there is no sender thread. A write or end of cycle submits
+ * a task that sends until the queue is empty and then ends, unless one is already
+ * running, so a writer only holds one of the executor's threads while it has something
+ * to send.
+ *
+ * Messages are copied into buffers from a pool that is as large as the queue, and the
+ * buffers go back to the pool once they are sent or dropped, so after the first few
+ * cycles a message costs no allocation.
+ */
+class AsyncFrameWriter implements FrameWriter {
+    /**
+     * How long a write that is blocked on a full queue may wait.
+     */
+    interface Deadline {
+        /**
+         * @return the nanoseconds left, or {@link Long#MAX_VALUE} to wait without a limit
+         */
+        long remainingNanos();
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncFrameWriter.class);
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+    private static final long POLL_MILLIS = 100;
+
+    private final FrameWriter delegate;
+    private final OverflowPolicy overflowPolicy;
+    private final BlockingQueue<PickleBuffer> queue;
+    private final BlockingQueue<PickleBuffer> pool;
+    private final Thread sender;
+    private final Executor executor;
+    private final Deadline deadline;
+    private final ReporterMetrics metrics;
+    // notified when a drain finishes after closing
+    private final Object drained = new Object();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+    // the ends of cycles that have not been passed on yet
+    private final AtomicInteger cycleEnds = new AtomicInteger();
+    private final AtomicLong droppedBatches = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+
+    private volatile boolean closed;
+
+    AsyncFrameWriter(FrameWriter delegate, int capacity, OverflowPolicy overflowPolicy) {
+        this(delegate, capacity, overflowPolicy, null);
+    }
+
+    /**
+     * @param executor where to send, or null for a sender thread of its own
+     */
+    AsyncFrameWriter(FrameWriter delegate, int capacity, OverflowPolicy overflowPolicy, Executor executor) {
+        this(delegate, capacity, overflowPolicy, executor, null, null);
+    }
+
+    /**
+     * @param executor where to send, or null for a sender thread of its own
+     * @param deadline how long a blocked write may wait, or null to wait without a limit
+     * @param metrics  where to count the data points that are dropped or fail to send,
+     *                 or null
+     */
+    AsyncFrameWriter(FrameWriter delegate, int capacity, OverflowPolicy overflowPolicy, Executor executor,
+                     Deadline deadline, ReporterMetrics metrics) {
+        this.delegate = delegate;
+        this.deadline = deadline;
+        this.metrics = metrics;
+        this.overflowPolicy = overflowPolicy;
+        this.queue = new ArrayBlockingQueue<PickleBuffer>(capacity);
+        // one for every queued message, one being sent and one being copied into
+        this.pool = new ArrayBlockingQueue<PickleBuffer>(capacity + 2);
+        this.executor = executor;
+        if (executor != null) {
+            this.sender = null;
+            return;
+        }
+        this.sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        }, "graphite-pickle-sender");
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    @Override
+    public void write(PickleBuffer payload) throws Exception {
+        if (closed) {
+            throw new IllegalStateException("Graphite sender is closed");
+        }
+        PickleBuffer frame = pool.poll();
+        if (frame == null) {
+            frame = new PickleBuffer(payload.length());
+        }
+        frame.set(payload);
+        switch (overflowPolicy) {
+            case BLOCK:
+                long remaining = deadline == null ? Long.MAX_VALUE : deadline.remainingNanos();
+                if (!queue.offer(frame, remaining, TimeUnit.NANOSECONDS)) {
+                    // the writer counts the points of a batch that fails
+                    release(frame);
+                    dropped();
+                    throw new TimeoutException("Graphite send queue stayed full until the end of the cycle budget");
+                }
+                break;
+            case DROP_NEWEST:
+                if (!queue.offer(frame)) {
+                    lost(frame);
+                    release(frame);
+                    dropped();
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(frame)) {
+                    PickleBuffer oldest = queue.poll();
+                    if (oldest != null) {
+                        lost(oldest);
+                        release(oldest);
+                        dropped();
+                    }
+                }
+                break;
+        }
+        if (executor != null) {
+            scheduleDrain();
+        }
+    }
+
+    @Override
+    public void endCycle() {
+        // the sender passes it on once it has sent what is queued
+        cycleEnds.incrementAndGet();
+        if (executor != null) {
+            scheduleDrain();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (sender != null) {
+                sender.join(CLOSE_TIMEOUT_MILLIS);
+            } else {
+                // nothing is written after closing, so once a drain has finished the queue stays empty
+                scheduleDrain();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+                synchronized (drained) {
+                    long remaining;
+                    while (draining.get() && (remaining = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(drained, remaining);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.close();
+    }
+
+    long getDroppedBatches() {
+        return droppedBatches.get();
+    }
+
+    long getFailedBatches() {
+        return failedBatches.get();
+    }
+
+    int getQueuedBatches() {
+        return queue.size();
+    }
+
+    private void release(PickleBuffer frame) {
+        frame.clear();
+        pool.offer(frame);
+    }
+
+    /**
+     * Count the data points of a batch that will never be sent, and have its unchanged
+     * values sent again.
+     */
+    private void lost(PickleBuffer frame) {
+        frame.notSent();
+        if (metrics != null) {
+            metrics.dropped(frame.points());
+        }
+    }
+
+    private void dropped() {
+        long dropped = droppedBatches.incrementAndGet();
+        LOG.debug("Graphite send queue is full, dropped {} batches so far", dropped);
+    }
+
+    private void send() {
+        while (true) {
+            // read before the queue, so every batch of these cycles was queued already
+            int ends = cycleEnds.get();
+            PickleBuffer frame = queue.poll();
+            if (frame == null) {
+                // caught up. pass on the ends of cycles and wait for more.
+                passOn(ends);
+                if (closed) {
+                    return;
+                }
+                try {
+                    frame = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (frame == null) {
+                    continue;
+                }
+            }
+            send(frame);
+        }
+    }
+
+    /**
+     * Pass on the end of the cycles whose batches have all been sent.
+     */
+    private void passOn(int ends) {
+        if (ends > 0) {
+            cycleEnds.addAndGet(-ends);
+            delegate.endCycle();
+        }
+    }
+
+    /**
+     * Start a task that sends what is queued and passes on the ends of cycles, unless
+     * one is running already.
+     */
+    private void scheduleDrain() {
+        if (!hasWork() || !draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(drainTask);
+        } catch (RejectedExecutionException e) {
+            draining.set(false);
+            LOG.warn("Graphite send executor rejected the send, {} batches are left queued", queue.size());
+        }
+    }
+
+    private void drain() {
+        do {
+            try {
+                while (true) {
+                    int ends = cycleEnds.get();
+                    PickleBuffer frame = queue.poll();
+                    if (frame == null) {
+                        passOn(ends);
+                        break;
+                    }
+                    send(frame);
+                }
+            } finally {
+                draining.set(false);
+                if (closed) {
+                    synchronized (drained) {
+                        drained.notifyAll();
+                    }
+                }
+            }
+            // a write or end of cycle that came in after the queue was found empty, but
+            // before draining was cleared, could not start a task of its own
+        } while (hasWork() && draining.compareAndSet(false, true));
+    }
+
+    private boolean hasWork() {
+        return !queue.isEmpty() || cycleEnds.get() > 0;
+    }
+
+    private void send(PickleBuffer frame) {
+        try {
+            delegate.write(frame);
+        } catch (Exception e) {
+            failedBatches.incrementAndGet();
+            lost(frame);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Error writing to Graphite", e);
+            } else {
+                LOG.warn("Error writing to Graphite: {}", e.getMessage());
+            }
+        }
+        release(frame);
+    }
+}
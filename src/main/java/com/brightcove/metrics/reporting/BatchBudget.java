@@ -0,0 +1,56 @@
+package com.brightcove.metrics.reporting;
+
+/**
+ * How many bytes a pickled message to one destination may grow to.
+ *
+ * A fixed budget never changes. An adaptive budget is tuned from how long each message
+ * took to write: it is halved when a write takes longer than the target latency, and
+ * grows by a quarter while writes take less than half of it, so messages are as large
+ * as the destination can comfortably take. Either way it never exceeds what carbon's
+ * pickle receiver accepts.
+ */
+final class BatchBudget {
+    /**
+     * carbon's {@code MetricPickleReceiver.MAX_LENGTH}. Longer messages make carbon drop
+     * the connection.
+     */
+    static final int CARBON_MAX_LENGTH = 1 << 20;
+
+    private final int minBytes;
+    private final int maxBytes;
+    private final long targetNanos;
+    private int bytes;
+
+    private BatchBudget(int minBytes, int maxBytes, long targetNanos) {
+        this.minBytes = minBytes;
+        this.maxBytes = maxBytes;
+        this.targetNanos = targetNanos;
+        this.bytes = minBytes;
+    }
+
+    static BatchBudget fixed(int bytes) {
+        return new BatchBudget(bytes, bytes, 0);
+    }
+
+    static BatchBudget adaptive(int minBytes, int maxBytes, long targetNanos) {
+        return new BatchBudget(minBytes, maxBytes, targetNanos);
+    }
+
+    int bytes() {
+        return bytes;
+    }
+
+    /**
+     * @param nanos how long it took to write the last message
+     */
+    void recordWrite(long nanos) {
+        if (targetNanos <= 0) {
+            return;
+        }
+        if (nanos > targetNanos) {
+            bytes = Math.max(minBytes, bytes / 2);
+        } else if (nanos < targetNanos / 2) {
+            bytes = (int) Math.min(maxBytes, bytes + Math.max(1, bytes / 4L));
+        }
+    }
+}
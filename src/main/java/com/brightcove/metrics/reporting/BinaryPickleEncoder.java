@@ -0,0 +1,190 @@
+package com.brightcove.metrics.reporting;
+
+import java.nio.charset.Charset;
+
+/**
+ * Encodes metrics using pickle protocol 2. Timestamps and values are written as binary
+ * integers and floats rather than as text.
+ */
+class BinaryPickleEncoder extends PickleEncoder {
+
+    /**
+     * Protocol 2 opcodes.
+     */
+    static final int
+        PROTO = 0x80,
+        MARK = '(',
+        STOP = '.',
+        EMPTY_LIST = ']',
+        APPENDS = 'e',
+        TUPLE2 = 0x86,
+        BININT = 'J',
+        BININT1 = 'K',
+        BININT2 = 'M',
+        LONG1 = 0x8a,
+        BINFLOAT = 'G',
+        SHORT_BINSTRING = 'U',
+        BINSTRING = 'T',
+        BINUNICODE = 'X',
+        BINPUT = 'q',
+        LONG_BINPUT = 'r',
+        BINGET = 'h',
+        LONG_BINGET = 'j';
+
+    static final int PROTOCOL_VERSION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    BinaryPickleEncoder(boolean memoize) {
+        super(memoize);
+    }
+
+    @Override
+    byte[] encodeName(String name) {
+        PickleBuffer encoded = new PickleBuffer(name.length() + 5);
+        putString(name, encoded);
+        return encoded.toByteArray();
+    }
+
+    @Override
+    void startList(PickleBuffer pickled) {
+        pickled.put(PROTO);
+        pickled.put(PROTOCOL_VERSION);
+        pickled.put(EMPTY_LIST);
+        // all of the tuples are added with a single APPENDS
+        pickled.put(MARK);
+    }
+
+    @Override
+    void appendMetric(MetricTuple tuple, PickleBuffer pickled) {
+        pickled.put(tuple.name);
+
+        if (!getValueTuple(tuple, pickled)) {
+            putMemoizedTimestamp(tuple.timestamp, pickled);
+            switch (tuple.type) {
+                case MetricTuple.INT:
+                    putInt(tuple.intValue, pickled);
+                    break;
+                case MetricTuple.FLOAT:
+                    putFloat(tuple.floatValue, pickled);
+                    break;
+                default:
+                    putObject(tuple.objectValue, pickled);
+                    break;
+            }
+            pickled.put(TUPLE2); // inner close
+            putValueTuple(tuple, pickled);
+        }
+        pickled.put(TUPLE2); // outer close
+    }
+
+    @Override
+    void endList(PickleBuffer pickled) {
+        pickled.put(APPENDS);
+        pickled.put(STOP);
+    }
+
+    @Override
+    int endListLength() {
+        return 2;
+    }
+
+    @Override
+    void putTimestamp(long timestamp, PickleBuffer pickled) {
+        putInt(timestamp, pickled);
+    }
+
+    @Override
+    void memoPut(int id, PickleBuffer pickled) {
+        if (id < 256) {
+            pickled.put(BINPUT);
+            pickled.put(id);
+        } else {
+            pickled.put(LONG_BINPUT);
+            pickled.putIntLE(id);
+        }
+    }
+
+    @Override
+    void memoGet(int id, PickleBuffer pickled) {
+        if (id < 256) {
+            pickled.put(BINGET);
+            pickled.put(id);
+        } else {
+            pickled.put(LONG_BINGET);
+            pickled.putIntLE(id);
+        }
+    }
+
+    /**
+     * Plain ASCII is written as a byte string, anything else as UTF-8 encoded unicode.
+     */
+    static void putString(String s, PickleBuffer pickled) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) >= 0x80) {
+                putUnicode(s, pickled);
+                return;
+            }
+        }
+        if (length < 256) {
+            pickled.put(SHORT_BINSTRING);
+            pickled.put(length);
+        } else {
+            pickled.put(BINSTRING);
+            pickled.putIntLE(length);
+        }
+        pickled.putLatin1(s);
+    }
+
+    static void putInt(long value, PickleBuffer pickled) {
+        if (value >= 0 && value <= 0xFF) {
+            pickled.put(BININT1);
+            pickled.put((int) value);
+        } else if (value >= 0 && value <= 0xFFFF) {
+            pickled.put(BININT2);
+            pickled.put((int) value);
+            pickled.put((int) (value >>> 8));
+        } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            pickled.put(BININT);
+            pickled.putIntLE((int) value);
+        } else {
+            // little-endian two's complement, using as few bytes as possible
+            int count = 8;
+            while (count > 1) {
+                long top = value >> ((count - 1) * 8 - 1);
+                if (top != 0 && top != -1) {
+                    break;
+                }
+                count--;
+            }
+            pickled.put(LONG1);
+            pickled.put(count);
+            for (int i = 0; i < count; i++) {
+                pickled.put((int) (value >>> (i * 8)));
+            }
+        }
+    }
+
+    static void putFloat(double value, PickleBuffer pickled) {
+        pickled.put(BINFLOAT);
+        pickled.putLongBE(Double.doubleToLongBits(value));
+    }
+
+    private static void putObject(Object value, PickleBuffer pickled) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            putInt(((Number) value).longValue(), pickled);
+        } else if (value instanceof Double || value instanceof Float) {
+            putFloat(((Number) value).doubleValue(), pickled);
+        } else {
+            putString(String.valueOf(value), pickled);
+        }
+    }
+
+    private static void putUnicode(String s, PickleBuffer pickled) {
+        byte[] utf8 = s.getBytes(UTF_8);
+        pickled.put(BINUNICODE);
+        pickled.putIntLE(utf8.length);
+        pickled.put(utf8);
+    }
+}
@@ -0,0 +1,49 @@
+package com.brightcove.metrics.reporting;
+
+/**
+ * Decides which cycles something that happens less often than every cycle is due in,
+ * such as a flush of buffered data points or the collection of VM metrics.
+ *
+ * It is due once {@code interval} has passed since it was last due, give or take half a
+ * period, so that cycles that run a little early or late neither skip it nor bring it
+ * forward by a whole period. If cycles were skipped, it is due in the next one that runs
+ * rather than several times in a row. All times are wall-clock milliseconds.
+ */
+final class Cadence {
+    private final long intervalMillis;
+    private final boolean dueInFirstCycle;
+    private long nextMillis = Long.MIN_VALUE;
+
+    /**
+     * @param intervalMillis  how often it is due
+     * @param dueInFirstCycle whether it is due in the first cycle, or only once an
+     *                        interval's worth of cycles have run
+     */
+    Cadence(long intervalMillis, boolean dueInFirstCycle) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("interval must be at least a millisecond");
+        }
+        this.intervalMillis = intervalMillis;
+        this.dueInFirstCycle = dueInFirstCycle;
+    }
+
+    /**
+     * @param now          the time of the cycle
+     * @param periodMillis how often cycles run, or 0 if they are run by hand
+     * @return whether it is due in this cycle
+     */
+    boolean isDue(long now, long periodMillis) {
+        if (nextMillis == Long.MIN_VALUE) {
+            // as if the cycle before this one had been due, unless this one is
+            nextMillis = dueInFirstCycle ? now : now + intervalMillis - periodMillis;
+        }
+        if (now < nextMillis - periodMillis / 2) {
+            return false;
+        }
+        nextMillis += intervalMillis;
+        if (nextMillis <= now) {
+            nextMillis = now + intervalMillis;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,261 @@
+package com.brightcove.metrics.reporting;
+
+import com.yammer.metrics.reporting.SocketProvider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Delivers pickle messages to carbon over sockets obtained from a {@link SocketProvider}.
+ *
+ * In the default (non-persistent) mode a fresh socket is opened for every message and
+ * closed once the message is written. In persistent mode a single socket is kept open
+ * across batches and reporting cycles; messages are written back-to-back on the same
+ * stream and the socket is only replaced once it is found to be broken.
+ *
+ * Each message is flushed before {@code write} returns, so a message is only reported as
+ * written once it has been handed to the socket. A message that is still buffered when the
+ * connection breaks would otherwise be lost without its writer ever finding out.
+ *
+ * A {@link WriteWatchdog} can abort writes that take too long by closing the socket.
+ * Closing the connection does the same to a write in progress, so shutting down never
+ * waits on a carbon that has stopped reading. Nothing is written once it is closed.
+ */
+class CarbonConnection implements FrameWriter, WriteWatchdog.Watched {
+    private static final Logger LOG = LoggerFactory.getLogger(CarbonConnection.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SocketProvider socketProvider;
+    private final boolean persistent;
+
+    private final byte[] header = new byte[4];
+
+    private Socket socket;
+    private OutputStream out;
+    private boolean verified;
+
+    private volatile boolean closed;
+    // set when the watchdog aborts the write in progress
+    private volatile boolean aborted;
+
+    // read by the watchdog
+    private volatile Socket current;
+    private volatile long writeStartedNanos = WriteWatchdog.IDLE;
+
+    CarbonConnection(SocketProvider socketProvider, boolean persistent) {
+        this.socketProvider = socketProvider;
+        this.persistent = persistent;
+    }
+
+    /**
+     * Write a single message (header followed by payload) to carbon.
+     */
+    @Override
+    public synchronized void write(PickleBuffer payload) throws Exception {
+        checkNotClosed();
+        int length = payload.length();
+        header[0] = (byte) (length >>> 24);
+        header[1] = (byte) (length >>> 16);
+        header[2] = (byte) (length >>> 8);
+        header[3] = (byte) length;
+
+        aborted = false;
+        writeStartedNanos = System.nanoTime();
+        try {
+            if (persistent) {
+                writePersistent(header, payload);
+            } else {
+                writeAndClose(header, payload);
+            }
+        } finally {
+            writeStartedNanos = WriteWatchdog.IDLE;
+        }
+    }
+
+    private void writePersistent(byte[] header, PickleBuffer payload) throws Exception {
+        try {
+            writeFrame(stream(), header, payload);
+        } catch (IOException e) {
+            disconnect();
+            if (closed || aborted) {
+                // a write that timed out is not given a second timeout on a new socket
+                throw e;
+            }
+            // the connection went away underneath us. the partial message dies with
+            // the old socket, so it is safe to send the whole thing again.
+            LOG.debug("Reconnecting to Graphite after write failure: {}", e.getMessage());
+            writeStartedNanos = System.nanoTime();
+            writeFrame(stream(), header, payload);
+        }
+    }
+
+    /**
+     * The buffer only joins the header and payload into one write; it is empty again
+     * once this returns.
+     */
+    private static void writeFrame(OutputStream stream, byte[] header, PickleBuffer payload) throws IOException {
+        stream.write(header);
+        payload.writeTo(stream);
+        stream.flush();
+    }
+
+    /**
+     * Marks the end of a reporting cycle. Every message has been flushed as it was
+     * written, so all that is left is to check the connection before it is used in the
+     * next cycle.
+     */
+    @Override
+    public synchronized void endCycle() {
+        verified = false;
+    }
+
+    /**
+     * Close the persistent socket, if there is one. A write in progress holds the lock
+     * for as long as it is blocked, so its socket is closed from underneath it first,
+     * which makes it fail and let go.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Socket closedCurrent = closeCurrent();
+        synchronized (this) {
+            // closed already
+            if (socket == closedCurrent) {
+                socket = null;
+            }
+            disconnect();
+        }
+    }
+
+    private void disconnect() {
+        if (socket != null) {
+            // nothing is left in the buffer but the remains of a failed write
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.debug("Error closing Graphite connection", e);
+            }
+        }
+        socket = null;
+        current = null;
+        out = null;
+        verified = false;
+    }
+
+    @Override
+    public long writeStartedNanos() {
+        return writeStartedNanos;
+    }
+
+    @Override
+    public boolean abort() {
+        aborted = true;
+        return closeCurrent() != null;
+    }
+
+    /**
+     * @return the socket that was closed, if any
+     */
+    private Socket closeCurrent() {
+        Socket socket = current;
+        if (socket == null || socket.isClosed()) {
+            return null;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOG.debug("Error aborting Graphite connection", e);
+        }
+        return socket;
+    }
+
+    private void writeAndClose(byte[] header, PickleBuffer payload) throws Exception {
+        Socket socket = null;
+        try {
+            socket = socketProvider.get();
+            current = socket;
+            checkNotClosed();
+
+            OutputStream out = socket.getOutputStream();
+            out.write(header);
+            payload.writeTo(out);
+            out.flush();
+        } finally {
+            current = null;
+            if (socket != null && !socket.isClosed()) {
+                socket.shutdownOutput();
+                socket.close();
+            }
+        }
+    }
+
+    private OutputStream stream() throws Exception {
+        if (socket != null && !verified) {
+            if (!isAlive(socket)) {
+                LOG.debug("Graphite connection was closed, reconnecting");
+                disconnect();
+            }
+            verified = true;
+        }
+        if (socket == null) {
+            socket = socketProvider.get();
+            current = socket;
+            checkNotClosed();
+            out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            verified = true;
+            LOG.debug("Opened persistent connection to Graphite");
+        }
+        return out;
+    }
+
+    /**
+     * Nothing is written once the connection is closed. This is checked again once a new
+     * socket is {@code current}: either {@link #close} sees the socket and closes it, or
+     * this sees that the connection was closed while it was connecting.
+     */
+    private void checkNotClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Connection to Graphite is closed");
+        }
+    }
+
+    /**
+     * Carbon never writes to a pickle connection, so a read that reports end-of-stream
+     * means the far side has hung up. A write to such a socket would appear to succeed
+     * and the message would be lost, so check before each cycle.
+     */
+    private static boolean isAlive(Socket socket) {
+        if (socket.isClosed() || !socket.isConnected() || socket.isOutputShutdown()) {
+            return false;
+        }
+        int timeout = -1;
+        try {
+            InputStream in = socket.getInputStream();
+            if (in == null) {
+                return true;
+            }
+            timeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            return in.read() != -1;
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (timeout >= 0) {
+                try {
+                    socket.setSoTimeout(timeout);
+                } catch (IOException ignored) {
+                    // the socket is broken; the next write will find out
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.brightcove.metrics.reporting;
+
+import com.yammer.metrics.reporting.SocketProvider;
+
+/**
+ * A carbon-cache that receives a share of the metrics, as in carbon-relay's
+ * DESTINATIONS setting: {@code host:port[:instance]}.
+ *
+ * Only the host and instance decide which metrics a destination receives, just as in
+ * carbon, so the port can change without moving any metrics.
+ */
+public class CarbonDestination {
+    private final String host;
+    private final int port;
+    private final String instance;
+    private final SocketProvider socketProvider;
+
+    public CarbonDestination(String host, int port, String instance) {
+        this(host, port, instance, new TimeoutSocketProvider(host, port));
+    }
+
+    /**
+     * @param socketProvider opens connections to this destination
+     */
+    public CarbonDestination(String host, int port, String instance, SocketProvider socketProvider) {
+        this.host = host;
+        this.port = port;
+        this.instance = instance;
+        this.socketProvider = socketProvider;
+    }
+
+    /**
+     * Parse a destination written as in carbon's DESTINATIONS setting.
+     *
+     * @param destination {@code host:port} or {@code host:port:instance}
+     */
+    public static CarbonDestination parse(String destination) {
+        String[] parts = destination.trim().split(":");
+        if (parts.length < 2 || parts.length > 3) {
+            throw new IllegalArgumentException("Expected host:port[:instance] but got " + destination);
+        }
+        return new CarbonDestination(parts[0], Integer.parseInt(parts[1]), parts.length == 3 ? parts[2] : null);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getInstance() {
+        return instance;
+    }
+
+    public SocketProvider getSocketProvider() {
+        return socketProvider;
+    }
+
+    /**
+     * The key carbon places on its hash ring: {@code str((host, instance))} in python.
+     */
+    String ringKey() {
+        return "(" + pythonRepr(host) + ", " + (instance == null ? "None" : pythonRepr(instance)) + ")";
+    }
+
+    private static String pythonRepr(String value) {
+        char quote = value.indexOf('\'') >= 0 && value.indexOf('"') < 0 ? '"' : '\'';
+        StringBuilder repr = new StringBuilder(value.length() + 2).append(quote);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == quote) {
+                repr.append('\\');
+            }
+            repr.append(c);
+        }
+        return repr.append(quote).toString();
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port + (instance == null ? "" : ":" + instance);
+    }
+}
@@ -0,0 +1,234 @@
+package com.brightcove.metrics.reporting;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Delivers pickle messages to carbon over {@link SocketChannel}s obtained from a
+ * {@link ChannelProvider}.
+ *
+ * The header and payload are copied into direct buffers that are reused for every
+ * message, and sent with a single gathering write. Like {@link CarbonConnection} it
+ * either opens a channel per message or, in persistent mode, keeps one channel open
+ * and replaces it once it is found to be broken, and closing it fails a write in
+ * progress rather than waiting for it.
+ */
+class ChannelCarbonConnection implements FrameWriter, WriteWatchdog.Watched {
+    private static final Logger LOG = LoggerFactory.getLogger(ChannelCarbonConnection.class);
+    private static final int INITIAL_PAYLOAD_SIZE = 64 * 1024;
+
+    private final ChannelProvider channelProvider;
+    private final boolean persistent;
+
+    private final ByteBuffer header = ByteBuffer.allocateDirect(4);
+    private final ByteBuffer probe = ByteBuffer.allocateDirect(1);
+    private ByteBuffer payload = ByteBuffer.allocateDirect(INITIAL_PAYLOAD_SIZE);
+    private final ByteBuffer[] frame = new ByteBuffer[]{header, payload};
+
+    private SocketChannel channel;
+    private boolean verified;
+
+    private volatile boolean closed;
+    // set when the watchdog aborts the write in progress
+    private volatile boolean aborted;
+
+    // read by the watchdog
+    private volatile SocketChannel current;
+    private volatile long writeStartedNanos = WriteWatchdog.IDLE;
+
+    ChannelCarbonConnection(ChannelProvider channelProvider, boolean persistent) {
+        this.channelProvider = channelProvider;
+        this.persistent = persistent;
+    }
+
+    /**
+     * Write a single message (header followed by payload) to carbon.
+     */
+    @Override
+    public synchronized void write(PickleBuffer message) throws Exception {
+        checkNotClosed();
+        fill(message);
+
+        aborted = false;
+        writeStartedNanos = System.nanoTime();
+        try {
+            if (persistent) {
+                writePersistent();
+            } else {
+                writeAndClose();
+            }
+        } finally {
+            writeStartedNanos = WriteWatchdog.IDLE;
+        }
+    }
+
+    private void writePersistent() throws Exception {
+        try {
+            writeFully(channel());
+        } catch (IOException e) {
+            disconnect();
+            if (closed || aborted) {
+                // a write that timed out is not given a second timeout on a new channel
+                throw e;
+            }
+            // as with sockets, the partial message dies with the old channel
+            LOG.debug("Reconnecting to Graphite after write failure: {}", e.getMessage());
+            header.rewind();
+            payload.rewind();
+            writeStartedNanos = System.nanoTime();
+            writeFully(channel());
+        }
+    }
+
+    /**
+     * Marks the end of a reporting cycle. Nothing is buffered in user space, so all
+     * that is left is to check the channel before it is used in the next cycle.
+     */
+    @Override
+    public synchronized void endCycle() {
+        verified = false;
+    }
+
+    /**
+     * Close the persistent channel, if there is one. As with {@link CarbonConnection}, a
+     * blocked write holds the lock, so its channel is closed from underneath it first.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        SocketChannel closedCurrent = closeCurrent();
+        synchronized (this) {
+            // closed already
+            if (channel == closedCurrent) {
+                channel = null;
+            }
+            disconnect();
+        }
+    }
+
+    private void disconnect() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.debug("Error closing Graphite connection", e);
+            }
+        }
+        channel = null;
+        current = null;
+        verified = false;
+    }
+
+    @Override
+    public long writeStartedNanos() {
+        return writeStartedNanos;
+    }
+
+    @Override
+    public boolean abort() {
+        aborted = true;
+        return closeCurrent() != null;
+    }
+
+    /**
+     * @return the channel that was closed, if any
+     */
+    private SocketChannel closeCurrent() {
+        SocketChannel channel = current;
+        if (channel == null || !channel.isOpen()) {
+            return null;
+        }
+        try {
+            // a write blocked on the channel fails with an AsynchronousCloseException
+            channel.close();
+        } catch (IOException e) {
+            LOG.debug("Error aborting Graphite connection", e);
+        }
+        return channel;
+    }
+
+    private void fill(PickleBuffer message) {
+        int length = message.length();
+        if (payload.capacity() < length) {
+            payload = ByteBuffer.allocateDirect(Math.max(length, payload.capacity() * 2));
+            frame[1] = payload;
+        }
+        header.clear();
+        header.putInt(length).flip();
+        payload.clear();
+        message.writeTo(payload);
+        payload.flip();
+    }
+
+    private void writeFully(SocketChannel channel) throws IOException {
+        while (payload.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    private void writeAndClose() throws Exception {
+        SocketChannel channel = null;
+        try {
+            channel = channelProvider.get();
+            current = channel;
+            checkNotClosed();
+            writeFully(channel);
+        } finally {
+            current = null;
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    private SocketChannel channel() throws Exception {
+        if (channel != null && !verified) {
+            if (!isAlive(channel)) {
+                LOG.debug("Graphite connection was closed, reconnecting");
+                disconnect();
+            }
+            verified = true;
+        }
+        if (channel == null) {
+            channel = channelProvider.get();
+            current = channel;
+            checkNotClosed();
+            verified = true;
+            LOG.debug("Opened persistent connection to Graphite");
+        }
+        return channel;
+    }
+
+    /**
+     * Nothing is written once the connection is closed. This is checked again once a new
+     * channel is {@code current}, in case it was closed while the channel was opened.
+     */
+    private void checkNotClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Connection to Graphite is closed");
+        }
+    }
+
+    /**
+     * Carbon never writes to a pickle connection, so a non-blocking read that reports
+     * end-of-stream means the far side has hung up.
+     */
+    private boolean isAlive(SocketChannel channel) {
+        if (!channel.isOpen() || !channel.isConnected()) {
+            return false;
+        }
+        try {
+            channel.configureBlocking(false);
+            probe.clear();
+            int read = channel.read(probe);
+            channel.configureBlocking(true);
+            return read != -1;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
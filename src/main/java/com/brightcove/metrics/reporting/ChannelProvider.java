@@ -0,0 +1,11 @@
+package com.brightcove.metrics.reporting;
+
+import java.nio.channels.SocketChannel;
+
+/**
+ * Opens connected, blocking channels to carbon. The channel counterpart of
+ * {@link com.yammer.metrics.reporting.SocketProvider}.
+ */
+public interface ChannelProvider {
+    SocketChannel get() throws Exception;
+}
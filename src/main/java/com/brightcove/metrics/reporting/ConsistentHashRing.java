@@ -0,0 +1,87 @@
+package com.brightcove.metrics.reporting;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A port of carbon's {@code ConsistentHashRing} (carbon/hashing.py) using the default
+ * {@code carbon_ch} hash, so that metrics land on the same carbon-cache that a
+ * carbon-relay with {@code RELAY_METHOD = consistent-hashing} would pick.
+ *
+ * Each node is placed on the ring {@code replicas} times, at the first two bytes of
+ * the md5 of {@code "<node key>:<i>"}. Nodes are added in order and a position that is
+ * already taken is moved up by one, exactly as carbon does, so the order of the
+ * destinations matters just as it does in carbon's DESTINATIONS setting. A metric
+ * belongs to the first node at or after the position of its name.
+ */
+final class ConsistentHashRing {
+    static final int DEFAULT_REPLICAS = 100;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final MessageDigest md5;
+    private final int[] positions;
+    private final int[] nodes;
+
+    /**
+     * @param nodeKeys the python representation of each node's key; see
+     *                 {@link CarbonDestination#ringKey()}
+     */
+    ConsistentHashRing(List<String> nodeKeys, int replicas) {
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        TreeMap<Integer, Integer> ring = new TreeMap<Integer, Integer>();
+        for (int node = 0; node < nodeKeys.size(); node++) {
+            for (int i = 0; i < replicas; i++) {
+                int position = position(nodeKeys.get(node) + ":" + i);
+                while (ring.containsKey(position)) {
+                    position++;
+                }
+                ring.put(position, node);
+            }
+        }
+
+        positions = new int[ring.size()];
+        nodes = new int[ring.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Integer> entry : ring.entrySet()) {
+            positions[i] = entry.getKey();
+            nodes[i] = entry.getValue();
+            i++;
+        }
+    }
+
+    /**
+     * @return the index of the node that owns {@code key}
+     */
+    int getNode(String key) {
+        int position = position(key);
+        // bisect_left: the first entry at or after the position, wrapping around
+        int low = 0;
+        int high = positions.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (positions[mid] < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return nodes[low % positions.length];
+    }
+
+    /**
+     * The first four hex digits of the md5, i.e. its first two bytes.
+     */
+    private int position(String key) {
+        byte[] digest = md5.digest(key.getBytes(UTF_8));
+        return ((digest[0] & 0xff) << 8) | (digest[1] & 0xff);
+    }
+}
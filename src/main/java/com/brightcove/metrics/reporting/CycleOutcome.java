@@ -0,0 +1,29 @@
+package com.brightcove.metrics.reporting;
+
+/**
+ * How a reporting cycle ended.
+ */
+public enum CycleOutcome {
+    /**
+     * Every data point was handed to carbon, or to the send queue.
+     */
+    COMPLETED,
+
+    /**
+     * The cycle ran to the end, but writing some of its batches failed. Those were
+     * dropped, unless an outbox took them.
+     */
+    FAILED,
+
+    /**
+     * The cycle ran out of its time budget. The metrics that had not been processed yet
+     * were skipped and the batches that had not been written were dropped.
+     */
+    TIMED_OUT,
+
+    /**
+     * The cycle did not run, because the one before it finished so late that it would
+     * have run straight after it.
+     */
+    SKIPPED
+}
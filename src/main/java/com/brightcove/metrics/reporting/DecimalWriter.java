@@ -0,0 +1,192 @@
+package com.brightcove.metrics.reporting;
+
+import java.util.Locale;
+
+/**
+ * Writes decimal representations of numbers straight into a {@link PickleBuffer}
+ * without going through {@link String#format} or creating intermediate strings.
+ *
+ * The rare values that cannot be handled exactly with long and double arithmetic fall
+ * back to the JDK formatting so the output is always the same as the JDK's.
+ */
+final class DecimalWriter {
+    private static final Locale LOCALE = Locale.US;
+
+    /**
+     * Largest magnitude the two decimal fast path handles. Scaled by 100 it is still
+     * well inside the range where doubles hold integers exactly.
+     */
+    private static final double MAX_FIXED = 1e13;
+
+    /**
+     * Range of magnitudes the shortest round-trip fast path handles. This keeps every
+     * power of ten it needs exactly representable as a double.
+     */
+    private static final double MIN_SHORTEST = 1e-5;
+    private static final double MAX_SHORTEST = 1e15;
+
+    private static final long MAX_EXACT = 1L << 53;
+
+    private static final double[] POW10 = new double[23];
+    static {
+        double p = 1;
+        for (int i = 0; i < POW10.length; i++) {
+            POW10[i] = p;
+            p *= 10;
+        }
+    }
+
+    private DecimalWriter() {
+    }
+
+    /**
+     * Same as {@code String.format(Locale.US, "%d", value)}.
+     */
+    static void putLong(PickleBuffer buffer, long value) {
+        if (value < 0) {
+            buffer.put('-');
+            if (value == Long.MIN_VALUE) {
+                // cannot be negated; the last digit is 8
+                putDigits(buffer, -(value / 10));
+                buffer.put('8');
+                return;
+            }
+            value = -value;
+        }
+        putDigits(buffer, value);
+    }
+
+    /**
+     * Same as {@code String.format(Locale.US, "%2.2f", value)}.
+     */
+    static void putFixed2(PickleBuffer buffer, double value) {
+        double abs = Math.abs(value);
+        if (abs < MAX_FIXED) {
+            double scaled = abs * 100;
+            long cents = (long) scaled;
+            double fraction = scaled - cents;
+            // the JDK rounds half up on the decimal value of the double. only values
+            // that land (nearly) on a half cent are ambiguous here, so leave those to it.
+            if (Math.abs(fraction - 0.5) > 4 * Math.ulp(scaled)) {
+                if (fraction > 0.5) {
+                    cents++;
+                }
+                if (isNegative(value)) {
+                    buffer.put('-');
+                }
+                putDigits(buffer, cents / 100);
+                buffer.put('.');
+                int remainder = (int) (cents % 100);
+                buffer.put('0' + remainder / 10);
+                buffer.put('0' + remainder % 10);
+                return;
+            }
+        }
+        buffer.putLatin1(String.format(LOCALE, "%2.2f", value));
+    }
+
+    /**
+     * The shortest decimal representation that parses back to the same double.
+     */
+    static void putShortest(PickleBuffer buffer, double value) {
+        if (value == 0) {
+            buffer.putLatin1(isNegative(value) ? "-0.0" : "0.0");
+            return;
+        }
+        double abs = Math.abs(value);
+        if (abs >= MIN_SHORTEST && abs < MAX_SHORTEST) {
+            int exponent = (int) Math.floor(Math.log10(abs));
+            for (int precision = 1; precision <= 16; precision++) {
+                int scale = precision - 1 - exponent;
+                double scaled = scale >= 0 ? abs * POW10[scale] : abs / POW10[-scale];
+                long rounded = Math.round(scaled);
+                // the multiplication may be off by one unit in the last digit, so the
+                // neighbours are checked as well.
+                for (long digits = rounded - 1; digits <= rounded + 1; digits++) {
+                    if (digits > 0 && digits < MAX_EXACT && parsesTo(digits, scale, abs)) {
+                        if (isNegative(value)) {
+                            buffer.put('-');
+                        }
+                        putScaled(buffer, digits, scale);
+                        return;
+                    }
+                }
+            }
+        }
+        buffer.putLatin1(Double.toString(value));
+    }
+
+    /**
+     * Whether digits * 10^-scale, rounded to the nearest double, is the expected value.
+     * Both operands are exact doubles and IEEE division and multiplication are
+     * correctly rounded, so this gives the same answer as parsing the decimal string.
+     */
+    private static boolean parsesTo(long digits, int scale, double expected) {
+        if (scale >= 0) {
+            return digits / POW10[scale] == expected;
+        }
+        return digits * POW10[-scale] == expected;
+    }
+
+    private static void putScaled(PickleBuffer buffer, long digits, int scale) {
+        while (scale > 0 && digits % 10 == 0) {
+            digits /= 10;
+            scale--;
+        }
+        if (scale <= 0) {
+            putDigits(buffer, digits);
+            for (int i = 0; i < -scale; i++) {
+                buffer.put('0');
+            }
+            buffer.put('.');
+            buffer.put('0');
+            return;
+        }
+        int length = countDigits(digits);
+        if (length <= scale) {
+            buffer.put('0');
+            buffer.put('.');
+            for (int i = length; i < scale; i++) {
+                buffer.put('0');
+            }
+            putDigits(buffer, digits);
+            return;
+        }
+        long divisor = 1;
+        for (int i = 1; i < length; i++) {
+            divisor *= 10;
+        }
+        for (int position = length; divisor > 0; divisor /= 10, position--) {
+            if (position == scale) {
+                buffer.put('.');
+            }
+            buffer.put('0' + (int) (digits / divisor % 10));
+        }
+    }
+
+    private static int countDigits(long value) {
+        int count = 1;
+        while (value >= 10) {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Write a non-negative long.
+     */
+    private static void putDigits(PickleBuffer buffer, long value) {
+        long divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put('0' + (int) (value / divisor % 10));
+        }
+    }
+
+    private static boolean isNegative(double value) {
+        return Double.doubleToRawLongBits(value) < 0 && !Double.isNaN(value);
+    }
+}
@@ -0,0 +1,43 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to carbon at a fixed host and port, giving up if the connection has not been
+ * established within a timeout.
+ */
+public class DefaultChannelProvider implements ChannelProvider {
+    private final String host;
+    private final int port;
+    private final int connectTimeoutMillis;
+
+    public DefaultChannelProvider(String host, int port) {
+        this(host, port, TimeoutSocketProvider.DEFAULT_CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param connectTimeout how long to wait for a connection, or 0 to wait indefinitely
+     * @param unit           the unit of {@code connectTimeout}
+     */
+    public DefaultChannelProvider(String host, int port, long connectTimeout, TimeUnit unit) {
+        this.host = host;
+        this.port = port;
+        this.connectTimeoutMillis = TimeoutSocketProvider.toTimeoutMillis(connectTimeout, unit);
+    }
+
+    @Override
+    public SocketChannel get() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            // a blocking channel's socket adaptor honours the timeout
+            channel.socket().connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+}
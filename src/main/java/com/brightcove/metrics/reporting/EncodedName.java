@@ -0,0 +1,59 @@
+package com.brightcove.metrics.reporting;
+
+/**
+ * The pickle-encoded name of a data point, and which destination it is sent to.
+ *
+ * When unchanged data points are suppressed it also remembers the last value that was
+ * sent under this name, until the batch holding it turns out not to have been sent.
+ * Like the name cache it lives in, it belongs to one pickler, except that a send queue
+ * that drops the batch may {@link #forget} the value from its own thread.
+ */
+final class EncodedName {
+    final byte[] bytes;
+    final int shard;
+
+    private volatile boolean sent;
+    private byte lastType;
+    private long lastBits;
+    private Object lastObject;
+    private long lastSent;
+
+    EncodedName(byte[] bytes, int shard) {
+        this.bytes = bytes;
+        this.shard = shard;
+    }
+
+    /**
+     * Check a data point against the last one sent, and remember it if it is going to be
+     * sent.
+     *
+     * @param type      one of the {@link MetricTuple} types
+     * @param bits      the int value, or the bits of the float value
+     * @param object    the object value, or null
+     * @param timestamp when the data point was taken, in seconds
+     * @param heartbeat send the value again once this many seconds have passed
+     * @return true if the data point can be skipped
+     */
+    boolean isUnchanged(byte type, long bits, Object object, long timestamp, long heartbeat) {
+        if (sent && type == lastType && bits == lastBits
+                && (object == null ? lastObject == null : object.equals(lastObject))
+                && timestamp - lastSent < heartbeat) {
+            return true;
+        }
+        sent = true;
+        lastType = type;
+        lastBits = bits;
+        lastObject = object;
+        lastSent = timestamp;
+        return false;
+    }
+
+    /**
+     * Forget the last value, whose batch was not sent after all, so that the next one is
+     * sent whether it has changed or not. Forgetting a newer value than the one that was
+     * not sent only costs sending it again.
+     */
+    void forget() {
+        sent = false;
+    }
+}
@@ -0,0 +1,19 @@
+package com.brightcove.metrics.reporting;
+
+/**
+ * How floating point values are written when they are sent as strings, which is the
+ * case for {@link PickleProtocol#PROTOCOL_0}. Protocol 2 sends floats in binary and
+ * is not affected.
+ */
+public enum FloatFormat {
+    /**
+     * Two decimal places, identical to {@code String.format("%2.2f", value)}. This is
+     * the default, but it truncates small rates and latencies.
+     */
+    FIXED_TWO_DECIMALS,
+
+    /**
+     * The shortest decimal string that parses back to exactly the same double.
+     */
+    SHORTEST_ROUND_TRIP
+}
@@ -0,0 +1,23 @@
+package com.brightcove.metrics.reporting;
+
+/**
+ * Destination for pickled messages. Each message is sent as a 4 byte length header
+ * followed by the payload.
+ */
+interface FrameWriter {
+
+    /**
+     * Send one pickled payload. The caller may reuse the buffer once this returns.
+     */
+    void write(PickleBuffer payload) throws Exception;
+
+    /**
+     * Called at the end of every reporting cycle.
+     */
+    void endCycle();
+
+    /**
+     * Release any connections and threads.
+     */
+    void close();
+}
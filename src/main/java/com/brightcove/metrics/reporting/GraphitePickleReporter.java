@@ -2,28 +2,49 @@ package com.brightcove.metrics.reporting;
 
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metered;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricProcessor;
 import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Sampling;
+import com.yammer.metrics.core.Summarizable;
+import com.yammer.metrics.core.Timer;
 import com.yammer.metrics.core.VirtualMachineMetrics;
-import com.yammer.metrics.reporting.AbstractPollingReporter;
+import com.yammer.metrics.stats.Snapshot;
 import com.yammer.metrics.reporting.GraphiteReporter;
 import com.yammer.metrics.reporting.SocketProvider;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.lang.reflect.Field;
-import java.net.Socket;
-import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -32,12 +53,87 @@ import java.util.concurrent.TimeUnit;
  */
 public class GraphitePickleReporter extends GraphiteReporter {
     private static final Logger LOG = LoggerFactory.getLogger(GraphitePickleReporter.class);
+    private static final String SCHEDULER_NAME = "graphite-pickle-reporter";
     final static int DEFAULT_BATCH_SIZE = 100;
+    final static int DEFAULT_NAME_CACHE_SIZE = 250000;
+    final static int DEFAULT_NAME_CACHE_IDLE_CYCLES = 10;
+    final static int DEFAULT_OUTBOX_REPLAY_BATCHES = 100;
+    final static int DEFAULT_SHARD_QUEUE_CAPACITY = 16;
     public static final String CHARSET_NAME = "ISO-8859-1";
 
-    private final Locale locale = Locale.US;
     private MetricPickler pickler;
     private int batchSize = DEFAULT_BATCH_SIZE; // how many metrics per pickle payload?
+    private int batchBytes = 0; // or, how many bytes per pickle payload?
+    private int minBatchBytes = 0;
+    private long batchWriteTargetNanos = 0;
+    private boolean persistentConnection = false;
+    private PickleProtocol pickleProtocol = PickleProtocol.PROTOCOL_0;
+    private FloatFormat floatFormat = FloatFormat.FIXED_TWO_DECIMALS;
+    private boolean memoize = false;
+    private int sendQueueCapacity = 0;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private int nameCacheSize = DEFAULT_NAME_CACHE_SIZE;
+    private int nameCacheIdleCycles = DEFAULT_NAME_CACHE_IDLE_CYCLES;
+    private ChannelProvider channelProvider;
+    private File outboxDirectory;
+    private long outboxMaxBytes;
+    private int outboxReplayBatches = DEFAULT_OUTBOX_REPLAY_BATCHES;
+    private List<CarbonDestination> destinations;
+    private final List<RegistrySource> registries = new ArrayList<RegistrySource>();
+    private final List<MetricPredicate> tierPredicates = new ArrayList<MetricPredicate>();
+    private final List<Long> tierPeriods = new ArrayList<Long>();
+    private volatile ReportingTiers tiers;
+    private EnumSet<ValueName> valueNames = EnumSet.allOf(ValueName.class);
+    private final List<MetricPredicate> valueNamePredicates = new ArrayList<MetricPredicate>();
+    private final List<EnumSet<ValueName>> valueNameSets = new ArrayList<EnumSet<ValueName>>();
+    private long ticks;
+    // the tick being reported on, and whether the default tier is due in it
+    private long tick;
+    private boolean defaultTierDue = true;
+    private int parallelism = 1;
+    private long heartbeatSeconds = 0;
+    private Cadence flushCadence;
+    private long maxBufferBytes;
+    private volatile boolean bufferFlushDue = true;
+    private EnumSet<VmMetricGroup> vmMetricGroups = EnumSet.allOf(VmMetricGroup.class);
+    private Cadence vmMetricsCadence;
+    private VmMetrics vmMetrics;
+    private final VmSink vmSink = new VmSink();
+    private String selfMetricsPrefix;
+    private ReporterMetrics selfMetrics;
+    private long periodNanos;
+    private long alignJitterMillis = -1;
+    private String alignJitterKey;
+    private volatile AlignedSchedule schedule;
+    private volatile long missedRuns;
+    private long writeTimeoutNanos;
+    private final List<WriteWatchdog.Watched> watchedConnections = new ArrayList<WriteWatchdog.Watched>();
+    private final AtomicLong abortedWrites = new AtomicLong();
+    private long cycleBudgetNanos;
+    // of the cycle in progress, read by the traversal threads too
+    private volatile long cycleDeadlineNanos;
+    private volatile boolean cycleTimedOut;
+    // a write blocked on a full send queue waits until the cycle runs out of its budget
+    private final AsyncFrameWriter.Deadline cycleDeadline = new AsyncFrameWriter.Deadline() {
+        @Override
+        public long remainingNanos() {
+            long deadline = cycleDeadlineNanos;
+            return deadline == 0 ? Long.MAX_VALUE : Math.max(0, deadline - System.nanoTime());
+        }
+    };
+    private volatile boolean cycleFailed;
+    private volatile CycleOutcome lastCycleOutcome;
+    private final AtomicLongArray cycleOutcomes = new AtomicLongArray(CycleOutcome.values().length);
+    private ExecutorService traversalPool;
+    private boolean ownsTraversalPool;
+    private ScheduledExecutorService scheduler;
+    private Executor sendExecutor;
+    private volatile ScheduledFuture<?> scheduledRun;
+    private volatile boolean stopped;
+    // held while a scheduled cycle runs, so that shutdown can wait for it
+    private final ReentrantLock cycleLock = new ReentrantLock();
+    private MetricPickler[] partitionPicklers;
+    private List<List<Map.Entry<MetricName, Metric>>> partitions;
 
     
     public static void enable(long period, TimeUnit unit, String host, int port) {
@@ -87,10 +183,37 @@ public class GraphitePickleReporter extends GraphiteReporter {
             final GraphitePickleReporter reporter = new GraphitePickleReporter(metricsRegistry,
                                                                    prefix,
                                                                    predicate,
-                                                                   new DefaultSocketProvider(host,
-                                                                                             port),
+                                                                   new TimeoutSocketProvider(host, port),
+                                                                   Clock.defaultClock(),
+                                                                   batchSize);
+            reporter.start(period, unit);
+        } catch (Exception e) {
+            LOG.error("Error creating/starting Graphite reporter:", e);
+        }
+    }
+
+    /**
+     * Enables the graphite pickle reporter to send data to several carbon-caches with the
+     * specified period. Each metric goes to the destination that carbon-relay's
+     * consistent-hashing would pick; see {@link #setDestinations}.
+     *
+     * @param metricsRegistry the metrics registry
+     * @param period          the period between successive outputs
+     * @param unit            the time unit of {@code period}
+     * @param destinations    the carbon-caches, in the same order as carbon's DESTINATIONS
+     * @param prefix          the string which is prepended to all metric names
+     * @param predicate       filters metrics to be reported
+     */
+    public static void enable(MetricsRegistry metricsRegistry, long period, TimeUnit unit,
+            List<CarbonDestination> destinations, String prefix, MetricPredicate predicate, int batchSize) {
+        try {
+            final GraphitePickleReporter reporter = new GraphitePickleReporter(metricsRegistry,
+                                                                   prefix,
+                                                                   predicate,
+                                                                   destinations.get(0).getSocketProvider(),
                                                                    Clock.defaultClock(),
                                                                    batchSize);
+            reporter.setDestinations(destinations);
             reporter.start(period, unit);
         } catch (Exception e) {
             LOG.error("Error creating/starting Graphite reporter:", e);
@@ -122,7 +245,7 @@ public class GraphitePickleReporter extends GraphiteReporter {
         this(metricsRegistry,
              prefix,
              MetricPredicate.ALL,
-             new DefaultSocketProvider(host, port),
+             new TimeoutSocketProvider(host, port),
              Clock.defaultClock());
     }
 
@@ -165,251 +288,1712 @@ public class GraphitePickleReporter extends GraphiteReporter {
      * @param predicate       filters metrics to be reported
      * @param socketProvider  a {@link SocketProvider} instance
      * @param clock           a {@link Clock} instance
-     * @param virtualMachine  a {@link VirtualMachineMetrics} instance
+     * @param virtualMachine  a {@link VirtualMachineMetrics} instance. Unless it is the
+     *                        default {@link VirtualMachineMetrics#getInstance()}, the VM
+     *                        metrics are read from it as {@link GraphiteReporter} reads
+     *                        them, and {@link #setVmMetricGroups} does not apply.
      * @param batchSize       how many data points should accumulate into a single pickle message
      * @throws IOException if there is an error connecting to the Graphite server
      */
     public GraphitePickleReporter(MetricsRegistry metricsRegistry, String prefix, MetricPredicate predicate, SocketProvider socketProvider, Clock clock, VirtualMachineMetrics virtualMachine, int batchSize) throws IOException {
-        super(metricsRegistry, prefix, predicate, socketProvider, clock, virtualMachine, "graphite-pickle-reporter");
+        super(metricsRegistry, prefix, predicate, socketProvider, clock, virtualMachine, SCHEDULER_NAME);
         this.batchSize = batchSize;
     }
 
     /**
-     * Create the pickler if it hasn't already been created.
+     * Cut batches by size instead of by count. Data points are added to a batch until the
+     * next one would take the pickled message over {@code maxBytes}, so short names share
+     * large messages. The batch size given to the constructor no longer applies.
+     *
+     * Messages are never longer than carbon's pickle receiver accepts (1MB), whether or
+     * not this is used. This must be called before the reporter is started.
+     *
+     * @param maxBytes the longest a pickled message may be
      */
-    private synchronized MetricPickler getPickler() {
-        if (pickler == null) {
-            pickler = new MetricPickler(prefix, socketProvider, batchSize);
+    public void setBatchBytes(int maxBytes) {
+        setAdaptiveBatchBytes(maxBytes, maxBytes, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Cut batches by size, like {@link #setBatchBytes}, and tune the size to each
+     * destination: it starts at {@code minBytes}, grows while messages are written well
+     * within {@code targetWriteLatency} and is halved when a write takes longer. With
+     * {@link #setAsyncSend} the latency is that of handing the message to the send queue.
+     *
+     * This must be called before the reporter is started.
+     *
+     * @param minBytes           the smallest budget
+     * @param maxBytes           the largest budget
+     * @param targetWriteLatency how long writing one message should take
+     * @param unit               the unit of {@code targetWriteLatency}
+     */
+    public void setAdaptiveBatchBytes(int minBytes, int maxBytes, long targetWriteLatency, TimeUnit unit) {
+        if (minBytes <= 0 || minBytes > maxBytes || maxBytes > BatchBudget.CARBON_MAX_LENGTH) {
+            throw new IllegalArgumentException("Expected 0 < minBytes <= maxBytes <= " + BatchBudget.CARBON_MAX_LENGTH);
         }
-        return pickler;
+        this.minBatchBytes = minBytes;
+        this.batchBytes = maxBytes;
+        this.batchWriteTargetNanos = unit.toNanos(targetWriteLatency);
     }
 
-    @Override
-    public void run() {
-        try {
-            if (getPickler() != null) {
-                final long epoch = clock.time() / 1000;
-                if (this.printVMMetrics) {
-                    printVmMetrics(epoch);
+    /**
+     * Keep a single connection to graphite open across batches and reporting cycles
+     * instead of opening a new socket for every batch. All batches in a cycle are
+     * written back-to-back on the same stream. A broken connection is detected and
+     * replaced on the next write.
+     *
+     * This must be called before the reporter is started.
+     *
+     * @param persistentConnection whether to reuse the connection to graphite
+     */
+    public void setPersistentConnection(boolean persistentConnection) {
+        this.persistentConnection = persistentConnection;
+    }
+
+    /**
+     * Choose the pickle protocol used to encode metrics. {@link PickleProtocol#PROTOCOL_2}
+     * sends timestamps and values as binary numbers instead of strings.
+     *
+     * This must be called before the reporter is started.
+     *
+     * @param pickleProtocol the pickle protocol, {@link PickleProtocol#PROTOCOL_0} by default
+     */
+    public void setPickleProtocol(PickleProtocol pickleProtocol) {
+        this.pickleProtocol = pickleProtocol;
+    }
+
+    /**
+     * Choose how floating point values are written when they are sent as strings
+     * (pickle protocol 0). {@link FloatFormat#SHORTEST_ROUND_TRIP} keeps full precision
+     * for small rates and latencies that two decimal places would truncate.
+     *
+     * This must be called before the reporter is started.
+     *
+     * @param floatFormat the float format, {@link FloatFormat#FIXED_TWO_DECIMALS} by default
+     */
+    public void setFloatFormat(FloatFormat floatFormat) {
+        this.floatFormat = floatFormat;
+    }
+
+    /**
+     * Use the pickle memo to avoid repeating objects within a message. The timestamp
+     * shared by every data point, and each (timestamp, value) tuple that occurs more
+     * than once, is written once and then referenced from the memo.
+     *
+     * This must be called before the reporter is started.
+     *
+     * @param memoize whether to memoize repeated objects, false by default
+     */
+    public void setMemoize(boolean memoize) {
+        this.memoize = memoize;
+    }
+
+    /**
+     * Send batches from a dedicated thread. The reporting thread only encodes batches
+     * and hands them over through a queue holding up to {@code capacity} batches, so a
+     * slow graphite server no longer stretches out the reporting cycle. When the queue
+     * is full the {@code overflowPolicy} decides what happens to the next batch. With
+     * {@link OverflowPolicy#BLOCK} and a {@link #setCycleBudget cycle budget}, a batch
+     * that is still waiting for room when the budget runs out is dropped.
+     *
+     * This must be called before the reporter is started.
+     *
+     * @param capacity       how many batches may wait to be sent
+     * @param overflowPolicy what to do when the queue is full
+     */
+    public void setAsyncSend(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.sendQueueCapacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return how many batches were dropped because the send queue was full
+     */
+    public synchronized long getDroppedBatches() {
+        long dropped = 0;
+        if (pickler != null) {
+            for (Shard shard : pickler.shards) {
+                if (shard.writer instanceof AsyncFrameWriter) {
+                    dropped += ((AsyncFrameWriter) shard.writer).getDroppedBatches();
                 }
-                printRegularMetrics(epoch);
-            }
-        } catch (Exception e) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Error writing to Graphite", e);
-            } else {
-                LOG.warn("Error writing to Graphite: {}", e.getMessage());
-            }
-        } finally {
-            if(getPickler() != null) {
-                // finish writing any left over metrics
-                getPickler().writeMetrics();
             }
         }
+        return dropped;
     }
 
     /**
-     * Starts the reporter polling at the given period.
+     * Send to graphite over channels from {@code channelProvider} instead of sockets from
+     * the {@code SocketProvider}. Each message is written from reusable direct buffers
+     * with a single gathering write. {@link #setPersistentConnection} applies as well.
      *
-     * @param period    the amount of time between polls
-     * @param unit      the unit for {@code period}
+     * This must be called before the reporter is started.
+     *
+     * @param channelProvider opens channels to carbon, e.g. {@link DefaultChannelProvider}
      */
-    @Override
-    public void start(long period, TimeUnit unit) {
-        // the parent class uses scheduleWithFixedDelay, but we really want scheduleAtFixedRate
-        // try to get a hold of the executor and fall back to the parent if necessary
-        // remove this when we upgrade to metrics 3.0
-        ScheduledExecutorService executor = null;
-        try {
-            Field field = AbstractPollingReporter.class.getDeclaredField("executor");
-            field.setAccessible(true);
-            Object value = field.get(this);
-            if (value instanceof ScheduledExecutorService) {
-                executor = (ScheduledExecutorService) value;
-            }
-        } catch (Throwable t) {
-            LOG.warn("Unable to use scheduleAtFixedRate", t);
-        }
-        if (executor != null) {
-            LOG.debug("Using scheduleAtFixedRate instead of default");
-            executor.scheduleAtFixedRate(this, period, period, unit);
-        } else {
-            super.start(period, unit);
-        }
+    public void setChannelProvider(ChannelProvider channelProvider) {
+        this.channelProvider = channelProvider;
     }
 
-    @Override
-    protected void sendInt(long timestamp, String name, String valueName, long value) {
-        getPickler().addMetric(timestamp, name, valueName, String.format(locale, "%d", value));
+    /**
+     * Keep batches that could not be sent in memory-mapped files under {@code directory}
+     * and send them again, oldest first, once graphite is reachable. At most
+     * {@code replayBatchesPerCycle} stored batches are replayed each reporting cycle.
+     * When the outbox reaches {@code maxBytes} the oldest batches are discarded. The
+     * outbox keeps at least two segments of 64KB, so it can use up to 128KB of disk
+     * however small {@code maxBytes} is.
+     *
+     * Batches left in the directory are replayed after a restart, so each reporter
+     * needs a directory of its own. With several destinations each one has an outbox of
+     * up to {@code maxBytes} in a directory of its own under {@code directory}.
+     *
+     * This must be called before the reporter is started.
+     *
+     * @param directory             where to keep the outbox; created if missing
+     * @param maxBytes              the most disk space to use; less than 128KB counts as 128KB
+     * @param replayBatchesPerCycle the most stored batches to send each cycle
+     */
+    public void setOutbox(File directory, long maxBytes, int replayBatchesPerCycle) {
+        if (maxBytes <= 0 || replayBatchesPerCycle <= 0) {
+            throw new IllegalArgumentException("maxBytes and replayBatchesPerCycle must be positive");
+        }
+        this.outboxDirectory = directory;
+        this.outboxMaxBytes = maxBytes;
+        this.outboxReplayBatches = replayBatchesPerCycle;
     }
 
-    
-    @Override
-    protected void sendFloat(long timestamp, String name, String valueName, double value) {
-        getPickler().addMetric(timestamp, name, valueName, String.format(locale, "%2.2f", value));
+    /**
+     * @return how many batches are waiting in the outbox
+     */
+    public synchronized long getOutboxPendingBatches() {
+        long pending = 0;
+        if (pickler != null) {
+            for (Shard shard : pickler.shards) {
+                pending += shard.outbox == null ? 0 : shard.outbox.getPendingBatches();
+            }
+        }
+        return pending;
     }
 
-    @Override
-    protected void sendObjToGraphite(long timestamp, String name, String valueName, Object value) {
-        getPickler().addMetric(timestamp, name, valueName, String.format(locale, "%s", value));
+    /**
+     * @return how many batches were discarded because the outbox was full
+     */
+    public synchronized long getOutboxEvictedBatches() {
+        long evicted = 0;
+        if (pickler != null) {
+            for (Shard shard : pickler.shards) {
+                evicted += shard.outbox == null ? 0 : shard.outbox.getEvictedBatches();
+            }
+        }
+        return evicted;
     }
 
-    @SuppressWarnings("restriction")
-    private class MetricPickler {
-        
-        private String prefix;
-        private SocketProvider socketProvider;
-        private int batchSize;
+    /**
+     * Send to several carbon-caches instead of the {@code SocketProvider} given to the
+     * constructor, without a carbon-relay in between. Each metric name is placed on
+     * carbon's consistent hash ring, so every metric goes to the same carbon-cache that
+     * a carbon-relay with {@code RELAY_METHOD = consistent-hashing} and the same
+     * DESTINATIONS, in the same order, would send it to.
+     *
+     * Batches are built per destination and every destination is written to from a
+     * sender thread of its own, with a queue of {@link #setAsyncSend} batches or
+     * {@value #DEFAULT_SHARD_QUEUE_CAPACITY} if that is not set. Connections are made
+     * with each destination's {@code SocketProvider}; {@link #setChannelProvider} only
+     * applies to a single destination.
+     *
+     * This must be called before the reporter is started.
+     *
+     * @param destinations the carbon-caches, in the same order as carbon's DESTINATIONS
+     */
+    public void setDestinations(List<CarbonDestination> destinations) {
+        if (destinations.isEmpty()) {
+            throw new IllegalArgumentException("At least one destination is required");
+        }
+        this.destinations = new ArrayList<CarbonDestination>(destinations);
+    }
 
-        // graphite expects a python-pickled list of nested tuples.
-        List<MetricTuple> metrics = new LinkedList<MetricTuple>();
+    /**
+     * Also report on another registry, with its own prefix and predicate, in every cycle.
+     * Its metrics are pickled into the same batches and sent over the same connections
+     * as those of the reporter's own registry, so registries can be added without adding
+     * threads or sockets. VM metrics are only reported once, with the reporter's prefix.
+     *
+     * Every registry has a name cache of its own, of the size given to
+     * {@link #setNameCache}. This must be called before the reporter is started.
+     *
+     * @param registry  the registry to report on
+     * @param prefix    is prepended to the names of its metrics
+     * @param predicate filters its metrics
+     */
+    public void addRegistry(MetricsRegistry registry, String prefix, MetricPredicate predicate) {
+        registries.add(new RegistrySource(registry, prefix == null ? "" : prefix + ".", predicate));
+    }
 
-        MetricPickler(String prefix, SocketProvider socketProvider, int batchSize) {
-            this.prefix = prefix;
-            this.socketProvider = socketProvider;
-            this.batchSize = batchSize;
-            
-            LOG.debug("Created metric pickler with prefix {} and batchSize {}", prefix, batchSize);
+    /**
+     * Report the metrics that match {@code predicate} every {@code period} instead of
+     * at the period the reporter is started with. The tier's predicate narrows the
+     * reporter's own, so only metrics that match both are in the tier, and metrics the
+     * reporter's predicate rejects are never reported. A metric belongs to the first
+     * tier it matches; metrics that match none are reported at the reporter's own
+     * period. Metrics are sorted into tiers as they are registered, so a cycle only
+     * walks the metrics that are due.
+     *
+     * The reporter runs at the greatest common divisor of all the periods, and all tiers
+     * share its batches and connections. VM metrics and registries added with
+     * {@link #addRegistry} are reported at the reporter's own period, and the name
+     * cache counts idle cycles of that period. This must be called before the reporter
+     * is started.
+     *
+     * @param predicate selects the metrics of the tier
+     * @param period    how often to report them
+     * @param unit      the unit of {@code period}
+     */
+    public void addTier(MetricPredicate predicate, long period, TimeUnit unit) {
+        if (unit.toMillis(period) <= 0) {
+            throw new IllegalArgumentException("period must be at least a millisecond");
         }
-        
-        /**
-         * Convert the metric to a python tuple of the form:
-         * 
-         *      (timestamp, (name, value))
-         *      
-         * And add it to the list of metrics. 
-         * If we reach the batch size, write them out.
-         */
-        public void addMetric(long timestamp, String name, String valueName, String value) {
-            StringBuilder metricName = new StringBuilder(sanitizeString(name));
-            if (!prefix.isEmpty()) {
-                metricName.insert(0, prefix);
-            }
-            metricName.append(".").append(valueName);
+        tierPredicates.add(predicate);
+        tierPeriods.add(unit.toMillis(period));
+    }
+
+    /**
+     * Only report these values of counters, meters, histograms and timers, rather than
+     * all of them. Values that are not reported are not computed either: in particular
+     * histograms and timers are not snapshotted unless a percentile is selected. Gauges
+     * always report their value. This must be called before the reporter is started.
+     *
+     * @param valueNames the values to report for metrics that do not match a predicate
+     *                   given to {@link #setValueNames(MetricPredicate, Set)}
+     */
+    public void setValueNames(Set<ValueName> valueNames) {
+        this.valueNames = valueNames.isEmpty() ? EnumSet.noneOf(ValueName.class) : EnumSet.copyOf(valueNames);
+    }
 
-            metrics.add(new MetricTuple(metricName.toString(), timestamp, value));
+    /**
+     * Only report these values of the metrics that match {@code predicate}, as with
+     * {@link #setValueNames(Set)}. A metric gets the values of the first predicate it
+     * matches. To select by metric type, match on the class of the metric. This must
+     * be called before the reporter is started.
+     *
+     * @param predicate  selects the metrics
+     * @param valueNames the values to report for them
+     */
+    public void setValueNames(MetricPredicate predicate, Set<ValueName> valueNames) {
+        valueNamePredicates.add(predicate);
+        valueNameSets.add(valueNames.isEmpty() ? EnumSet.noneOf(ValueName.class) : EnumSet.copyOf(valueNames));
+    }
 
-            if(metrics.size() >= batchSize) {
-                writeMetrics();
+    /**
+     * @return the values to report for a metric
+     */
+    private EnumSet<ValueName> valueNamesOf(MetricName name, Metric metric) {
+        for (int i = 0; i < valueNamePredicates.size(); i++) {
+            if (valueNamePredicates.get(i).matches(name, metric)) {
+                return valueNameSets.get(i);
             }
         }
+        return valueNames;
+    }
 
-        /**
-         * 1. Run the pickler script to package all the pending metrics into a single message
-         * 2. Send the message to graphite
-         * 3. Clear out the list of metrics 
-         */
-        private void writeMetrics() {
-            if (metrics.size() > 0) {
-                try {
-                    String payload = pickleMetrics(metrics);
+    /**
+     * Limit the cache of encoded metric names. Once it holds {@code size} names the
+     * least recently used metrics are evicted, and metrics that have not been reported
+     * for {@code idleCycles} reporting cycles are evicted as well.
+     *
+     * This must be called before the reporter is started.
+     *
+     * @param size       the most names to cache, or 0 to disable the cache
+     * @param idleCycles evict metrics not reported for this many cycles, or 0 to keep them
+     */
+    public void setNameCache(int size, int idleCycles) {
+        this.nameCacheSize = size;
+        this.nameCacheIdleCycles = idleCycles;
+    }
 
-                    int length = payload.length();
-                    byte[] header = ByteBuffer.allocate(4).putInt(length).array();
+    /**
+     * @return how many metric names were found in the name cache
+     */
+    public synchronized long getNameCacheHits() {
+        long hits = 0;
+        for (MetricPickler each : allPicklers()) {
+            for (MetricNameCache cache : each.nameCaches) {
+                hits += cache.hits();
+            }
+        }
+        return hits;
+    }
 
-                    Socket socket = null;
-                    try {
-                        socket = socketProvider.get();
-
-                        OutputStream out = socket.getOutputStream();
-                        out.write(header);
-
-                        Writer pickleWriter = new OutputStreamWriter(out, CHARSET_NAME);
-                        pickleWriter.write(payload);
-                        pickleWriter.flush();
-                    } finally {
-                        if (socket != null) {
-                            socket.shutdownOutput();
-                            socket.close();
-                        }
-                    }
-                } catch (Exception e) {
-                    if (LOG.isDebugEnabled()) {
-                        LOG.debug("Error writing to Graphite", e);
-                    } else {
-                        LOG.warn("Error writing to Graphite: {}", e.getMessage());
-                    }
-                }
-                
-                // if there was an error, we might miss some data. for now, drop those on the floor and
-                // try to keep going.
-                LOG.debug("Wrote {} metrics", metrics.size());
-                
-                metrics.clear();
+    /**
+     * @return how many metric names had to be built because they were not cached
+     */
+    public synchronized long getNameCacheMisses() {
+        long misses = 0;
+        for (MetricPickler each : allPicklers()) {
+            for (MetricNameCache cache : each.nameCaches) {
+                misses += cache.misses();
             }
         }
+        return misses;
+    }
 
-        /**
-         * Minimally necessary pickle opcodes.
-         */
-        char 
-            MARK = '(',
-            STOP = '.',
-            LONG = 'L',
-            STRING = 'S',
-            APPEND = 'a',
-            LIST = 'l',
-            TUPLE = 't';
+    /**
+     * @return how many metric names are in the name cache
+     */
+    public synchronized int getNameCacheSize() {
+        int size = 0;
+        for (MetricPickler each : allPicklers()) {
+            for (MetricNameCache cache : each.nameCaches) {
+                size += cache.size();
+            }
+        }
+        return size;
+    }
 
-        /**
-         * See: http://readthedocs.org/docs/graphite/en/1.0/feeding-carbon.html
-         */
-        String pickleMetrics(List<MetricTuple> metrics) {
-            
-            StringBuilder pickled = new StringBuilder();
-            pickled.append(MARK);
-            pickled.append(LIST);
+    /**
+     * Process the registry on {@code parallelism} threads of a fork-join pool instead of
+     * the reporter's own thread. The metrics are split into as many partitions, and each
+     * metric always falls in the same partition. Every partition has a pickler of its
+     * own, with its own batches, encoder and share of the name cache, so data points are
+     * encoded without taking any locks. Finished batches from all partitions are sent
+     * through the same connections.
+     *
+     * VM metrics are still processed on the reporter's thread. This must be called
+     * before the reporter is started.
+     *
+     * @param parallelism how many threads to use, or 1 to process the registry serially
+     */
+    public void setParallelism(int parallelism) {
+        setParallelism(parallelism, null);
+    }
 
-            for (MetricTuple tuple : metrics) {
-                // start the outer tuple
-                pickled.append(MARK);
+    /**
+     * Like {@link #setParallelism(int)}, but process the partitions on {@code executor}
+     * instead of a fork-join pool of the reporter's own, so that reporters can share
+     * their traversal threads. The executor belongs to the caller and is not shut down
+     * with the reporter. It must not be the executor the cycles run on, unless it has
+     * threads to spare while a cycle waits for its partitions.
+     *
+     * @param parallelism how many partitions to split the registry into
+     * @param executor    where to process them, or null for a pool of the reporter's own
+     */
+    public void setParallelism(int parallelism, ExecutorService executor) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+        this.traversalPool = executor;
+        this.ownsTraversalPool = executor == null;
+    }
 
-                // the metric name is a string.
-                pickled.append(STRING);
-                // the single quotes are to match python's repr("abcd")
-                pickled.append('\'');
-                pickled.append(tuple.name);
-                pickled.append('\'');
-                pickled.append('\n');
+    /**
+     * Run the cycles on {@code scheduler} instead of the reporter's own thread, so that
+     * many reporters can share a few threads. The scheduler belongs to the caller: the
+     * reporter cancels its runs when it is shut down, but leaves the scheduler running.
+     * Cycles of different reporters run concurrently if the scheduler has the threads
+     * for it, and each reporter's cycles never overlap. This must be called before the
+     * reporter is started.
+     *
+     * @param scheduler where to run the cycles, or null for the reporter's own thread
+     */
+    public void setScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
 
-                // start the inner tuple
-                pickled.append(MARK);
+    /**
+     * Send on {@code executor} instead of a thread of each connection's own when there
+     * is a send queue (see {@link #setAsyncSend}). A connection's batches are sent in
+     * order, by one task at a time, and the task ends when the queue is empty, so an
+     * executor that starts a thread per task, such as one of virtual threads, only
+     * holds a thread while there is something to send. The executor belongs to the
+     * caller and is not shut down with the reporter. This must be called before the
+     * reporter is started.
+     *
+     * @param executor where to send, or null for a thread per connection
+     */
+    public void setSendExecutor(Executor executor) {
+        this.sendExecutor = executor;
+    }
 
-                // timestamp is a long
-                pickled.append(LONG);
-                pickled.append(tuple.timestamp);
-                // the trailing L is to match python's repr(long(1234))
-                pickled.append('L');
-                pickled.append('\n');
+    /**
+     * Skip data points whose value has not changed since it was last sent, which is
+     * usually most of them for idle counters and flat gauges. Every value is sent again
+     * once {@code heartbeat} has passed so that there are no long gaps in whisper.
+     *
+     * The last value is kept with the cached name of each data point, so a data point
+     * whose name is not cached (see {@link #setNameCache}) is always sent. This must be
+     * called before the reporter is started.
+     *
+     * @param heartbeat how often to send a value even if it has not changed
+     * @param unit      the unit of {@code heartbeat}
+     */
+    public void setSuppressUnchanged(long heartbeat, TimeUnit unit) {
+        long seconds = unit.toSeconds(heartbeat);
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("heartbeat must be at least a second");
+        }
+        this.heartbeatSeconds = seconds;
+    }
 
-                // and the value is a string.
-                pickled.append(STRING);
-                pickled.append('\'');
-                pickled.append(tuple.value);
-                pickled.append('\'');
-                pickled.append('\n');
+    /**
+     * @return how many data points were skipped because their value had not changed
+     */
+    public synchronized long getSuppressedPoints() {
+        long suppressed = 0;
+        for (MetricPickler each : allPicklers()) {
+            suppressed += each.suppressed;
+        }
+        return suppressed;
+    }
 
-                pickled.append(TUPLE); // inner close
-                pickled.append(TUPLE); // outer close
+    /**
+     * Collect data points every cycle, but only send them every {@code flushInterval}.
+     * Between flushes the data points are kept in memory, compactly, each with the
+     * timestamp of the cycle that collected it, and a flush sends everything collected
+     * since the last one in as few messages as carbon accepts. The batch size given to
+     * the constructor does not apply to flushes; {@link #setBatchBytes} still does. With
+     * {@link #setPersistentConnection} a flush is sent over a single connection.
+     *
+     * Once the buffered data points take up {@code maxBufferBytes} they are sent
+     * straight away. Whatever has been collected is also sent when the reporter is shut
+     * down. This must be called before the reporter is started.
+     *
+     * @param flushInterval  how often to send, a multiple of the period
+     * @param unit           the unit of {@code flushInterval}
+     * @param maxBufferBytes roughly how much memory the buffered data points may take up
+     */
+    public void setFlushInterval(long flushInterval, TimeUnit unit, long maxBufferBytes) {
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException("flushInterval must be positive");
+        }
+        if (maxBufferBytes <= 0) {
+            throw new IllegalArgumentException("maxBufferBytes must be positive");
+        }
+        this.flushCadence = new Cadence(unit.toMillis(flushInterval), false);
+        this.maxBufferBytes = maxBufferBytes;
+    }
 
-                pickled.append(APPEND);
+    /**
+     * @return how many data points have been collected but not sent yet
+     */
+    public synchronized long getBufferedPoints() {
+        long buffered = 0;
+        for (MetricPickler each : allPicklers()) {
+            if (each.buffer != null) {
+                buffered += each.buffer.size();
             }
+        }
+        return buffered;
+    }
+
+    /**
+     * @return whether this cycle sends the data points collected since the last flush
+     */
+    private boolean isBufferFlushDue() {
+        return flushCadence == null || flushCadence.isDue(clock.time(), TimeUnit.NANOSECONDS.toMillis(periodNanos));
+    }
+
+    /**
+     * Collect VM metrics every {@code period} instead of every cycle, or every cycle of
+     * the default tier with {@link #addTier}. The period is rounded to a multiple of the
+     * reporting period.
+     *
+     * This must be called before the reporter is started.
+     *
+     * @param period how often to collect VM metrics
+     * @param unit   the unit of {@code period}
+     */
+    public void setVmMetricsPeriod(long period, TimeUnit unit) {
+        this.vmMetricsCadence = new Cadence(unit.toMillis(period), true);
+    }
+
+    /**
+     * Choose which groups of VM metrics are collected when {@code printVMMetrics} is
+     * on. All of them are by default. Groups that are left out are not read at all; see
+     * {@link VmMetricGroup#THREAD_STATES} in particular. This does not apply when a
+     * {@link VirtualMachineMetrics} of the caller's was given to the constructor.
+     *
+     * This must be called before the reporter is started.
+     *
+     * @param groups the groups to collect
+     */
+    public void setVmMetricGroups(Set<VmMetricGroup> groups) {
+        this.vmMetricGroups = groups.isEmpty() ? EnumSet.noneOf(VmMetricGroup.class) : EnumSet.copyOf(groups);
+    }
 
-            // every pickle ends with STOP
-            pickled.append(STOP);
-            return pickled.toString();
+    /**
+     * @return whether VM metrics are collected in this cycle
+     */
+    private boolean isVmMetricsDue() {
+        if (vmMetricsCadence == null) {
+            return defaultTierDue;
         }
+        return vmMetricsCadence.isDue(clock.time(), TimeUnit.NANOSECONDS.toMillis(periodNanos));
+    }
 
-        class MetricTuple {
-            String name;
-            long timestamp;
-            String value;
-            MetricTuple(String name, long timestamp, String value) {
-                this.name = name;
-                this.timestamp = timestamp;
-                this.value = value;
-            }
+    /**
+     * Send the VM metrics {@link GraphiteReporter} does, under the same names, from
+     * MXBeans that are looked up once and only for the groups that are enabled. A
+     * {@link VirtualMachineMetrics} given to the constructor is read the way
+     * {@link GraphiteReporter} reads it instead.
+     */
+    @Override
+    protected void printVmMetrics(long epoch) {
+        if (vm != VirtualMachineMetrics.getInstance()) {
+            super.printVmMetrics(epoch);
+            return;
         }
+        if (vmMetrics == null) {
+            vmMetrics = new VmMetrics(vmMetricGroups, vmSink);
+        }
+        vmMetrics.report(epoch, vmSink);
+    }
 
+    /**
+     * Register metrics about the reporter itself in the registry it reports on, named
+     * {@code <subPrefix>.reporter.<name>}:
+     * <ul>
+     *     <li>run, pickle and write: timers of each cycle, of encoding each batch and of
+     *     writing each batch to carbon</li>
+     *     <li>bytes, batches and points: how much was sent in the last cycle</li>
+     *     <li>connection-failures, dropped-points and overruns: counters of failed writes,
+     *     data points lost to them or dropped by the send queue, and cycles that took
+     *     longer than the period</li>
+     *     <li>timeouts and skipped-runs: counters of cycles that ran out of their budget
+     *     and of runs skipped because the cycle before finished too late</li>
+     * </ul>
+     * They are updated once a cycle has finished, so each cycle reports on the one before.
+     *
+     * This must be called before the reporter is started.
+     *
+     * @param subPrefix the group the metrics are registered under
+     */
+    public void setSelfMetrics(String subPrefix) {
+        this.selfMetricsPrefix = subPrefix;
+    }
+
+    /**
+     * Run every cycle at a wall-clock period boundary plus a fixed, per-host offset of
+     * less than {@code maxJitter}, rather than {@code period} after the reporter was
+     * started. Data points are timestamped with the start of the period they report on,
+     * so they land exactly on whisper's slots, while a fleet that was restarted together
+     * spreads its sends across the jitter window. The offset is derived from the local
+     * host name.
+     *
+     * A cycle is only scheduled once the previous one has finished. If a cycle runs so
+     * late that periods were skipped, the skipped periods are logged and counted by
+     * {@link #getMissedRuns} rather than run back-to-back to catch up, and a period is
+     * never reported on twice.
+     *
+     * This must be called before the reporter is started.
+     *
+     * @param maxJitter the largest offset into the period, which must be less than the
+     *                  period
+     * @param unit      the unit of {@code maxJitter}
+     */
+    public void setAlignedSchedule(long maxJitter, TimeUnit unit) {
+        setAlignedSchedule(maxJitter, unit, localHostName());
+    }
+
+    /**
+     * Like {@link #setAlignedSchedule(long, TimeUnit)}, deriving the offset into each
+     * period from {@code jitterKey} instead of the host name.
+     *
+     * @param maxJitter the largest offset into the period, which must be less than the
+     *                  period
+     * @param unit      the unit of {@code maxJitter}
+     * @param jitterKey identifies this reporter among the fleet
+     */
+    public void setAlignedSchedule(long maxJitter, TimeUnit unit, String jitterKey) {
+        if (maxJitter < 0) {
+            throw new IllegalArgumentException("maxJitter must not be negative");
+        }
+        this.alignJitterMillis = unit.toMillis(maxJitter);
+        this.alignJitterKey = jitterKey;
+    }
+
+    /**
+     * @return how many periods were not reported on because a cycle ran too late
+     */
+    public long getMissedRuns() {
+        return missedRuns;
+    }
+
+    /**
+     * Abort any write to carbon that takes longer than {@code timeout}, by closing its
+     * connection. Sockets have no write timeout of their own, so a carbon that accepts
+     * connections but has stopped reading would otherwise block the reporter until the
+     * connection drops. The aborted batch fails like any other, and a persistent
+     * connection is reopened for the next one. With {@link #setAsyncSend} this bounds the
+     * writes of the sender threads.
+     *
+     * Connecting is bounded separately, by the {@link SocketProvider};
+     * {@link TimeoutSocketProvider} is used unless another one is given.
+     *
+     * This must be called before the reporter is started.
+     *
+     * @param timeout how long a single write may take
+     * @param unit    the unit of {@code timeout}
+     */
+    public void setWriteTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        this.writeTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * @return how many writes were aborted for taking longer than the write timeout
+     */
+    public long getAbortedWrites() {
+        return abortedWrites.get();
+    }
+
+    /**
+     * Give up on a cycle that is still running {@code budget} after it started. The
+     * metrics that have not been processed are skipped and the batches that have not
+     * been written are dropped, so a slow carbon delays the next cycle by at most the
+     * budget and a single write. The cycle ends as {@link CycleOutcome#TIMED_OUT}.
+     *
+     * This must be called before the reporter is started.
+     *
+     * @param budget how long a cycle may take, usually less than the period
+     * @param unit   the unit of {@code budget}
+     */
+    public void setCycleBudget(long budget, TimeUnit unit) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("budget must be positive");
+        }
+        this.cycleBudgetNanos = unit.toNanos(budget);
+    }
+
+    /**
+     * @return how the last cycle ended, or null if none has run yet
+     */
+    public CycleOutcome getLastCycleOutcome() {
+        return lastCycleOutcome;
+    }
+
+    /**
+     * @return how many cycles have ended with {@code outcome}
+     */
+    public long getCycles(CycleOutcome outcome) {
+        return cycleOutcomes.get(outcome.ordinal());
+    }
+
+    private void recordOutcome(CycleOutcome outcome, long cycles) {
+        cycleOutcomes.addAndGet(outcome.ordinal(), cycles);
+        lastCycleOutcome = outcome;
+        if (selfMetrics != null) {
+            selfMetrics.cycleEnded(outcome, cycles);
+        }
+    }
+
+    /**
+     * @return whether the cycle in progress has run out of its budget
+     */
+    private boolean isCycleExpired() {
+        long deadline = cycleDeadlineNanos;
+        if (deadline == 0 || System.nanoTime() - deadline < 0) {
+            return false;
+        }
+        cycleTimedOut = true;
+        return true;
+    }
+
+    private static String localHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            LOG.warn("Unable to look up the host name, scheduling without jitter: {}", e.getMessage());
+            return "";
+        }
+    }
+
+    private List<MetricPickler> allPicklers() {
+        List<MetricPickler> picklers = new ArrayList<MetricPickler>();
+        if (pickler != null) {
+            picklers.add(pickler);
+        }
+        if (partitionPicklers != null) {
+            picklers.addAll(Arrays.asList(partitionPicklers));
+        }
+        return picklers;
+    }
+
+    /**
+     * Create the pickler if it hasn't already been created.
+     */
+    private synchronized MetricPickler getPickler() {
+        if (pickler == null) {
+            if (selfMetricsPrefix != null) {
+                selfMetrics = new ReporterMetrics(getMetricsRegistry(), selfMetricsPrefix);
+            }
+            Shard[] shards;
+            ConsistentHashRing ring = null;
+            if (destinations == null || destinations.size() == 1) {
+                FrameWriter writer;
+                if (channelProvider != null) {
+                    writer = new ChannelCarbonConnection(channelProvider, persistentConnection);
+                } else {
+                    SocketProvider provider = destinations == null ? socketProvider : destinations.get(0).getSocketProvider();
+                    writer = new CarbonConnection(provider, persistentConnection);
+                }
+                shards = new Shard[]{ newShard(writer, outboxDirectory, sendQueueCapacity) };
+            } else {
+                List<String> ringKeys = new ArrayList<String>();
+                shards = new Shard[destinations.size()];
+                for (int i = 0; i < shards.length; i++) {
+                    CarbonDestination destination = destinations.get(i);
+                    ringKeys.add(destination.ringKey());
+                    File directory = outboxDirectory == null ? null : new File(outboxDirectory,
+                            destination.getHost() + "_" + destination.getPort()
+                            + (destination.getInstance() == null ? "" : "_" + destination.getInstance()));
+                    shards[i] = newShard(new CarbonConnection(destination.getSocketProvider(), persistentConnection),
+                                         directory, sendQueueCapacity > 0 ? sendQueueCapacity : DEFAULT_SHARD_QUEUE_CAPACITY);
+                }
+                ring = new ConsistentHashRing(ringKeys, ConsistentHashRing.DEFAULT_REPLICAS);
+            }
+            if (parallelism > 1) {
+                // the partitions share the name cache and buffer budgets
+                int partitionCacheSize = nameCacheSize <= 0 ? nameCacheSize : Math.max(1, nameCacheSize / parallelism);
+                long partitionBufferBytes = Math.max(1, maxBufferBytes / parallelism);
+                partitionPicklers = new MetricPickler[parallelism];
+                partitions = new ArrayList<List<Map.Entry<MetricName, Metric>>>(parallelism);
+                for (int i = 0; i < parallelism; i++) {
+                    partitionPicklers[i] = newPickler(shards, ring, partitionCacheSize, partitionBufferBytes);
+                    partitions.add(new ArrayList<Map.Entry<MetricName, Metric>>());
+                }
+                if (traversalPool == null) {
+                    traversalPool = new ForkJoinPool(parallelism);
+                }
+            }
+            pickler = newPickler(shards, ring, nameCacheSize, maxBufferBytes);
+        }
+        return pickler;
+    }
+
+    private MetricPickler newPickler(Shard[] shards, ConsistentHashRing ring, int cacheSize, long bufferBytes) {
+        Batch[] batches = new Batch[shards.length];
+        for (int i = 0; i < batches.length; i++) {
+            BatchBudget budget = batchBytes > 0
+                    ? BatchBudget.adaptive(minBatchBytes, batchBytes, batchWriteTargetNanos)
+                    : BatchBudget.fixed(BatchBudget.CARBON_MAX_LENGTH);
+            batches[i] = new Batch(pickleProtocol.newEncoder(floatFormat, memoize), budget);
+        }
+        // the reporter's own registry comes first
+        String[] prefixes = new String[1 + registries.size()];
+        MetricNameCache[] nameCaches = new MetricNameCache[prefixes.length];
+        for (int i = 0; i < prefixes.length; i++) {
+            prefixes[i] = i == 0 ? prefix : registries.get(i - 1).prefix;
+            nameCaches[i] = new MetricNameCache(cacheSize, nameCacheIdleCycles);
+        }
+        MetricPickler pickler = new MetricPickler(prefixes, shards, batches, ring,
+                                                  pickleProtocol.newEncoder(floatFormat, memoize), nameCaches,
+                                                  batchBytes > 0 ? Integer.MAX_VALUE : batchSize, heartbeatSeconds);
+        if (flushCadence != null) {
+            pickler.buffer = new PointBuffer(bufferBytes);
+        }
+        return pickler;
+    }
+
+    /**
+     * Wrap a connection in a watchdog, instrumentation, an outbox and a send queue, if
+     * they are enabled.
+     */
+    private Shard newShard(FrameWriter writer, File outboxDirectory, int queueCapacity) {
+        if (writeTimeoutNanos > 0 && writer instanceof WriteWatchdog.Watched) {
+            WriteWatchdog.shared().watch((WriteWatchdog.Watched) writer, writeTimeoutNanos, abortedWrites);
+            watchedConnections.add((WriteWatchdog.Watched) writer);
+        }
+        if (selfMetrics != null) {
+            writer = selfMetrics.instrument(writer);
+        }
+        PickleOutbox outbox = null;
+        if (outboxDirectory != null) {
+            try {
+                outbox = new PickleOutbox(writer, outboxDirectory, outboxMaxBytes, outboxReplayBatches);
+                writer = outbox;
+            } catch (IOException e) {
+                LOG.error("Unable to open outbox in " + outboxDirectory + ", failed batches will be dropped", e);
+            }
+        }
+        if (queueCapacity > 0) {
+            writer = new AsyncFrameWriter(writer, queueCapacity, overflowPolicy, sendExecutor, cycleDeadline,
+                                          selfMetrics);
+        }
+        return new Shard(writer, outbox);
+    }
+
+    @Override
+    public void run() {
+        AlignedSchedule schedule = this.schedule;
+        long now = clock.time();
+        if (schedule == null) {
+            report(now / 1000, ticks++);
+        } else {
+            long slot = schedule.slot(now);
+            report(slot / 1000, tickOf(slot));
+        }
+    }
+
+    /**
+     * Report every metric that is due in the given tick with the given timestamp.
+     */
+    private void report(long epoch, long tick) {
+        final long start = System.nanoTime();
+        this.cycleDeadlineNanos = cycleBudgetNanos > 0 ? start + cycleBudgetNanos : 0;
+        this.cycleTimedOut = false;
+        this.cycleFailed = false;
+        ReportingTiers tiers = this.tiers;
+        this.tick = tick;
+        this.defaultTierDue = tiers == null || tiers.isDefaultDue(tick);
+        this.bufferFlushDue = isBufferFlushDue();
+        try {
+            if (getPickler() != null) {
+                if (this.printVMMetrics && isVmMetricsDue()) {
+                    printVmMetrics(epoch);
+                }
+                printRegularMetrics(epoch);
+            }
+        } catch (Exception e) {
+            cycleFailed = true;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Error writing to Graphite", e);
+            } else {
+                LOG.warn("Error writing to Graphite: {}", e.getMessage());
+            }
+        } finally {
+            if(getPickler() != null) {
+                // finish writing any left over metrics
+                getPickler().endCycle();
+            }
+            if (cycleTimedOut) {
+                LOG.warn("Gave up on a cycle after {}ms, it ran out of its budget",
+                         (System.nanoTime() - start) / 1000000);
+                recordOutcome(CycleOutcome.TIMED_OUT, 1);
+            } else {
+                recordOutcome(cycleFailed ? CycleOutcome.FAILED : CycleOutcome.COMPLETED, 1);
+            }
+            cycleDeadlineNanos = 0;
+            if (selfMetrics != null) {
+                long points = 0;
+                for (MetricPickler each : allPicklers()) {
+                    points += each.points;
+                    each.points = 0;
+                }
+                selfMetrics.endCycle(System.nanoTime() - start, periodNanos, points);
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        stopScheduling();
+        if (scheduler == null) {
+            super.shutdown();
+        }
+        closeConnection();
+    }
+
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        stopScheduling();
+        if (scheduler == null) {
+            super.shutdown(timeout, unit);
+        } else if (cycleLock.tryLock(timeout, unit)) {
+            // the cycle in progress has finished, and no other will start
+            cycleLock.unlock();
+        }
+        closeConnection();
+    }
+
+    /**
+     * Cancel the scheduled runs, leaving the executor they run on alone. A cycle that is
+     * in progress finishes.
+     */
+    private void stopScheduling() {
+        stopped = true;
+        ScheduledFuture<?> run = scheduledRun;
+        if (run != null) {
+            run.cancel(false);
+        }
+    }
+
+    /**
+     * Ticks are counted from the epoch when runs are aligned, so the tiers are due at
+     * the same wall-clock times on every host.
+     */
+    private long tickOf(long slot) {
+        ReportingTiers tiers = this.tiers;
+        return tiers == null ? 0 : slot / tiers.getTickMillis();
+    }
+
+    private synchronized void closeConnection() {
+        if (tiers != null) {
+            tiers.unregister(getMetricsRegistry());
+        }
+        if (selfMetrics != null) {
+            selfMetrics.unregister();
+        }
+        if (traversalPool != null && ownsTraversalPool) {
+            traversalPool.shutdown();
+        }
+        if (pickler != null && flushCadence != null) {
+            // send what was collected since the last flush
+            bufferFlushDue = true;
+            if (partitionPicklers != null) {
+                for (MetricPickler each : partitionPicklers) {
+                    each.flush();
+                }
+            }
+            pickler.endCycle();
+        }
+        if (pickler != null) {
+            for (Shard shard : pickler.shards) {
+                shard.writer.close();
+            }
+        }
+        for (WriteWatchdog.Watched connection : watchedConnections) {
+            WriteWatchdog.shared().unwatch(connection);
+        }
+        watchedConnections.clear();
+    }
+
+    /**
+     * Starts the reporter polling at the given period.
+     *
+     * @param period    the amount of time between polls
+     * @param unit      the unit for {@code period}
+     */
+    @Override
+    public void start(long period, TimeUnit unit) {
+        if (!tierPredicates.isEmpty()) {
+            ReportingTiers tiers = new ReportingTiers(tierPredicates, tierPeriods, predicate, unit.toMillis(period));
+            tiers.register(getMetricsRegistry());
+            this.tiers = tiers;
+            // run once a tick, and let each tier decide whether it is due
+            period = tiers.getTickMillis();
+            unit = TimeUnit.MILLISECONDS;
+        }
+        this.periodNanos = unit.toNanos(period);
+        AlignedSchedule aligned = null;
+        if (alignJitterMillis >= 0) {
+            // validate before anything is scheduled
+            aligned = new AlignedSchedule(unit.toMillis(period), alignJitterMillis, alignJitterKey);
+        }
+        // the parent class uses scheduleWithFixedDelay, but we really want scheduleAtFixedRate.
+        // the registry hands out the same single-threaded pool it gave the parent.
+        ScheduledExecutorService executor = scheduler != null
+                ? scheduler
+                : getMetricsRegistry().newScheduledThreadPool(1, SCHEDULER_NAME);
+        if (aligned != null) {
+            LOG.debug("Aligning runs to the period, {}ms into each", aligned.getJitterMillis());
+            this.schedule = aligned;
+            new AlignedRun(executor, aligned).scheduleNext();
+        } else {
+            scheduledRun = executor.scheduleAtFixedRate(new FixedRateRun(System.nanoTime() + periodNanos),
+                                                        period, period, unit);
+        }
+    }
+
+    /**
+     * Runs a cycle at a fixed rate, skipping the runs that are due while a cycle overruns.
+     * The executor would otherwise fire them back-to-back as soon as it finishes, to
+     * catch up, reporting nearly identical values and piling onto a carbon that is
+     * probably the reason the cycle was slow.
+     */
+    private class FixedRateRun implements Runnable {
+        private long dueNanos;
+
+        FixedRateRun(long firstDueNanos) {
+            this.dueNanos = firstDueNanos;
+        }
+
+        @Override
+        public void run() {
+            cycleLock.lock();
+            try {
+                if (stopped) {
+                    return;
+                }
+                long late = System.nanoTime() - dueNanos;
+                dueNanos += periodNanos;
+                if (late > periodNanos / 2) {
+                    // the tiers count it as run, so they stay in step with the clock
+                    ticks++;
+                    missedRuns++;
+                    recordOutcome(CycleOutcome.SKIPPED, 1);
+                    LOG.warn("Skipping a run that is {}ms late, the previous run finished too late", late / 1000000);
+                    return;
+                }
+                GraphitePickleReporter.this.run();
+            } finally {
+                cycleLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Runs a cycle in each slot of an {@link AlignedSchedule}, and schedules the next one
+     * once it has finished.
+     */
+    private class AlignedRun implements Runnable {
+        private final ScheduledExecutorService executor;
+        private final AlignedSchedule aligned;
+
+        AlignedRun(ScheduledExecutorService executor, AlignedSchedule aligned) {
+            this.executor = executor;
+            this.aligned = aligned;
+        }
+
+        @Override
+        public void run() {
+            cycleLock.lock();
+            try {
+                if (stopped) {
+                    return;
+                }
+                long slot = aligned.slot(clock.time());
+                long missed = aligned.advance(slot);
+                if (missed < 0) {
+                    // woken up early, or the clock was set back
+                    LOG.debug("Skipping a run, the period starting at {} has been reported on", slot);
+                    return;
+                }
+                if (missed > 0) {
+                    missedRuns += missed;
+                    recordOutcome(CycleOutcome.SKIPPED, missed);
+                    LOG.warn("Missed {} runs, the previous run finished too late", missed);
+                }
+                report(slot / 1000, tickOf(slot));
+            } finally {
+                cycleLock.unlock();
+                scheduleNext();
+            }
+        }
+
+        void scheduleNext() {
+            if (stopped || executor.isShutdown()) {
+                return;
+            }
+            try {
+                scheduledRun = executor.schedule(this, aligned.delayUntilNext(clock.time()), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shut down in the meantime
+            }
+        }
+    }
+
+    /**
+     * Process the registry, and any added with {@link #addRegistry}, on this thread, or
+     * split each across the fork-join pool if {@link #setParallelism} was used. With
+     * tiers, only the metrics that are due are processed.
+     */
+    @Override
+    protected void printRegularMetrics(final Long epoch) {
+        ReportingTiers tiers = this.tiers;
+        List<Collection<SortedMap<MetricName, Metric>>> due = new ArrayList<Collection<SortedMap<MetricName, Metric>>>();
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (int i = 0; i <= registries.size(); i++) {
+            if (i == 0 && tiers != null) {
+                due.add(tiers.due(tick));
+            } else if (i == 0) {
+                due.add(getMetricsRegistry().groupedMetrics(predicate).values());
+            } else if (defaultTierDue) {
+                RegistrySource source = registries.get(i - 1);
+                due.add(source.registry.groupedMetrics(source.predicate).values());
+            } else {
+                continue;
+            }
+            indexes.add(i);
+        }
+
+        for (int i = 0; i < due.size(); i++) {
+            if (partitionPicklers == null) {
+                pickler.useRegistry(indexes.get(i));
+                printRegularMetrics(due.get(i), epoch);
+            } else {
+                printRegularMetricsInParallel(indexes.get(i), due.get(i), epoch, i == due.size() - 1);
+            }
+        }
+        pickler.useRegistry(0);
+    }
+
+    /**
+     * What {@link GraphiteReporter#printRegularMetrics} does, for any set of metrics.
+     */
+    private void printRegularMetrics(Collection<SortedMap<MetricName, Metric>> groups, Long epoch) {
+        for (SortedMap<MetricName, Metric> group : groups) {
+            for (Map.Entry<MetricName, Metric> entry : group.entrySet()) {
+                if (isCycleExpired()) {
+                    return;
+                }
+                final Metric metric = entry.getValue();
+                if (metric != null) {
+                    try {
+                        metric.processWith(this, entry.getKey(), epoch);
+                    } catch (Exception e) {
+                        LOG.error("Error printing regular metrics:", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void printRegularMetricsInParallel(final int index, Collection<SortedMap<MetricName, Metric>> groups,
+                                               final Long epoch, final boolean last) {
+        for (List<Map.Entry<MetricName, Metric>> partition : partitions) {
+            partition.clear();
+        }
+        for (SortedMap<MetricName, Metric> group : groups) {
+            for (Map.Entry<MetricName, Metric> entry : group.entrySet()) {
+                if (entry.getValue() != null) {
+                    int partition = (entry.getKey().hashCode() & Integer.MAX_VALUE) % partitions.size();
+                    partitions.get(partition).add(entry);
+                }
+            }
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(partitions.size());
+        for (int i = 0; i < partitions.size(); i++) {
+            final MetricPickler partitionPickler = partitionPicklers[i];
+            final List<Map.Entry<MetricName, Metric>> partition = partitions.get(i);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    partitionPickler.useRegistry(index);
+                    for (Map.Entry<MetricName, Metric> entry : partition) {
+                        if (isCycleExpired()) {
+                            break;
+                        }
+                        try {
+                            entry.getValue().processWith(partitionPickler, entry.getKey(), epoch);
+                        } catch (Exception e) {
+                            LOG.error("Error printing regular metrics:", e);
+                        }
+                    }
+                    // batches carry on into the next registry
+                    if (last) {
+                        partitionPickler.flush();
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            traversalPool.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            // shutting down. the partitions that were not processed are dropped with the cycle.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // the regular metrics are processed by the pickler rather than in GraphiteReporter so
+    // the MetricName itself can be used to look up the encoded name. run() has created
+    // the pickler before any of these are called.
+
+    @Override
+    public void processGauge(MetricName name, Gauge<?> gauge, Long epoch) throws IOException {
+        pickler.processGauge(name, gauge, epoch);
+    }
+
+    @Override
+    public void processCounter(MetricName name, Counter counter, Long epoch) throws IOException {
+        pickler.processCounter(name, counter, epoch);
+    }
+
+    @Override
+    public void processMeter(MetricName name, Metered meter, Long epoch) throws IOException {
+        pickler.processMeter(name, meter, epoch);
+    }
+
+    @Override
+    public void processHistogram(MetricName name, Histogram histogram, Long epoch) throws IOException {
+        pickler.processHistogram(name, histogram, epoch);
+    }
+
+    @Override
+    public void processTimer(MetricName name, Timer timer, Long epoch) throws IOException {
+        pickler.processTimer(name, timer, epoch);
+    }
+
+    @Override
+    protected void sendInt(long timestamp, String name, String valueName, long value) {
+        pickler.pickleInt(timestamp, name, valueName, value);
+    }
+
+    
+    @Override
+    protected void sendFloat(long timestamp, String name, String valueName, double value) {
+        pickler.pickleFloat(timestamp, name, valueName, value);
+    }
+
+    @Override
+    protected void sendObjToGraphite(long timestamp, String name, String valueName, Object value) {
+        pickler.pickleObject(timestamp, name, valueName, value);
+    }
+
+    /**
+     * A destination and the writer its batches are sent with. Shared by all picklers.
+     */
+    private static class Shard {
+        private final FrameWriter writer;
+        private final PickleOutbox outbox;
+
+        Shard(FrameWriter writer, PickleOutbox outbox) {
+            this.writer = writer;
+            this.outbox = outbox;
+        }
+    }
+
+    /**
+     * Hands VM metrics to the pickler, like the other metrics {@link GraphiteReporter}
+     * sends by name.
+     */
+    private class VmSink implements VmMetrics.Sink {
+        @Override
+        public void sendInt(long timestamp, String name, String valueName, long value) {
+            GraphitePickleReporter.this.sendInt(timestamp, name, valueName, value);
+        }
+
+        @Override
+        public void sendFloat(long timestamp, String name, String valueName, double value) {
+            GraphitePickleReporter.this.sendFloat(timestamp, name, valueName, value);
+        }
+
+        @Override
+        public String sanitize(String name) {
+            return sanitizeString(name);
+        }
+    }
+
+    /**
+     * Another registry reported on by {@link #addRegistry}.
+     */
+    private static class RegistrySource {
+        final MetricsRegistry registry;
+        final String prefix;
+        final MetricPredicate predicate;
+
+        RegistrySource(MetricsRegistry registry, String prefix, MetricPredicate predicate) {
+            this.registry = registry;
+            this.prefix = prefix;
+            this.predicate = predicate;
+        }
+    }
+
+    /**
+     * The message being pickled for one destination. Data points are encoded as they are
+     * added, so the length of the message is always known.
+     */
+    private static class Batch {
+        private final PickleEncoder encoder;
+        private final BatchBudget budget;
+        private final PickleBuffer pickled = new PickleBuffer(4096);
+        private int count;
+        private long encodeNanos;
+
+        Batch(PickleEncoder encoder, BatchBudget budget) {
+            this.encoder = encoder;
+            this.budget = budget;
+        }
+
+        /**
+         * Encode a data point into the message, unless that would take it over budget.
+         * The first data point of a message is always added.
+         *
+         * @return whether the data point was added
+         */
+        boolean append(MetricTuple tuple) {
+            if (count == 0) {
+                encoder.begin(pickled);
+            }
+            int mark = pickled.length();
+            encoder.appendMetric(tuple, pickled);
+            if (count > 0 && pickled.length() + encoder.endListLength() > budget.bytes()) {
+                pickled.truncate(mark);
+                return false;
+            }
+            count++;
+            if (tuple.suppressedName != null) {
+                // forgotten if the message is not sent, here or by a send queue
+                pickled.addSuppressedName(tuple.suppressedName);
+            }
+            return true;
+        }
+
+        void reset() {
+            pickled.clear();
+            count = 0;
+            encodeNanos = 0;
+        }
+    }
+
+    /**
+     * Turns metrics into batches of pickled data points, one batch per destination.
+     * Confined to one thread at a time: the reporter's, or the pool thread that is
+     * processing its partition.
+     */
+    @SuppressWarnings("restriction")
+    private class MetricPickler implements MetricProcessor<Long> {
+        
+        // of the registry being processed
+        private String prefix;
+        private MetricNameCache nameCache;
+        // of each registry reported on
+        private final String[] prefixes;
+        private final MetricNameCache[] nameCaches;
+        private Shard[] shards;
+        private Batch[] batches;
+        private ConsistentHashRing ring;
+        private PickleEncoder encoder;
+        private int batchSize;
+        private long heartbeatSeconds;
+        private long suppressed;
+        // data points added this cycle, for the self metrics
+        private long points;
+        // filled in for each data point, which is encoded straight away
+        private final MetricTuple tuple = new MetricTuple();
+        // data points waiting for the next flush, with setFlushInterval
+        private PointBuffer buffer;
+        private final MetricTuple buffered = new MetricTuple();
+
+        MetricPickler(String[] prefixes, Shard[] shards, Batch[] batches, ConsistentHashRing ring, PickleEncoder encoder,
+                      MetricNameCache[] nameCaches, int batchSize, long heartbeatSeconds) {
+            this.prefixes = prefixes;
+            this.nameCaches = nameCaches;
+            this.prefix = prefixes[0];
+            this.nameCache = nameCaches[0];
+            this.shards = shards;
+            this.batches = batches;
+            this.ring = ring;
+            this.encoder = encoder;
+            this.batchSize = batchSize;
+            this.heartbeatSeconds = heartbeatSeconds;
+            
+            LOG.debug("Created metric pickler with prefix {}, batchSize {} and {} destinations",
+                      new Object[]{prefix, batchSize, shards.length});
+        }
+
+        /**
+         * Name the metrics that follow with the prefix and name cache of a registry.
+         *
+         * @param index 0 for the reporter's own registry, or 1 + the index of one added
+         *              by {@link #addRegistry}
+         */
+        void useRegistry(int index) {
+            this.prefix = prefixes[index];
+            this.nameCache = nameCaches[index];
+        }
+
+        @Override
+        public void processGauge(MetricName name, Gauge<?> gauge, Long epoch) {
+            pickleObject(epoch, name, "value", gauge.value());
+        }
+
+        @Override
+        public void processCounter(MetricName name, Counter counter, Long epoch) {
+            if (valueNamesOf(name, counter).contains(ValueName.COUNT)) {
+                pickleInt(epoch, name, "count", counter.count());
+            }
+        }
+
+        @Override
+        public void processMeter(MetricName name, Metered meter, Long epoch) {
+            pickleMetered(epoch, name, meter, valueNamesOf(name, meter));
+        }
+
+        @Override
+        public void processHistogram(MetricName name, Histogram histogram, Long epoch) {
+            EnumSet<ValueName> values = valueNamesOf(name, histogram);
+            pickleSummarizable(epoch, name, histogram, values);
+            pickleSampling(epoch, name, histogram, values);
+        }
+
+        @Override
+        public void processTimer(MetricName name, Timer timer, Long epoch) {
+            EnumSet<ValueName> values = valueNamesOf(name, timer);
+            pickleMetered(epoch, name, timer, values);
+            pickleSummarizable(epoch, name, timer, values);
+            pickleSampling(epoch, name, timer, values);
+        }
+
+        private void pickleMetered(long epoch, MetricName name, Metered meter, EnumSet<ValueName> values) {
+            if (values.contains(ValueName.COUNT)) {
+                pickleInt(epoch, name, "count", meter.count());
+            }
+            if (values.contains(ValueName.MEAN_RATE)) {
+                pickleFloat(epoch, name, "meanRate", meter.meanRate());
+            }
+            if (values.contains(ValueName.ONE_MINUTE_RATE)) {
+                pickleFloat(epoch, name, "1MinuteRate", meter.oneMinuteRate());
+            }
+            if (values.contains(ValueName.FIVE_MINUTE_RATE)) {
+                pickleFloat(epoch, name, "5MinuteRate", meter.fiveMinuteRate());
+            }
+            if (values.contains(ValueName.FIFTEEN_MINUTE_RATE)) {
+                pickleFloat(epoch, name, "15MinuteRate", meter.fifteenMinuteRate());
+            }
+        }
+
+        private void pickleSummarizable(long epoch, MetricName name, Summarizable metric, EnumSet<ValueName> values) {
+            if (values.contains(ValueName.MIN)) {
+                pickleFloat(epoch, name, "min", metric.min());
+            }
+            if (values.contains(ValueName.MAX)) {
+                pickleFloat(epoch, name, "max", metric.max());
+            }
+            if (values.contains(ValueName.MEAN)) {
+                pickleFloat(epoch, name, "mean", metric.mean());
+            }
+            if (values.contains(ValueName.STDDEV)) {
+                pickleFloat(epoch, name, "stddev", metric.stdDev());
+            }
+        }
+
+        private void pickleSampling(long epoch, MetricName name, Sampling metric, EnumSet<ValueName> values) {
+            // taking a snapshot copies and sorts the whole sample, so only do it if needed
+            if (!values.contains(ValueName.MEDIAN) && !values.contains(ValueName.P75)
+                    && !values.contains(ValueName.P95) && !values.contains(ValueName.P98)
+                    && !values.contains(ValueName.P99) && !values.contains(ValueName.P999)) {
+                return;
+            }
+            final Snapshot snapshot = metric.getSnapshot();
+            if (values.contains(ValueName.MEDIAN)) {
+                pickleFloat(epoch, name, "median", snapshot.getMedian());
+            }
+            if (values.contains(ValueName.P75)) {
+                pickleFloat(epoch, name, "75percentile", snapshot.get75thPercentile());
+            }
+            if (values.contains(ValueName.P95)) {
+                pickleFloat(epoch, name, "95percentile", snapshot.get95thPercentile());
+            }
+            if (values.contains(ValueName.P98)) {
+                pickleFloat(epoch, name, "98percentile", snapshot.get98thPercentile());
+            }
+            if (values.contains(ValueName.P99)) {
+                pickleFloat(epoch, name, "99percentile", snapshot.get99thPercentile());
+            }
+            if (values.contains(ValueName.P999)) {
+                pickleFloat(epoch, name, "999percentile", snapshot.get999thPercentile());
+            }
+        }
+
+        /**
+         * @param metric a {@link MetricName}, or the already sanitized name of a VM metric
+         */
+        void pickleInt(long timestamp, Object metric, String valueName, long value) {
+            EncodedName name = encodedName(metric, valueName);
+            if (isUnchanged(name, MetricTuple.INT, value, null, timestamp)) {
+                return;
+            }
+            addMetric(name.shard, suppressible(tuple.setInt(name.bytes, timestamp, value), name));
+        }
+
+        void pickleFloat(long timestamp, Object metric, String valueName, double value) {
+            EncodedName name = encodedName(metric, valueName);
+            if (isUnchanged(name, MetricTuple.FLOAT, Double.doubleToLongBits(value), null, timestamp)) {
+                return;
+            }
+            addMetric(name.shard, suppressible(tuple.setFloat(name.bytes, timestamp, value), name));
+        }
+
+        void pickleObject(long timestamp, Object metric, String valueName, Object value) {
+            EncodedName name = encodedName(metric, valueName);
+            if (isUnchanged(name, MetricTuple.OBJECT, 0, value, timestamp)) {
+                return;
+            }
+            addMetric(name.shard, suppressible(tuple.setObject(name.bytes, timestamp, value), name));
+            // don't hold on to the gauge's value until the next data point
+            tuple.objectValue = null;
+        }
+
+        /**
+         * Note the name whose last value {@code tuple} is, so that it can be forgotten if
+         * the value is not sent.
+         */
+        private MetricTuple suppressible(MetricTuple tuple, EncodedName name) {
+            if (heartbeatSeconds > 0) {
+                tuple.suppressedName = name;
+            }
+            return tuple;
+        }
+
+        private boolean isUnchanged(EncodedName name, byte type, long bits, Object object, long timestamp) {
+            if (heartbeatSeconds > 0 && name.isUnchanged(type, bits, object, timestamp, heartbeatSeconds)) {
+                suppressed++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Look up the encoded name of a data point, building and caching it if necessary.
+         */
+        EncodedName encodedName(Object metric, String valueName) {
+            EncodedName encoded = nameCache.get(metric, valueName);
+            if (encoded == null) {
+                String name = metric instanceof MetricName ? sanitizeName((MetricName) metric) : (String) metric;
+                String fullName = metricName(name, valueName);
+                encoded = new EncodedName(encoder.encodeName(fullName), ring == null ? 0 : ring.getNode(fullName));
+                nameCache.put(metric, valueName, encoded);
+            }
+            return encoded;
+        }
+
+        /**
+         * Build the full name sent to graphite: prefix, sanitized name and value name.
+         */
+        String metricName(String name, String valueName) {
+            StringBuilder metricName = new StringBuilder(prefix.length() + name.length() + valueName.length() + 1);
+            metricName.append(prefix).append(sanitizeString(name));
+            metricName.append(".").append(valueName);
+            return metricName.toString();
+        }
+        
+        /**
+         * Add a metric, which is pickled as a python tuple of the form:
+         * 
+         *      (name, (timestamp, value))
+         *      
+         * to the message for its destination, or to the buffer until the next flush.
+         * If we reach the batch size or the byte budget, write it out.
+         */
+        public void addMetric(int shard, MetricTuple tuple) {
+            points++;
+            if (buffer != null) {
+                if (!buffer.add(shard, tuple)) {
+                    // over the memory budget, so send what has been collected so far
+                    LOG.debug("Flushing {} buffered metrics early, the buffer is full", buffer.size());
+                    drainBuffer();
+                    buffer.add(shard, tuple);
+                }
+                return;
+            }
+            append(shard, tuple, batchSize);
+        }
+
+        private void append(int shard, MetricTuple tuple, int batchSize) {
+            Batch batch = batches[shard];
+            long start = selfMetrics == null ? 0 : System.nanoTime();
+            if (!batch.append(tuple)) {
+                // it would take the message over budget, so it starts the next one
+                writeMetrics(shard);
+                batch.append(tuple);
+            }
+            if (selfMetrics != null) {
+                batch.encodeNanos += System.nanoTime() - start;
+            }
+
+            if(batch.count >= batchSize) {
+                writeMetrics(shard);
+            }
+        }
+
+        /**
+         * Pickle the buffered data points into as few messages as the byte budget allows.
+         */
+        private void drainBuffer() {
+            for (int row = 0; row < buffer.size(); row++) {
+                append(buffer.shard(row), buffer.fill(row, buffered), Integer.MAX_VALUE);
+            }
+            buffered.objectValue = null;
+            buffer.clear();
+        }
+
+        /**
+         * Write the left over metrics of every destination, and the buffered ones if a
+         * flush is due.
+         */
+        void flush() {
+            if (buffer != null && bufferFlushDue) {
+                drainBuffer();
+            }
+            for (int shard = 0; shard < shards.length; shard++) {
+                writeMetrics(shard);
+            }
+            if (defaultTierDue) {
+                for (MetricNameCache cache : nameCaches) {
+                    cache.endCycle();
+                }
+            }
+        }
+
+        /**
+         * Write the left over metrics and end the cycle on every destination.
+         */
+        void endCycle() {
+            flush();
+            for (Shard shard : shards) {
+                shard.writer.endCycle();
+            }
+        }
+
+        /**
+         * 1. Finish the pickled message
+         * 2. Send the message to graphite
+         * 3. Start on the next message
+         */
+        private void writeMetrics(int shard) {
+            Batch batch = batches[shard];
+            if (batch.count > 0) {
+                boolean sent = false;
+                batch.encoder.endList(batch.pickled);
+                if (selfMetrics != null) {
+                    selfMetrics.pickled(batch.encodeNanos);
+                }
+
+                if (batch.pickled.length() > BatchBudget.CARBON_MAX_LENGTH) {
+                    // only a single, enormous data point can get here
+                    LOG.warn("Dropping {} metrics, the message is longer than carbon accepts", batch.count);
+                    if (selfMetrics != null) {
+                        selfMetrics.dropped(batch.count);
+                    }
+                } else if (isCycleExpired()) {
+                    LOG.debug("Dropping {} metrics, the cycle ran out of its budget", batch.count);
+                    if (selfMetrics != null) {
+                        selfMetrics.dropped(batch.count);
+                    }
+                } else {
+                    try {
+                        long start = System.nanoTime();
+                        // so that a send queue can count the points if it drops the batch
+                        batch.pickled.setPoints(batch.count);
+                        shards[shard].writer.write(batch.pickled);
+                        batch.budget.recordWrite(System.nanoTime() - start);
+                        sent = true;
+                    } catch (TimeoutException e) {
+                        // the send queue stayed full for the rest of the budget
+                        cycleTimedOut = true;
+                        LOG.debug("Dropping {} metrics, the cycle ran out of its budget", batch.count);
+                        if (selfMetrics != null) {
+                            selfMetrics.dropped(batch.count);
+                        }
+                    } catch (Exception e) {
+                        cycleFailed = true;
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Error writing to Graphite", e);
+                        } else {
+                            LOG.warn("Error writing to Graphite: {}", e.getMessage());
+                        }
+                        if (selfMetrics != null) {
+                            selfMetrics.dropped(batch.count);
+                        }
+                    }
+                }
+                
+                // if there was an error, we might miss some data. unless an outbox is configured,
+                // drop those on the floor and try to keep going.
+                if (sent) {
+                    LOG.debug("Wrote {} metrics", batch.count);
+                } else {
+                    batch.pickled.notSent();
+                }
+                
+                batch.reset();
+            }
+        }
     }
 }
@@ -0,0 +1,97 @@
+package com.brightcove.metrics.reporting;
+
+import java.util.Arrays;
+
+/**
+ * Maps the objects already written to a pickle frame to their memo ids. Keys are
+ * primitive (a type tag and two longs) so lookups do not allocate.
+ *
+ * Cleared at the start of each frame, since the unpickler's memo only lives as long
+ * as a single pickle.
+ */
+final class MemoTable {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private byte[] types;
+    private long[] firsts;
+    private long[] seconds;
+    private int[] ids;
+    private int[] generations;
+    private int generation = 1;
+    private int size;
+
+    MemoTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return the memo id of the key, or -1 if it has not been memoized
+     */
+    int get(byte type, long first, long second) {
+        int mask = ids.length - 1;
+        for (int i = hash(type, first, second) & mask; generations[i] == generation; i = (i + 1) & mask) {
+            if (types[i] == type && firsts[i] == first && seconds[i] == second) {
+                return ids[i];
+            }
+        }
+        return -1;
+    }
+
+    void put(byte type, long first, long second, int id) {
+        if (size * 2 >= ids.length) {
+            grow();
+        }
+        int mask = ids.length - 1;
+        int i = hash(type, first, second) & mask;
+        while (generations[i] == generation) {
+            i = (i + 1) & mask;
+        }
+        types[i] = type;
+        firsts[i] = first;
+        seconds[i] = second;
+        ids[i] = id;
+        generations[i] = generation;
+        size++;
+    }
+
+    void clear() {
+        size = 0;
+        generation++;
+        if (generation == 0) {
+            // wrapped around; stale entries could look current again
+            Arrays.fill(generations, 0);
+            generation = 1;
+        }
+    }
+
+    private void grow() {
+        byte[] oldTypes = types;
+        long[] oldFirsts = firsts;
+        long[] oldSeconds = seconds;
+        int[] oldIds = ids;
+        int[] oldGenerations = generations;
+        int current = generation;
+
+        allocate(oldIds.length * 2);
+        generation = 1;
+        size = 0;
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldGenerations[i] == current) {
+                put(oldTypes[i], oldFirsts[i], oldSeconds[i], oldIds[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        types = new byte[capacity];
+        firsts = new long[capacity];
+        seconds = new long[capacity];
+        ids = new int[capacity];
+        generations = new int[capacity];
+    }
+
+    private static int hash(byte type, long first, long second) {
+        long h = first * 0x9E3779B97F4A7C15L + second * 0xC2B2AE3D27D4EB4FL + type;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,148 @@
+package com.brightcove.metrics.reporting;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Caches the fully built, pickle-encoded name of each data point, along with the
+ * destination it is routed to, keyed by the metric (a
+ * {@link com.yammer.metrics.core.MetricName} or a plain string for VM metrics) and
+ * the value name.
+ *
+ * The cache holds at most {@code maxSize} names. When it is full the least recently
+ * used metrics are evicted, and metrics that have not been reported for
+ * {@code maxIdleCycles} reporting cycles are evicted at the end of each cycle.
+ *
+ * Not thread safe; it belongs to a single pickler.
+ */
+final class MetricNameCache {
+    private final int maxSize;
+    private final int maxIdleCycles;
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+
+    private int size;
+    private long cycle;
+    private long hits;
+    private long misses;
+
+    MetricNameCache(int maxSize, int maxIdleCycles) {
+        this.maxSize = maxSize;
+        this.maxIdleCycles = maxIdleCycles;
+    }
+
+    /**
+     * @return the encoded name, or null if it is not cached
+     */
+    EncodedName get(Object metric, String valueName) {
+        if (maxSize > 0) {
+            Entry entry = entries.get(metric);
+            if (entry != null) {
+                entry.lastUsed = cycle;
+                EncodedName encoded = entry.get(valueName);
+                if (encoded != null) {
+                    hits++;
+                    return encoded;
+                }
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    void put(Object metric, String valueName, EncodedName encoded) {
+        if (maxSize <= 0) {
+            return;
+        }
+        Entry entry = entries.get(metric);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(metric, entry);
+        }
+        entry.lastUsed = cycle;
+        entry.put(valueName, encoded);
+        size++;
+
+        if (size > maxSize) {
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (size > maxSize && eldest.hasNext()) {
+                Entry evicted = eldest.next();
+                if (evicted == entry) {
+                    break;
+                }
+                size -= evicted.count;
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Evict the metrics that have been idle for too long. Entries are kept in access
+     * order, so this stops at the first one that is still in use.
+     */
+    void endCycle() {
+        if (maxIdleCycles > 0) {
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (eldest.hasNext()) {
+                Entry entry = eldest.next();
+                if (cycle - entry.lastUsed < maxIdleCycles) {
+                    break;
+                }
+                size -= entry.count;
+                eldest.remove();
+            }
+        }
+        cycle++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long hits() {
+        return hits;
+    }
+
+    long misses() {
+        return misses;
+    }
+
+    /**
+     * The encoded names for each value name of one metric. Metrics have a handful of
+     * value names, which are almost always the same string instances, so a linear
+     * search is cheaper than hashing.
+     */
+    private static final class Entry {
+        private String[] valueNames = new String[1];
+        private EncodedName[] encoded = new EncodedName[1];
+        private int count;
+        private long lastUsed;
+
+        EncodedName get(String valueName) {
+            for (int i = 0; i < count; i++) {
+                if (valueNames[i] == valueName) {
+                    return encoded[i];
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                if (valueNames[i].equals(valueName)) {
+                    return encoded[i];
+                }
+            }
+            return null;
+        }
+
+        void put(String valueName, EncodedName name) {
+            if (count == valueNames.length) {
+                String[] newValueNames = new String[count * 2];
+                EncodedName[] newEncoded = new EncodedName[count * 2];
+                System.arraycopy(valueNames, 0, newValueNames, 0, count);
+                System.arraycopy(encoded, 0, newEncoded, 0, count);
+                valueNames = newValueNames;
+                encoded = newEncoded;
+            }
+            valueNames[count] = valueName;
+            encoded[count] = name;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.brightcove.metrics.reporting;
+
+/**
+ * A single data point waiting to be pickled:
+ *
+ *      (name, (timestamp, value))
+ *
+ * The name is already pickle-encoded by the {@link PickleEncoder} in use. The value is
+ * kept in its native type so each pickle protocol can encode it as it sees fit.
+ *
+ * Data points are encoded as soon as they are added to a batch, so the reporter fills
+ * in one tuple over and over instead of allocating one per data point.
+ */
+final class MetricTuple {
+    static final byte INT = 0;
+    static final byte FLOAT = 1;
+    static final byte OBJECT = 2;
+
+    byte[] name;
+    long timestamp;
+    byte type;
+    long intValue;
+    double floatValue;
+    Object objectValue;
+    // when unchanged data points are suppressed, the name whose last value this is
+    EncodedName suppressedName;
+
+    static MetricTuple ofInt(byte[] name, long timestamp, long value) {
+        return new MetricTuple().setInt(name, timestamp, value);
+    }
+
+    static MetricTuple ofFloat(byte[] name, long timestamp, double value) {
+        return new MetricTuple().setFloat(name, timestamp, value);
+    }
+
+    static MetricTuple ofObject(byte[] name, long timestamp, Object value) {
+        return new MetricTuple().setObject(name, timestamp, value);
+    }
+
+    MetricTuple setInt(byte[] name, long timestamp, long value) {
+        return set(name, timestamp, INT, value, 0, null);
+    }
+
+    MetricTuple setFloat(byte[] name, long timestamp, double value) {
+        return set(name, timestamp, FLOAT, 0, value, null);
+    }
+
+    MetricTuple setObject(byte[] name, long timestamp, Object value) {
+        return set(name, timestamp, OBJECT, 0, 0, value);
+    }
+
+    private MetricTuple set(byte[] name, long timestamp, byte type, long intValue, double floatValue, Object objectValue) {
+        this.name = name;
+        this.timestamp = timestamp;
+        this.type = type;
+        this.intValue = intValue;
+        this.floatValue = floatValue;
+        this.objectValue = objectValue;
+        this.suppressedName = null;
+        return this;
+    }
+}
@@ -0,0 +1,21 @@
+package com.brightcove.metrics.reporting;
+
+/**
+ * What to do with a batch when the queue of batches waiting to be sent is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * Wait for the sender to make room. Reporting slows down to the speed of graphite.
+     */
+    BLOCK,
+
+    /**
+     * Drop the batch that was just encoded.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Drop the batch that has waited longest, to make room for the new one.
+     */
+    DROP_OLDEST
+}
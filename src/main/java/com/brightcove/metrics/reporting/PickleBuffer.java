@@ -0,0 +1,179 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A growable byte buffer that pickle payloads are encoded into.
+ *
+ * A payload also carries what is needed to account for it if it is never sent: how many
+ * data points it holds, and the names whose unchanged values would otherwise not be sent
+ * again.
+ */
+final class PickleBuffer {
+    private static final EncodedName[] NO_NAMES = new EncodedName[0];
+
+    private byte[] bytes;
+    private int length;
+    private int points;
+    private EncodedName[] suppressedNames = NO_NAMES;
+    private int suppressedCount;
+
+    PickleBuffer(int initialCapacity) {
+        bytes = new byte[Math.max(16, initialCapacity)];
+    }
+
+    int length() {
+        return length;
+    }
+
+    void clear() {
+        length = 0;
+        points = 0;
+        Arrays.fill(suppressedNames, 0, suppressedCount, null);
+        suppressedCount = 0;
+    }
+
+    /**
+     * @return how many data points the payload holds, or 0 if that is not known
+     */
+    int points() {
+        return points;
+    }
+
+    void setPoints(int points) {
+        this.points = points;
+    }
+
+    /**
+     * Note that the payload holds the last value of {@code name}, when unchanged values
+     * are suppressed.
+     */
+    void addSuppressedName(EncodedName name) {
+        if (suppressedCount == suppressedNames.length) {
+            suppressedNames = Arrays.copyOf(suppressedNames, Math.max(16, suppressedCount * 2));
+        }
+        suppressedNames[suppressedCount++] = name;
+    }
+
+    /**
+     * The payload was not sent, so its values have to be sent again even if they have
+     * not changed.
+     */
+    void notSent() {
+        for (int i = 0; i < suppressedCount; i++) {
+            suppressedNames[i].forget();
+        }
+    }
+
+    /**
+     * Discard everything after the first {@code length} bytes.
+     */
+    void truncate(int length) {
+        this.length = length;
+    }
+
+    PickleBuffer put(int b) {
+        ensureCapacity(1);
+        bytes[length++] = (byte) b;
+        return this;
+    }
+
+    PickleBuffer put(byte[] src) {
+        return put(src, 0, src.length);
+    }
+
+    /**
+     * Append {@code count} bytes read from {@code src}.
+     */
+    PickleBuffer put(ByteBuffer src, int count) {
+        ensureCapacity(count);
+        src.get(bytes, length, count);
+        length += count;
+        return this;
+    }
+
+    PickleBuffer put(byte[] src, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(src, offset, bytes, length, count);
+        length += count;
+        return this;
+    }
+
+    /**
+     * Append the characters of a string, one byte each. Characters that do not fit
+     * into ISO-8859-1 are replaced with '?', which is what the charset encoder does.
+     */
+    PickleBuffer putLatin1(CharSequence s) {
+        int count = s.length();
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            char c = s.charAt(i);
+            bytes[length++] = (byte) (c <= 0xFF ? c : '?');
+        }
+        return this;
+    }
+
+    /**
+     * Append a 32-bit integer, least significant byte first.
+     */
+    PickleBuffer putIntLE(int value) {
+        ensureCapacity(4);
+        bytes[length++] = (byte) value;
+        bytes[length++] = (byte) (value >>> 8);
+        bytes[length++] = (byte) (value >>> 16);
+        bytes[length++] = (byte) (value >>> 24);
+        return this;
+    }
+
+    /**
+     * Append a 64-bit integer, most significant byte first.
+     */
+    PickleBuffer putLongBE(long value) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            bytes[length++] = (byte) (value >>> shift);
+        }
+        return this;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+    void writeTo(ByteBuffer out) {
+        out.put(bytes, 0, length);
+    }
+
+    int crc32() {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Replace the contents with those of {@code src}, keeping this buffer's storage if
+     * it is large enough.
+     */
+    PickleBuffer set(PickleBuffer src) {
+        clear();
+        points = src.points;
+        for (int i = 0; i < src.suppressedCount; i++) {
+            addSuppressedName(src.suppressedNames[i]);
+        }
+        return put(src.bytes, 0, src.length);
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+    }
+}
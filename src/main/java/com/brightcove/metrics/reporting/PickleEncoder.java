@@ -0,0 +1,144 @@
+package com.brightcove.metrics.reporting;
+
+import java.util.List;
+
+/**
+ * Encodes a batch of metrics as a pickled list of nested tuples. See PICKLING.md.
+ *
+ * When memoization is enabled the timestamp, and every (timestamp, value) tuple that
+ * occurs more than once, is written once per frame and then fetched from the
+ * unpickler's memo. Only tuples whose value is likely to repeat are stored, and only
+ * while their memo ids fit in a byte; a stored tuple that never repeats makes the
+ * frame bigger.
+ */
+abstract class PickleEncoder {
+    // memo key types. values use the MetricTuple types.
+    private static final byte TIMESTAMP = -1;
+
+    // the largest memo id that BINPUT and BINGET can hold
+    static final int MAX_SHORT_MEMO_ID = 0xFF;
+
+    private final MemoTable memo;
+    private int nextMemoId;
+
+    PickleEncoder(boolean memoize) {
+        this.memo = memoize ? new MemoTable() : null;
+    }
+
+    /**
+     * See: http://readthedocs.org/docs/graphite/en/1.0/feeding-carbon.html
+     */
+    void encode(List<MetricTuple> metrics, PickleBuffer pickled) {
+        begin(pickled);
+        for (MetricTuple tuple : metrics) {
+            appendMetric(tuple, pickled);
+        }
+        endList(pickled);
+    }
+
+    /**
+     * Start a new payload, which is then built up one {@link #appendMetric} at a time and
+     * finished with {@link #endList}.
+     */
+    void begin(PickleBuffer pickled) {
+        if (memo != null) {
+            memo.clear();
+            nextMemoId = 0;
+        }
+        startList(pickled);
+    }
+
+    /**
+     * Encode a metric name as a pickled string, ready to be copied into a payload.
+     */
+    abstract byte[] encodeName(String name);
+
+    abstract void startList(PickleBuffer pickled);
+
+    abstract void appendMetric(MetricTuple tuple, PickleBuffer pickled);
+
+    abstract void endList(PickleBuffer pickled);
+
+    /**
+     * @return how many bytes {@link #endList} writes
+     */
+    abstract int endListLength();
+
+    abstract void putTimestamp(long timestamp, PickleBuffer pickled);
+
+    /**
+     * Store the object on top of the stack in the memo.
+     */
+    abstract void memoPut(int id, PickleBuffer pickled);
+
+    /**
+     * Push an object from the memo onto the stack.
+     */
+    abstract void memoGet(int id, PickleBuffer pickled);
+
+    /**
+     * Fetch the (timestamp, value) tuple from the memo if it was written before.
+     *
+     * @return whether the tuple was written
+     */
+    boolean getValueTuple(MetricTuple tuple, PickleBuffer pickled) {
+        if (memo == null || !repeats(tuple)) {
+            return false;
+        }
+        int id = memo.get(tuple.type, tuple.timestamp, valueBits(tuple));
+        if (id < 0) {
+            return false;
+        }
+        memoGet(id, pickled);
+        return true;
+    }
+
+    /**
+     * Memoize the (timestamp, value) tuple that was just written.
+     */
+    void putValueTuple(MetricTuple tuple, PickleBuffer pickled) {
+        if (memo != null && nextMemoId <= MAX_SHORT_MEMO_ID && repeats(tuple)) {
+            int id = nextMemoId++;
+            memo.put(tuple.type, tuple.timestamp, valueBits(tuple), id);
+            memoPut(id, pickled);
+        }
+    }
+
+    /**
+     * Write the timestamp, or fetch it from the memo.
+     */
+    void putMemoizedTimestamp(long timestamp, PickleBuffer pickled) {
+        if (memo == null) {
+            putTimestamp(timestamp, pickled);
+            return;
+        }
+        int id = memo.get(TIMESTAMP, timestamp, 0);
+        if (id >= 0) {
+            memoGet(id, pickled);
+        } else {
+            putTimestamp(timestamp, pickled);
+            id = nextMemoId++;
+            memo.put(TIMESTAMP, timestamp, 0, id);
+            memoPut(id, pickled);
+        }
+    }
+
+    /**
+     * Idle counters and flat gauges repeat integral values such as 0 and 1. A fractional
+     * float, such as a mean or a rate, hardly ever occurs twice in a frame.
+     */
+    private static boolean repeats(MetricTuple tuple) {
+        switch (tuple.type) {
+            case MetricTuple.INT:
+                return true;
+            case MetricTuple.FLOAT:
+                return tuple.floatValue == Math.rint(tuple.floatValue);
+            default:
+                return false;
+        }
+    }
+
+    private static long valueBits(MetricTuple tuple) {
+        return tuple.type == MetricTuple.INT ? tuple.intValue : Double.doubleToLongBits(tuple.floatValue);
+    }
+}
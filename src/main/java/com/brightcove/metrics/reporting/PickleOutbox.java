@@ -0,0 +1,333 @@
+package com.brightcove.metrics.reporting;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Keeps the messages that could not be delivered in memory-mapped segment files and
+ * replays them, oldest first, once graphite is reachable again.
+ *
+ * Messages go straight to the wrapped writer while it works. When a write fails the
+ * message is appended to the outbox instead, as is every other message until the end
+ * of the cycle. At the end of each cycle at most {@code replayBatchesPerCycle} stored
+ * messages are replayed, so a recovering carbon is not flooded with the backlog.
+ *
+ * The outbox never holds more than {@code maxBytes}, or two segments of 64KB if that is
+ * more; the oldest segment is discarded to make room. Segments are ordinary files in
+ * {@code directory}, so anything that had not been replayed is picked up again when the
+ * JVM restarts.
+ *
+ * Segment layout:
+ * <pre>
+ *   int magic, int read position, 8 bytes reserved
+ *   records: int length, int crc32, payload
+ * </pre>
+ * The length of a record is written last. A zero length marks the end of the
+ * segment, and a record with a bad checksum is treated as the end of a segment that
+ * was being written when the JVM died.
+ */
+class PickleOutbox implements FrameWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(PickleOutbox.class);
+
+    static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    private static final int MAGIC = 0x504b4f42; // PKOB
+    private static final int READ_POSITION_OFFSET = 4;
+    private static final int DATA_START = 16;
+    private static final int RECORD_HEADER = 8;
+    private static final String SUFFIX = ".outbox";
+
+    private final FrameWriter delegate;
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final int replayBatchesPerCycle;
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private final PickleBuffer replayBuffer = new PickleBuffer(4096);
+
+    private boolean available = true;
+    private long nextSequence;
+    private long storedBatches;
+    private long evictedBatches;
+
+    PickleOutbox(FrameWriter delegate, File directory, long maxBytes, int replayBatchesPerCycle) throws IOException {
+        this.delegate = delegate;
+        this.directory = directory;
+        this.replayBatchesPerCycle = replayBatchesPerCycle;
+        // always allow for one segment being written while another is replayed, so a
+        // maxBytes below two of the smallest segments is raised to that
+        this.segmentSize = (int) Math.min(DEFAULT_SEGMENT_SIZE, Math.max(MIN_SEGMENT_SIZE, maxBytes / 2));
+        this.maxSegments = (int) Math.max(2, maxBytes / segmentSize);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create outbox directory " + directory);
+        }
+        recover();
+    }
+
+    @Override
+    public synchronized void write(PickleBuffer payload) throws Exception {
+        if (available) {
+            try {
+                delegate.write(payload);
+                return;
+            } catch (Exception e) {
+                // stop trying for the rest of the cycle; graphite is not there
+                available = false;
+                LOG.warn("Error writing to Graphite, storing batches in outbox: {}", e.getMessage());
+            }
+        }
+        store(payload);
+    }
+
+    @Override
+    public synchronized void endCycle() {
+        delegate.endCycle();
+        replay();
+        available = true;
+    }
+
+    /**
+     * Closes the wrapped writer first, without the lock that a write blocked on it holds.
+     */
+    @Override
+    public void close() {
+        delegate.close();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.force();
+            }
+        }
+    }
+
+    synchronized long getPendingBatches() {
+        long pending = 0;
+        for (Segment segment : segments) {
+            pending += segment.pending;
+        }
+        return pending;
+    }
+
+    synchronized long getStoredBatches() {
+        return storedBatches;
+    }
+
+    synchronized long getEvictedBatches() {
+        return evictedBatches;
+    }
+
+    private void store(PickleBuffer payload) throws IOException {
+        if (RECORD_HEADER + payload.length() > segmentSize - DATA_START) {
+            throw new IOException("Batch of " + payload.length() + " bytes does not fit in the outbox");
+        }
+        Segment last = segments.isEmpty() ? null : segments.getLast();
+        if (last == null || !last.append(payload)) {
+            while (segments.size() >= maxSegments) {
+                Segment evicted = segments.removeFirst();
+                evictedBatches += evicted.pending;
+                LOG.warn("Outbox is full, discarding {} batches", evicted.pending);
+                evicted.delete();
+            }
+            last = Segment.create(new File(directory, segmentName(nextSequence++)), segmentSize);
+            segments.add(last);
+            last.append(payload);
+        }
+        storedBatches++;
+    }
+
+    /**
+     * Replay the oldest stored messages, stopping at the first failure.
+     */
+    private void replay() {
+        int replayed = 0;
+        while (replayed < replayBatchesPerCycle && !segments.isEmpty()) {
+            Segment first = segments.getFirst();
+            if (first.pending == 0) {
+                if (first == segments.getLast()) {
+                    break;
+                }
+                segments.removeFirst().delete();
+                continue;
+            }
+            try {
+                first.peek(replayBuffer);
+                delegate.write(replayBuffer);
+            } catch (Exception e) {
+                LOG.debug("Unable to replay outbox: {}", e.getMessage());
+                break;
+            }
+            first.advance();
+            replayed++;
+        }
+        if (replayed > 0) {
+            delegate.endCycle();
+            LOG.debug("Replayed {} batches from the outbox", replayed);
+        }
+        // an empty segment that is still being appended to can be reused from the start
+        if (segments.size() == 1 && segments.getFirst().pending == 0) {
+            segments.removeFirst().delete();
+        }
+    }
+
+    private void recover() throws IOException {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (names == null) {
+            return;
+        }
+        Arrays.sort(names);
+        List<Segment> recovered = new ArrayList<Segment>();
+        for (String name : names) {
+            File file = new File(directory, name);
+            try {
+                long sequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                Segment segment = Segment.open(file);
+                if (segment == null || segment.pending == 0) {
+                    if (segment != null) {
+                        segment.delete();
+                    }
+                    continue;
+                }
+                recovered.add(segment);
+            } catch (Exception e) {
+                LOG.warn("Ignoring unreadable outbox segment {}: {}", file, e.getMessage());
+            }
+        }
+        segments.addAll(recovered);
+        if (!recovered.isEmpty()) {
+            LOG.info("Recovered {} batches from the outbox in {}", getPendingBatches(), directory);
+        }
+    }
+
+    private static String segmentName(long sequence) {
+        // zero padded so that the names sort in order
+        return String.format("%019d%s", sequence, SUFFIX);
+    }
+
+    private static final class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int readPosition;
+        private int writePosition;
+        private int pending;
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        static Segment create(File file, int size) throws IOException {
+            Segment segment = new Segment(file, map(file, size));
+            segment.buffer.putInt(0, MAGIC);
+            segment.buffer.putInt(READ_POSITION_OFFSET, DATA_START);
+            segment.readPosition = DATA_START;
+            segment.writePosition = DATA_START;
+            return segment;
+        }
+
+        /**
+         * @return the segment, or null if the file is not an outbox segment
+         */
+        static Segment open(File file) throws IOException {
+            if (file.length() < DATA_START) {
+                return null;
+            }
+            Segment segment = new Segment(file, map(file, (int) file.length()));
+            MappedByteBuffer buffer = segment.buffer;
+            if (buffer.getInt(0) != MAGIC) {
+                return null;
+            }
+            int capacity = buffer.capacity();
+            segment.readPosition = buffer.getInt(READ_POSITION_OFFSET);
+            if (segment.readPosition < DATA_START || segment.readPosition > capacity) {
+                return null;
+            }
+
+            PickleBuffer record = new PickleBuffer(4096);
+            int position = DATA_START;
+            while (position + RECORD_HEADER <= capacity) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + RECORD_HEADER + length > capacity) {
+                    break;
+                }
+                record.clear();
+                buffer.position(position + RECORD_HEADER);
+                record.put(buffer, length);
+                if (record.crc32() != buffer.getInt(position + 4)) {
+                    break;
+                }
+                if (position >= segment.readPosition) {
+                    segment.pending++;
+                }
+                position += RECORD_HEADER + length;
+            }
+            segment.writePosition = position;
+            return segment;
+        }
+
+        boolean append(PickleBuffer payload) {
+            int length = payload.length();
+            if (writePosition + RECORD_HEADER + length > buffer.capacity()) {
+                return false;
+            }
+            buffer.position(writePosition + RECORD_HEADER);
+            payload.writeTo(buffer);
+            buffer.putInt(writePosition + 4, payload.crc32());
+            // the length goes last so a half written record is never read back
+            buffer.putInt(writePosition, length);
+            writePosition += RECORD_HEADER + length;
+            pending++;
+            return true;
+        }
+
+        void peek(PickleBuffer into) {
+            int length = buffer.getInt(readPosition);
+            into.clear();
+            buffer.position(readPosition + RECORD_HEADER);
+            into.put(buffer, length);
+        }
+
+        void advance() {
+            readPosition += RECORD_HEADER + buffer.getInt(readPosition);
+            buffer.putInt(READ_POSITION_OFFSET, readPosition);
+            pending--;
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        void delete() {
+            if (!file.delete()) {
+                LOG.warn("Unable to delete outbox segment {}", file);
+            }
+        }
+
+        private static MappedByteBuffer map(File file, int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+                FileChannel channel = raf.getChannel();
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
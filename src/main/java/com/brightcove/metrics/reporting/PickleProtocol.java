@@ -0,0 +1,30 @@
+package com.brightcove.metrics.reporting;
+
+/**
+ * The pickle protocol used to encode the metrics sent to graphite.
+ */
+public enum PickleProtocol {
+    /**
+     * Pickle protocol 0. Printable opcodes; values are sent as strings which carbon
+     * parses back into floats. This is the default.
+     */
+    PROTOCOL_0 {
+        @Override
+        PickleEncoder newEncoder(FloatFormat floatFormat, boolean memoize) {
+            return new TextPickleEncoder(floatFormat, memoize);
+        }
+    },
+
+    /**
+     * Pickle protocol 2. Binary opcodes; timestamps and values are sent as native
+     * integers and floats, which makes for smaller payloads that are cheaper to unpickle.
+     */
+    PROTOCOL_2 {
+        @Override
+        PickleEncoder newEncoder(FloatFormat floatFormat, boolean memoize) {
+            return new BinaryPickleEncoder(memoize);
+        }
+    };
+
+    abstract PickleEncoder newEncoder(FloatFormat floatFormat, boolean memoize);
+}
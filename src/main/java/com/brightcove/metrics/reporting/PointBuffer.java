@@ -0,0 +1,208 @@
+package com.brightcove.metrics.reporting;
+
+import java.util.Arrays;
+
+/**
+ * Data points collected over several cycles, waiting to be sent together.
+ *
+ * Each distinct encoded name is stored once, as a series, and each data point is a row
+ * of primitive arrays: the series it belongs to, its timestamp, its type and the bits of
+ * its value. Names are looked up by identity, since the name cache hands out the same
+ * array for a name every cycle. Only the values of gauges that are neither ints nor
+ * floats are kept as objects.
+ *
+ * The arrays grow as needed but never beyond the memory budget. Like the pickler it
+ * belongs to, it is confined to one thread at a time.
+ */
+final class PointBuffer {
+    // series, timestamp, type and value of a row
+    private static final int ROW_BYTES = 4 + 8 + 1 + 8;
+    // the name array's header and the series' entries in the table and arrays
+    private static final int SERIES_OVERHEAD_BYTES = 16 + 8 + 4 + 8 + 8;
+
+    private final long maxBytes;
+    private long bytes;
+
+    // the series
+    private byte[][] names = new byte[16][];
+    private int[] shards = new int[16];
+    private EncodedName[] suppressedNames = new EncodedName[16];
+    private int seriesCount;
+    // open addressing, from a name to 1 + its series
+    private byte[][] tableNames = new byte[32][];
+    private int[] tableSeries = new int[32];
+
+    // the data points
+    private int[] series = new int[64];
+    private long[] timestamps = new long[64];
+    private byte[] types = new byte[64];
+    private long[] values = new long[64];
+    private Object[] objects;
+    private int size;
+
+    PointBuffer(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Add a data point, unless that would take the buffer over its budget. A data point
+     * is always added to an empty buffer.
+     *
+     * @return whether the data point was added
+     */
+    boolean add(int shard, MetricTuple tuple) {
+        int index = find(tuple.name);
+        long needed = ROW_BYTES + (tableSeries[index] == 0 ? SERIES_OVERHEAD_BYTES + tuple.name.length : 0);
+        if (size > 0 && bytes + needed > maxBytes) {
+            return false;
+        }
+        bytes += needed;
+
+        int s = tableSeries[index] - 1;
+        if (s < 0) {
+            s = addSeries(index, tuple.name, shard, tuple.suppressedName);
+        }
+        if (size == series.length) {
+            grow();
+        }
+        series[size] = s;
+        timestamps[size] = tuple.timestamp;
+        types[size] = tuple.type;
+        switch (tuple.type) {
+            case MetricTuple.INT:
+                values[size] = tuple.intValue;
+                break;
+            case MetricTuple.FLOAT:
+                values[size] = Double.doubleToRawLongBits(tuple.floatValue);
+                break;
+            default:
+                if (objects == null) {
+                    objects = new Object[series.length];
+                }
+                objects[size] = tuple.objectValue;
+                break;
+        }
+        size++;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return roughly how much memory the buffered data points take up
+     */
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the destination of the data point at {@code row}
+     */
+    int shard(int row) {
+        return shards[series[row]];
+    }
+
+    /**
+     * Fill in {@code tuple} with the data point at {@code row}.
+     */
+    MetricTuple fill(int row, MetricTuple tuple) {
+        int s = series[row];
+        switch (types[row]) {
+            case MetricTuple.INT:
+                tuple.setInt(names[s], timestamps[row], values[row]);
+                break;
+            case MetricTuple.FLOAT:
+                tuple.setFloat(names[s], timestamps[row], Double.longBitsToDouble(values[row]));
+                break;
+            default:
+                tuple.setObject(names[s], timestamps[row], objects[row]);
+                break;
+        }
+        tuple.suppressedName = suppressedNames[s];
+        return tuple;
+    }
+
+    /**
+     * Forget every data point and series, keeping the arrays for the next ones.
+     */
+    void clear() {
+        Arrays.fill(names, 0, seriesCount, null);
+        Arrays.fill(suppressedNames, 0, seriesCount, null);
+        Arrays.fill(tableNames, null);
+        Arrays.fill(tableSeries, 0);
+        if (objects != null) {
+            Arrays.fill(objects, 0, size, null);
+        }
+        seriesCount = 0;
+        size = 0;
+        bytes = 0;
+    }
+
+    /**
+     * @return the slot of {@code name} in the table, or the empty slot it would go in
+     */
+    private int find(byte[] name) {
+        int mask = tableNames.length - 1;
+        int index = mix(System.identityHashCode(name)) & mask;
+        while (tableNames[index] != null && tableNames[index] != name) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private int addSeries(int index, byte[] name, int shard, EncodedName suppressedName) {
+        if (seriesCount == names.length) {
+            names = Arrays.copyOf(names, seriesCount * 2);
+            shards = Arrays.copyOf(shards, seriesCount * 2);
+            suppressedNames = Arrays.copyOf(suppressedNames, seriesCount * 2);
+        }
+        int s = seriesCount++;
+        names[s] = name;
+        shards[s] = shard;
+        suppressedNames[s] = suppressedName;
+        tableNames[index] = name;
+        tableSeries[index] = s + 1;
+        if (seriesCount * 2 > tableNames.length) {
+            rehash();
+        }
+        return s;
+    }
+
+    private void rehash() {
+        byte[][] oldNames = tableNames;
+        int[] oldSeries = tableSeries;
+        tableNames = new byte[oldNames.length * 2][];
+        tableSeries = new int[oldSeries.length * 2];
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null) {
+                int index = find(oldNames[i]);
+                tableNames[index] = oldNames[i];
+                tableSeries[index] = oldSeries[i];
+            }
+        }
+    }
+
+    private void grow() {
+        int capacity = series.length * 2;
+        series = Arrays.copyOf(series, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        types = Arrays.copyOf(types, capacity);
+        values = Arrays.copyOf(values, capacity);
+        if (objects != null) {
+            objects = Arrays.copyOf(objects, capacity);
+        }
+    }
+
+    private static int mix(int h) {
+        // identity hash codes are spread well enough, but not in the low bits
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
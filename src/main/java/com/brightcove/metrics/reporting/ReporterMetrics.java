@@ -0,0 +1,191 @@
+package com.brightcove.metrics.reporting;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The reporter's own metrics, registered in the registry it reports on as
+ * {@code <subPrefix>.reporter.<name>}.
+ *
+ * The per-cycle figures are collected while a cycle runs and only published once it
+ * has finished, so the cycle in progress never reports on itself; its figures appear in
+ * the next cycle.
+ */
+final class ReporterMetrics {
+    private static final String TYPE = "reporter";
+
+    private final MetricsRegistry registry;
+    private final List<MetricName> names = new ArrayList<MetricName>();
+
+    private final Timer runTimer;
+    private final Timer pickleTimer;
+    private final Timer writeTimer;
+    private final Counter connectionFailures;
+    private final Counter droppedPoints;
+    private final Counter overruns;
+    private final Counter timeouts;
+    private final Counter skippedRuns;
+
+    // collected during the current cycle, possibly from several threads
+    private final Durations pickleDurations = new Durations();
+    private final Durations writeDurations = new Durations();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    // the figures of the last completed cycle
+    private volatile long lastBytes;
+    private volatile long lastBatches;
+    private volatile long lastPoints;
+
+    ReporterMetrics(MetricsRegistry registry, String subPrefix) {
+        this.registry = registry;
+        this.runTimer = registry.newTimer(name(subPrefix, "run"), TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
+        this.pickleTimer = registry.newTimer(name(subPrefix, "pickle"), TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
+        this.writeTimer = registry.newTimer(name(subPrefix, "write"), TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
+        this.connectionFailures = registry.newCounter(name(subPrefix, "connection-failures"));
+        this.droppedPoints = registry.newCounter(name(subPrefix, "dropped-points"));
+        this.overruns = registry.newCounter(name(subPrefix, "overruns"));
+        this.timeouts = registry.newCounter(name(subPrefix, "timeouts"));
+        this.skippedRuns = registry.newCounter(name(subPrefix, "skipped-runs"));
+        registry.newGauge(name(subPrefix, "bytes"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return lastBytes;
+            }
+        });
+        registry.newGauge(name(subPrefix, "batches"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return lastBatches;
+            }
+        });
+        registry.newGauge(name(subPrefix, "points"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return lastPoints;
+            }
+        });
+    }
+
+    private MetricName name(String subPrefix, String name) {
+        MetricName metricName = new MetricName(subPrefix, TYPE, name);
+        names.add(metricName);
+        return metricName;
+    }
+
+    /**
+     * Time the writes of the connection to carbon. This has to wrap the connection
+     * itself, inside any outbox or send queue, to see the real writes and failures.
+     */
+    FrameWriter instrument(final FrameWriter connection) {
+        return new FrameWriter() {
+            @Override
+            public void write(PickleBuffer payload) throws Exception {
+                long start = System.nanoTime();
+                try {
+                    connection.write(payload);
+                } catch (Exception e) {
+                    connectionFailures.inc();
+                    throw e;
+                }
+                writeDurations.add(System.nanoTime() - start);
+                bytes.addAndGet(payload.length() + 4);
+                batches.incrementAndGet();
+            }
+
+            @Override
+            public void endCycle() {
+                connection.endCycle();
+            }
+
+            @Override
+            public void close() {
+                connection.close();
+            }
+        };
+    }
+
+    void pickled(long nanos) {
+        pickleDurations.add(nanos);
+    }
+
+    /**
+     * Count data points that will never reach carbon: dropped by the reporter or a send
+     * queue, or in a batch that failed to send.
+     */
+    void dropped(int points) {
+        droppedPoints.inc(points);
+    }
+
+    /**
+     * Count cycles that timed out or were skipped. Unlike the other figures, these are
+     * published straight away.
+     */
+    void cycleEnded(CycleOutcome outcome, long cycles) {
+        if (outcome == CycleOutcome.TIMED_OUT) {
+            timeouts.inc(cycles);
+        } else if (outcome == CycleOutcome.SKIPPED) {
+            skippedRuns.inc(cycles);
+        }
+    }
+
+    /**
+     * Publish the figures of the cycle that has just finished.
+     *
+     * @param runNanos    how long the cycle took
+     * @param periodNanos the reporting period, or 0 if the reporter was not started
+     * @param points      how many data points were pickled in the cycle
+     */
+    void endCycle(long runNanos, long periodNanos, long points) {
+        runTimer.update(runNanos, TimeUnit.NANOSECONDS);
+        pickleDurations.drainTo(pickleTimer);
+        writeDurations.drainTo(writeTimer);
+        if (periodNanos > 0 && runNanos > periodNanos) {
+            overruns.inc();
+        }
+        lastBytes = bytes.getAndSet(0);
+        lastBatches = batches.getAndSet(0);
+        lastPoints = points;
+    }
+
+    /**
+     * Remove the metrics from the registry.
+     */
+    void unregister() {
+        for (MetricName name : names) {
+            registry.removeMetric(name);
+        }
+    }
+
+    /**
+     * Durations waiting to be added to a timer at the end of the cycle.
+     */
+    private static final class Durations {
+        private long[] nanos = new long[64];
+        private int count;
+
+        synchronized void add(long duration) {
+            if (count == nanos.length) {
+                long[] grown = new long[count * 2];
+                System.arraycopy(nanos, 0, grown, 0, count);
+                nanos = grown;
+            }
+            nanos[count++] = duration;
+        }
+
+        synchronized void drainTo(Timer timer) {
+            for (int i = 0; i < count; i++) {
+                timer.update(nanos[i], TimeUnit.NANOSECONDS);
+            }
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.brightcove.metrics.reporting;
+
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.MetricsRegistryListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Sorts the metrics of a registry into tiers that are reported at different periods.
+ *
+ * A metric must match the reporter's predicate to be reported at all. It then belongs
+ * to the first tier whose predicate it also matches, or to the default tier if it
+ * matches none, and is filed when it is registered. A reporting cycle then
+ * only walks the tiers that are due, instead of filtering the whole registry.
+ *
+ * The reporter runs once a tick, the greatest common divisor of all the periods, and a
+ * tier is due on every tick that is a multiple of its period.
+ */
+final class ReportingTiers implements MetricsRegistryListener {
+    private final List<Tier> tiers = new ArrayList<Tier>();
+    private final MetricPredicate filter;
+    private final long tickMillis;
+
+    /**
+     * @param predicates      the predicate of each tier, in order of precedence
+     * @param periodsMillis   the period of each tier
+     * @param filter          the reporter's predicate, which every tier's metrics must match
+     * @param defaultPeriod   the period of the default tier
+     */
+    ReportingTiers(List<MetricPredicate> predicates, List<Long> periodsMillis,
+                   MetricPredicate filter, long defaultPeriod) {
+        long tick = defaultPeriod;
+        for (long period : periodsMillis) {
+            tick = gcd(tick, period);
+        }
+        if (tick <= 0) {
+            throw new IllegalArgumentException("periods must be at least a millisecond");
+        }
+        this.filter = filter;
+        this.tickMillis = tick;
+        for (int i = 0; i < predicates.size(); i++) {
+            tiers.add(new Tier(predicates.get(i), periodsMillis.get(i) / tick));
+        }
+        tiers.add(new Tier(MetricPredicate.ALL, defaultPeriod / tick));
+    }
+
+    long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * @return whether the default tier, which VM metrics belong to, is due
+     */
+    boolean isDefaultDue(long tick) {
+        return tiers.get(tiers.size() - 1).isDue(tick);
+    }
+
+    /**
+     * @return the metrics of every tier that is due on {@code tick}
+     */
+    List<SortedMap<MetricName, Metric>> due(long tick) {
+        List<SortedMap<MetricName, Metric>> due = new ArrayList<SortedMap<MetricName, Metric>>(tiers.size());
+        for (Tier tier : tiers) {
+            if (tier.isDue(tick)) {
+                due.add(tier.metrics);
+            }
+        }
+        return due;
+    }
+
+    void register(MetricsRegistry registry) {
+        // files the metrics that are already registered, too
+        registry.addListener(this);
+    }
+
+    void unregister(MetricsRegistry registry) {
+        registry.removeListener(this);
+    }
+
+    @Override
+    public void onMetricAdded(MetricName name, Metric metric) {
+        if (!filter.matches(name, metric)) {
+            return;
+        }
+        for (Tier tier : tiers) {
+            if (tier.predicate.matches(name, metric)) {
+                tier.metrics.put(name, metric);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onMetricRemoved(MetricName name) {
+        for (Tier tier : tiers) {
+            tier.metrics.remove(name);
+        }
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private static final class Tier {
+        final MetricPredicate predicate;
+        final long ticks;
+        final SortedMap<MetricName, Metric> metrics = new ConcurrentSkipListMap<MetricName, Metric>();
+
+        Tier(MetricPredicate predicate, long ticks) {
+            this.predicate = predicate;
+            this.ticks = ticks;
+        }
+
+        boolean isDue(long tick) {
+            return tick % ticks == 0;
+        }
+    }
+}
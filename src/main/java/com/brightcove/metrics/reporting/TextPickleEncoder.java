@@ -0,0 +1,172 @@
+package com.brightcove.metrics.reporting;
+
+import java.util.Formattable;
+import java.util.Locale;
+
+/**
+ * Encodes metrics using the minimal subset of pickle protocol 0 that graphite needs.
+ */
+class TextPickleEncoder extends PickleEncoder {
+    private final Locale locale = Locale.US;
+    private final FloatFormat floatFormat;
+
+    /**
+     * Minimally necessary pickle opcodes.
+     */
+    static final char
+        MARK = '(',
+        STOP = '.',
+        LONG = 'L',
+        STRING = 'S',
+        UNICODE = 'V',
+        APPEND = 'a',
+        LIST = 'l',
+        TUPLE = 't',
+        PUT = 'p',
+        GET = 'g';
+
+    TextPickleEncoder(FloatFormat floatFormat, boolean memoize) {
+        super(memoize);
+        this.floatFormat = floatFormat;
+    }
+
+    @Override
+    byte[] encodeName(String name) {
+        PickleBuffer encoded = new PickleBuffer(name.length() + 4);
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) >= 0x80) {
+                // unpickles to the same unicode string as protocol 2's BINUNICODE
+                putUnicode(name, encoded);
+                return encoded.toByteArray();
+            }
+        }
+        // the metric name is a string.
+        encoded.put(STRING);
+        // the single quotes are to match python's repr("abcd")
+        encoded.put('\'');
+        encoded.putLatin1(name);
+        encoded.put('\'');
+        encoded.put('\n');
+        return encoded.toByteArray();
+    }
+
+    @Override
+    void startList(PickleBuffer pickled) {
+        pickled.put(MARK);
+        pickled.put(LIST);
+    }
+
+    @Override
+    void appendMetric(MetricTuple tuple, PickleBuffer pickled) {
+        // start the outer tuple
+        pickled.put(MARK);
+
+        // the metric name is a pre-encoded string.
+        pickled.put(tuple.name);
+
+        if (!getValueTuple(tuple, pickled)) {
+            // start the inner tuple
+            pickled.put(MARK);
+
+            putMemoizedTimestamp(tuple.timestamp, pickled);
+
+            // and the value is a string.
+            pickled.put(STRING);
+            pickled.put('\'');
+            putValue(tuple, pickled);
+            pickled.put('\'');
+            pickled.put('\n');
+
+            pickled.put(TUPLE); // inner close
+            putValueTuple(tuple, pickled);
+        }
+        pickled.put(TUPLE); // outer close
+
+        pickled.put(APPEND);
+    }
+
+    @Override
+    void endList(PickleBuffer pickled) {
+        // every pickle ends with STOP
+        pickled.put(STOP);
+    }
+
+    @Override
+    int endListLength() {
+        return 1;
+    }
+
+    @Override
+    void putTimestamp(long timestamp, PickleBuffer pickled) {
+        // timestamp is a long
+        pickled.put(LONG);
+        DecimalWriter.putLong(pickled, timestamp);
+        // the trailing L is to match python's repr(long(1234))
+        pickled.put('L');
+        pickled.put('\n');
+    }
+
+    @Override
+    void memoPut(int id, PickleBuffer pickled) {
+        pickled.put(PUT);
+        DecimalWriter.putLong(pickled, id);
+        pickled.put('\n');
+    }
+
+    @Override
+    void memoGet(int id, PickleBuffer pickled) {
+        pickled.put(GET);
+        DecimalWriter.putLong(pickled, id);
+        pickled.put('\n');
+    }
+
+    /**
+     * Write a unicode string the way python's pickle does in protocol 0: raw-unicode-escape
+     * encoded, with backslashes and newlines escaped too so the line stays intact.
+     */
+    private static void putUnicode(String s, PickleBuffer pickled) {
+        pickled.put(UNICODE);
+        int length = s.length();
+        for (int i = 0; i < length; ) {
+            int c = s.codePointAt(i);
+            i += Character.charCount(c);
+            if (c < 0x100 && c != '\\' && c != '\n') {
+                pickled.put(c);
+            } else if (c < 0x10000) {
+                putEscape('u', c, 4, pickled);
+            } else {
+                putEscape('U', c, 8, pickled);
+            }
+        }
+        pickled.put('\n');
+    }
+
+    private static void putEscape(char kind, int c, int digits, PickleBuffer pickled) {
+        pickled.put('\\');
+        pickled.put(kind);
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            pickled.put(Character.forDigit((c >>> shift) & 0xF, 16));
+        }
+    }
+
+    private void putValue(MetricTuple tuple, PickleBuffer pickled) {
+        switch (tuple.type) {
+            case MetricTuple.INT:
+                DecimalWriter.putLong(pickled, tuple.intValue);
+                break;
+            case MetricTuple.FLOAT:
+                if (floatFormat == FloatFormat.SHORTEST_ROUND_TRIP) {
+                    DecimalWriter.putShortest(pickled, tuple.floatValue);
+                } else {
+                    DecimalWriter.putFixed2(pickled, tuple.floatValue);
+                }
+                break;
+            default:
+                Object value = tuple.objectValue;
+                pickled.putLatin1(value instanceof Formattable
+                        ? String.format(locale, "%s", value)
+                        : String.valueOf(value));
+                break;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.brightcove.metrics.reporting;
+
+import com.yammer.metrics.reporting.SocketProvider;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to carbon at a fixed host and port, giving up if the connection has not been
+ * established within a timeout. {@code GraphiteReporter.DefaultSocketProvider} waits for
+ * as long as the operating system does, which can be minutes when carbon's host is gone.
+ */
+public class TimeoutSocketProvider implements SocketProvider {
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+    private final String host;
+    private final int port;
+    private final int connectTimeoutMillis;
+
+    public TimeoutSocketProvider(String host, int port) {
+        this(host, port, DEFAULT_CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param connectTimeout how long to wait for a connection, or 0 to wait indefinitely
+     * @param unit           the unit of {@code connectTimeout}
+     */
+    public TimeoutSocketProvider(String host, int port, long connectTimeout, TimeUnit unit) {
+        this.host = host;
+        this.port = port;
+        this.connectTimeoutMillis = toTimeoutMillis(connectTimeout, unit);
+    }
+
+    static int toTimeoutMillis(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must not be negative");
+        }
+        long millis = unit.toMillis(timeout);
+        if (millis == 0 && timeout > 0) {
+            // sub-millisecond, but 0 would mean no timeout at all
+            return 1;
+        }
+        return (int) Math.min(millis, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Socket get() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+}
@@ -0,0 +1,83 @@
+package com.brightcove.metrics.reporting;
+
+/**
+ * The values reported for counters, meters, histograms and timers, each sent as
+ * {@code <metric name>.<value name>}. Gauges always send their {@code value}.
+ */
+public enum ValueName {
+    /**
+     * {@code count}, of counters, meters and timers
+     */
+    COUNT,
+
+    /**
+     * {@code meanRate}, of meters and timers
+     */
+    MEAN_RATE,
+
+    /**
+     * {@code 1MinuteRate}, of meters and timers
+     */
+    ONE_MINUTE_RATE,
+
+    /**
+     * {@code 5MinuteRate}, of meters and timers
+     */
+    FIVE_MINUTE_RATE,
+
+    /**
+     * {@code 15MinuteRate}, of meters and timers
+     */
+    FIFTEEN_MINUTE_RATE,
+
+    /**
+     * {@code min}, of histograms and timers
+     */
+    MIN,
+
+    /**
+     * {@code max}, of histograms and timers
+     */
+    MAX,
+
+    /**
+     * {@code mean}, of histograms and timers
+     */
+    MEAN,
+
+    /**
+     * {@code stddev}, of histograms and timers
+     */
+    STDDEV,
+
+    /**
+     * {@code median}, of histograms and timers. Like the other percentiles, it is
+     * taken from a snapshot of the sample, which has to be copied and sorted.
+     */
+    MEDIAN,
+
+    /**
+     * {@code 75percentile}, of histograms and timers
+     */
+    P75,
+
+    /**
+     * {@code 95percentile}, of histograms and timers
+     */
+    P95,
+
+    /**
+     * {@code 98percentile}, of histograms and timers
+     */
+    P98,
+
+    /**
+     * {@code 99percentile}, of histograms and timers
+     */
+    P99,
+
+    /**
+     * {@code 999percentile}, of histograms and timers
+     */
+    P999
+}
@@ -0,0 +1,43 @@
+package com.brightcove.metrics.reporting;
+
+/**
+ * The groups of VM metrics reported when {@code printVMMetrics} is on, each named as
+ * {@code GraphiteReporter} has always named them.
+ */
+public enum VmMetricGroup {
+    /**
+     * {@code jvm.memory.heap_usage} and {@code jvm.memory.non_heap_usage}
+     */
+    MEMORY,
+
+    /**
+     * {@code jvm.memory.memory_pool_usages.<pool>}
+     */
+    MEMORY_POOLS,
+
+    /**
+     * {@code jvm.thread_count} and {@code jvm.daemon_thread_count}
+     */
+    THREAD_COUNTS,
+
+    /**
+     * {@code jvm.thread-states.<state>}, the share of threads in each state. This looks
+     * up every live thread, so it costs the most in VMs with many threads.
+     */
+    THREAD_STATES,
+
+    /**
+     * {@code jvm.gc.<collector>.time} and {@code jvm.gc.<collector>.runs}
+     */
+    GARBAGE_COLLECTORS,
+
+    /**
+     * {@code jvm.uptime}
+     */
+    UPTIME,
+
+    /**
+     * {@code jvm.fd_usage}, the share of file descriptors in use
+     */
+    FILE_DESCRIPTORS
+}
@@ -0,0 +1,166 @@
+package com.brightcove.metrics.reporting;
+
+import java.lang.Thread.State;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the VM metrics {@code GraphiteReporter.printVmMetrics} sends, under the same
+ * names, from MXBeans that are looked up once rather than on every cycle.
+ *
+ * {@code VirtualMachineMetrics} builds a map for each group on every call, reads each
+ * memory pool's usage three times and finds the file descriptor methods by reflection
+ * every time. Here the names are built once, the beans are read once a cycle and the
+ * thread states are counted into an array. Groups that are switched off are not read at
+ * all, which matters most for the thread states: they need a lookup of every thread.
+ */
+final class VmMetrics {
+    /**
+     * Where the data points go.
+     */
+    interface Sink {
+        void sendInt(long timestamp, String name, String valueName, long value);
+
+        void sendFloat(long timestamp, String name, String valueName, double value);
+
+        /**
+         * @return a pool or collector name as it should appear in a metric name
+         */
+        String sanitize(String name);
+    }
+
+    private static final State[] STATES = State.values();
+
+    private final EnumSet<VmMetricGroup> groups;
+
+    private final MemoryMXBean memory;
+    private final List<MemoryPoolMXBean> pools;
+    private final String[] poolNames;
+    private final ThreadMXBean threads;
+    private final String[] stateNames = new String[STATES.length];
+    private final int[] stateCounts = new int[STATES.length];
+    private final List<GarbageCollectorMXBean> collectors;
+    private final String[] collectorNames;
+    private final RuntimeMXBean runtime;
+    private final OperatingSystemMXBean os;
+    private final Method openFileDescriptorCount;
+    private final Method maxFileDescriptorCount;
+
+    VmMetrics(EnumSet<VmMetricGroup> groups, Sink sink) {
+        this.groups = EnumSet.copyOf(groups);
+        this.memory = ManagementFactory.getMemoryMXBean();
+        this.pools = ManagementFactory.getMemoryPoolMXBeans();
+        this.threads = ManagementFactory.getThreadMXBean();
+        this.collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        this.runtime = ManagementFactory.getRuntimeMXBean();
+        this.os = ManagementFactory.getOperatingSystemMXBean();
+
+        this.poolNames = new String[pools.size()];
+        for (int i = 0; i < poolNames.length; i++) {
+            poolNames[i] = sink.sanitize(pools.get(i).getName());
+        }
+        for (int i = 0; i < STATES.length; i++) {
+            stateNames[i] = STATES[i].toString().toLowerCase(Locale.ENGLISH);
+        }
+        this.collectorNames = new String[collectors.size()];
+        for (int i = 0; i < collectorNames.length; i++) {
+            collectorNames[i] = "jvm.gc." + sink.sanitize(collectors.get(i).getName());
+        }
+
+        Method open = null;
+        Method max = null;
+        try {
+            // only the unix bean has them. going through the public interface needs no
+            // access to the implementation class.
+            Class<?> unix = Class.forName("com.sun.management.UnixOperatingSystemMXBean");
+            if (unix.isInstance(os)) {
+                open = unix.getMethod("getOpenFileDescriptorCount");
+                max = unix.getMethod("getMaxFileDescriptorCount");
+            }
+        } catch (Exception e) {
+            // not a JVM that has them; report NaN like VirtualMachineMetrics
+        }
+        this.openFileDescriptorCount = open;
+        this.maxFileDescriptorCount = max;
+    }
+
+    void report(long epoch, Sink sink) {
+        if (groups.contains(VmMetricGroup.MEMORY)) {
+            sink.sendFloat(epoch, "jvm.memory", "heap_usage", usage(memory.getHeapMemoryUsage()));
+            sink.sendFloat(epoch, "jvm.memory", "non_heap_usage", usage(memory.getNonHeapMemoryUsage()));
+        }
+        if (groups.contains(VmMetricGroup.MEMORY_POOLS)) {
+            for (int i = 0; i < poolNames.length; i++) {
+                MemoryUsage usage = pools.get(i).getUsage();
+                double max = usage.getMax() == -1 ? usage.getCommitted() : usage.getMax();
+                sink.sendFloat(epoch, "jvm.memory.memory_pool_usages", poolNames[i], usage.getUsed() / max);
+            }
+        }
+        if (groups.contains(VmMetricGroup.THREAD_COUNTS)) {
+            sink.sendInt(epoch, "jvm", "daemon_thread_count", threads.getDaemonThreadCount());
+            sink.sendInt(epoch, "jvm", "thread_count", threads.getThreadCount());
+        }
+        if (groups.contains(VmMetricGroup.UPTIME)) {
+            sink.sendInt(epoch, "jvm", "uptime", TimeUnit.MILLISECONDS.toSeconds(runtime.getUptime()));
+        }
+        if (groups.contains(VmMetricGroup.FILE_DESCRIPTORS)) {
+            sink.sendFloat(epoch, "jvm", "fd_usage", fileDescriptorUsage());
+        }
+        if (groups.contains(VmMetricGroup.THREAD_STATES)) {
+            reportThreadStates(epoch, sink);
+        }
+        if (groups.contains(VmMetricGroup.GARBAGE_COLLECTORS)) {
+            for (int i = 0; i < collectorNames.length; i++) {
+                GarbageCollectorMXBean collector = collectors.get(i);
+                sink.sendInt(epoch, collectorNames[i], "time", collector.getCollectionTime());
+                sink.sendInt(epoch, collectorNames[i], "runs", collector.getCollectionCount());
+            }
+        }
+    }
+
+    private void reportThreadStates(long epoch, Sink sink) {
+        for (int i = 0; i < stateCounts.length; i++) {
+            stateCounts[i] = 0;
+        }
+        int live = 0;
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            // threads that have died since their ids were taken are null
+            if (info != null) {
+                stateCounts[info.getThreadState().ordinal()]++;
+                live++;
+            }
+        }
+        for (int i = 0; i < stateCounts.length; i++) {
+            sink.sendFloat(epoch, "jvm.thread-states", stateNames[i], stateCounts[i] / (double) live);
+        }
+    }
+
+    private double fileDescriptorUsage() {
+        if (openFileDescriptorCount == null) {
+            return Double.NaN;
+        }
+        try {
+            long open = (Long) openFileDescriptorCount.invoke(os);
+            long max = (Long) maxFileDescriptorCount.invoke(os);
+            return open / (double) max;
+        } catch (Exception e) {
+            return Double.NaN;
+        }
+    }
+
+    private static double usage(MemoryUsage usage) {
+        return usage.getUsed() / (double) usage.getMax();
+    }
+}
@@ -0,0 +1,146 @@
+package com.brightcove.metrics.reporting;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Puts a deadline on writes to carbon, which sockets have no timeout for. A write to a
+ * carbon that has stopped reading blocks once the socket's send buffer is full, for as
+ * long as the connection stays up.
+ *
+ * Connections record when they start and finish writing, and a daemon thread checks on
+ * them a few times per timeout. A connection that has been writing for longer than its
+ * timeout is aborted, closing its socket from underneath the write, which then fails
+ * with an {@link java.io.IOException} like any other broken connection.
+ *
+ * A single watchdog, with a single thread, watches the connections of every reporter in
+ * the VM. It cannot run on a reporter's scheduler, whose threads are the ones blocked.
+ */
+final class WriteWatchdog {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteWatchdog.class);
+    private static final long IDLE_CHECK_MILLIS = 1000;
+
+    /**
+     * What {@link Watched#writeStartedNanos} returns when no write is in progress.
+     */
+    static final long IDLE = Long.MIN_VALUE;
+
+    private static WriteWatchdog shared;
+
+    /**
+     * A connection whose writes are watched.
+     */
+    interface Watched {
+        /**
+         * @return the {@link System#nanoTime} the write in progress started at, or
+         *         {@link #IDLE}
+         */
+        long writeStartedNanos();
+
+        /**
+         * Close the socket being written to. Called from the watchdog's thread while the
+         * write is blocked on another.
+         *
+         * @return whether there was an open socket to close
+         */
+        boolean abort();
+    }
+
+    private final ConcurrentMap<Watched, Deadline> watched = new ConcurrentHashMap<Watched, Deadline>();
+    private volatile long checkMillis = IDLE_CHECK_MILLIS;
+
+    /**
+     * @return the watchdog shared by every reporter, starting its thread if need be
+     */
+    static synchronized WriteWatchdog shared() {
+        if (shared == null) {
+            final WriteWatchdog watchdog = new WriteWatchdog();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    watchdog.checkForever();
+                }
+            }, "graphite-write-watchdog");
+            thread.setDaemon(true);
+            thread.start();
+            shared = watchdog;
+        }
+        return shared;
+    }
+
+    /**
+     * Abort the writes of {@code connection} that take longer than {@code timeoutNanos},
+     * counting them in {@code aborts}.
+     */
+    void watch(Watched connection, long timeoutNanos, AtomicLong aborts) {
+        if (timeoutNanos <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        watched.put(connection, new Deadline(timeoutNanos, aborts));
+        updateCheckInterval();
+    }
+
+    void unwatch(Watched connection) {
+        watched.remove(connection);
+        updateCheckInterval();
+    }
+
+    /**
+     * Abort every connection that has been writing for longer than its timeout.
+     */
+    void check(long now) {
+        for (Map.Entry<Watched, Deadline> entry : watched.entrySet()) {
+            Watched connection = entry.getKey();
+            Deadline deadline = entry.getValue();
+            long started = connection.writeStartedNanos();
+            if (started == IDLE || now - started <= deadline.timeoutNanos) {
+                continue;
+            }
+            // counted before the socket is closed, so the count is up to date by the time
+            // the aborted write fails
+            deadline.aborts.incrementAndGet();
+            if (connection.abort()) {
+                LOG.warn("Aborted a write to Graphite that took longer than {}ms", deadline.timeoutNanos / 1000000);
+            } else {
+                deadline.aborts.decrementAndGet();
+            }
+        }
+    }
+
+    private void checkForever() {
+        while (true) {
+            try {
+                Thread.sleep(checkMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            check(System.nanoTime());
+        }
+    }
+
+    /**
+     * Check a few times per timeout, for the shortest timeout that is being watched.
+     */
+    private synchronized void updateCheckInterval() {
+        long interval = IDLE_CHECK_MILLIS;
+        for (Deadline deadline : watched.values()) {
+            interval = Math.min(interval, Math.max(1, deadline.timeoutNanos / 4 / 1000000));
+        }
+        checkMillis = interval;
+    }
+
+    private static final class Deadline {
+        final long timeoutNanos;
+        final AtomicLong aborts;
+
+        Deadline(long timeoutNanos, AtomicLong aborts) {
+            this.timeoutNanos = timeoutNanos;
+            this.aborts = aborts;
+        }
+    }
+}
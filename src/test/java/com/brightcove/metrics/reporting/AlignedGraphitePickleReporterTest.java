@@ -0,0 +1,97 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.ByteArrayOutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.Bindings;
+import javax.script.ScriptEngineManager;
+import javax.script.SimpleBindings;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.python.core.PyList;
+import org.python.core.PyTuple;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.reporting.SocketProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests of the reporter when its runs are aligned to the period
+ */
+public class AlignedGraphitePickleReporterTest {
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private SocketProvider provider;
+
+    @Before
+    public void before() throws Exception {
+        registry.newCounter(new MetricName(Object.class, "counter")).inc();
+
+        Socket socket = mock(Socket.class);
+        when(socket.getOutputStream()).thenReturn(out);
+        provider = mock(SocketProvider.class);
+        when(provider.get()).thenReturn(socket);
+    }
+
+    @Test
+    public void timestampsAreTheStartOfThePeriod() throws Exception {
+        Clock clock = mock(Clock.class);
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, "prefix", MetricPredicate.ALL,
+                                                                     provider, clock, 100);
+        reporter.printVMMetrics = false;
+        reporter.setAlignedSchedule(0, TimeUnit.SECONDS);
+        try {
+            when(clock.time()).thenReturn(0L);
+            reporter.start(60, TimeUnit.SECONDS);
+
+            when(clock.time()).thenReturn(179999L);
+            reporter.run();
+
+            Bindings bindings = new SimpleBindings();
+            bindings.put("payload", out.toString(GraphitePickleReporter.CHARSET_NAME));
+            new ScriptEngineManager().getEngineByName("python").eval(GraphitePickleReporterTest.UNPICKLER_SCRIPT, bindings);
+            PyTuple point = (PyTuple) ((PyList) bindings.get("metrics")).get(0);
+            assertEquals("120", ((PyTuple) point.get(1)).get(0).toString());
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    @Test
+    public void runsOncePerPeriod() throws Exception {
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, "prefix", MetricPredicate.ALL,
+                                                                     provider, Clock.defaultClock(), 100);
+        reporter.printVMMetrics = false;
+        reporter.setAlignedSchedule(50, TimeUnit.MILLISECONDS, "web1");
+        try {
+            reporter.start(100, TimeUnit.MILLISECONDS);
+            verify(provider, timeout(2000).atLeast(3)).get();
+            assertEquals(0, reporter.getMissedRuns());
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void jitterMustBeShorterThanThePeriod() throws Exception {
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, "prefix", MetricPredicate.ALL,
+                                                                     provider, Clock.defaultClock(), 100);
+        reporter.setAlignedSchedule(1, TimeUnit.MINUTES);
+        try {
+            reporter.start(1, TimeUnit.MINUTES);
+        } finally {
+            reporter.shutdown();
+        }
+    }
+}
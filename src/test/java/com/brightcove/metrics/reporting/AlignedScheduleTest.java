@@ -0,0 +1,57 @@
+package com.brightcove.metrics.reporting;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AlignedScheduleTest {
+
+    @Test
+    public void jitterIsDeterministicAndSpreadAcrossTheWindow() {
+        Set<Long> buckets = new HashSet<Long>();
+        for (int i = 0; i < 100; i++) {
+            long jitter = AlignedSchedule.jitter("web" + i + ".example.com", 10000);
+            assertEquals(jitter, AlignedSchedule.jitter("web" + i + ".example.com", 10000));
+            assertTrue(jitter >= 0 && jitter < 10000);
+            buckets.add(jitter / 1000);
+        }
+        // consecutive host names must not all land in the same second
+        assertEquals(10, buckets.size());
+        assertEquals(0, AlignedSchedule.jitter("web1", 0));
+    }
+
+    @Test
+    public void cyclesReportOnTheSlotTheyRunIn() {
+        AlignedSchedule schedule = new AlignedSchedule(60000, 10000, "web1");
+        long jitter = schedule.getJitterMillis();
+
+        // the cycle for a slot runs jitter into it, and until then the previous slot is due
+        assertEquals(120000, schedule.slot(120000 + jitter));
+        assertEquals(120000, schedule.slot(179999 + jitter));
+        assertEquals(60000, schedule.slot(119999 + jitter));
+
+        assertEquals(60000, schedule.delayUntilNext(120000 + jitter));
+        assertEquals(1, schedule.delayUntilNext(179999 + jitter));
+    }
+
+    @Test
+    public void skippedAndRepeatedSlotsAreDetected() {
+        AlignedSchedule schedule = new AlignedSchedule(60000, 0, "web1");
+        assertEquals(0, schedule.advance(60000));
+        assertEquals(0, schedule.advance(120000));
+        // the same slot again, or an earlier one, must not be reported twice
+        assertEquals(-1, schedule.advance(120000));
+        assertEquals(-1, schedule.advance(60000));
+        // two slots went by without a cycle
+        assertEquals(2, schedule.advance(300000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void jitterMustBeShorterThanThePeriod() {
+        new AlignedSchedule(60000, 60000, "web1");
+    }
+}
@@ -0,0 +1,100 @@
+package com.brightcove.metrics.reporting;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures how much the reporting thread allocates in a steady-state cycle
+ */
+public class AllocationGraphitePickleReporterTest {
+
+    private static final int METRICS = 2000;
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private com.sun.management.ThreadMXBean threads;
+    private long sink;
+
+    @Before
+    public void before() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        for (int i = 0; i < METRICS; i++) {
+            registry.newCounter(new MetricName(Object.class, "counter" + i)).inc(i);
+        }
+    }
+
+    @Test
+    public void steadyStateCycleAllocatesLittlePerDataPoint() throws Exception {
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, "prefix", MetricPredicate.ALL,
+                                                                     new NullSocketProvider(), Clock.defaultClock(), 100);
+        reporter.printVMMetrics = false;
+        try {
+            assertSteadyState(reporter);
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    @Test
+    public void steadyStateCycleAllocatesLittlePerDataPointWhenSendingAsync() throws Exception {
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, "prefix", MetricPredicate.ALL,
+                                                                     new NullSocketProvider(), Clock.defaultClock(), 100);
+        reporter.printVMMetrics = false;
+        reporter.setAsyncSend(1024, OverflowPolicy.BLOCK);
+        try {
+            assertSteadyState(reporter);
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    private void assertSteadyState(GraphitePickleReporter reporter) {
+        // fill the name cache, grow the buffers and let the JIT settle
+        for (int i = 0; i < 20; i++) {
+            reporter.run();
+            walkRegistry();
+        }
+        // the registry builds a sorted copy of itself every cycle, which is out of our hands
+        long registry = Long.MAX_VALUE;
+        long cycle = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long before = allocatedBytes();
+            walkRegistry();
+            registry = Math.min(registry, allocatedBytes() - before);
+
+            before = allocatedBytes();
+            reporter.run();
+            cycle = Math.min(cycle, allocatedBytes() - before);
+        }
+        long perPoint = (cycle - registry) / METRICS;
+        assertTrue("a cycle allocated " + cycle + " bytes, walking the registry " + registry, perPoint < 16);
+    }
+
+    private void walkRegistry() {
+        for (Map.Entry<String, SortedMap<MetricName, Metric>> group : registry.groupedMetrics(MetricPredicate.ALL).entrySet()) {
+            for (Map.Entry<MetricName, Metric> entry : group.getValue().entrySet()) {
+                sink += entry.getKey().hashCode();
+            }
+        }
+    }
+
+    private long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
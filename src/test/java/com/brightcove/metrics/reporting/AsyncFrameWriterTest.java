@@ -0,0 +1,216 @@
+package com.brightcove.metrics.reporting;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncFrameWriterTest {
+
+    private final BlockingWriter delegate = new BlockingWriter();
+
+    @Test
+    public void dropsNewestWhenFull() throws Exception {
+        AsyncFrameWriter writer = new AsyncFrameWriter(delegate, 1, OverflowPolicy.DROP_NEWEST);
+        fill(writer);
+
+        assertEquals(1, writer.getDroppedBatches());
+        release(writer);
+        assertEquals("[1, 2]", delegate.written.toString());
+    }
+
+    @Test
+    public void countsThePointsItDrops() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        AsyncFrameWriter writer = new AsyncFrameWriter(delegate, 1, OverflowPolicy.DROP_NEWEST, null, null,
+                                                       new ReporterMetrics(registry, "self"));
+        fill(writer);
+
+        release(writer);
+        Counter dropped = (Counter) registry.allMetrics().get(new MetricName("self", "reporter", "dropped-points"));
+        assertEquals(3, dropped.count());
+    }
+
+    @Test
+    public void dropsOldestWhenFull() throws Exception {
+        AsyncFrameWriter writer = new AsyncFrameWriter(delegate, 1, OverflowPolicy.DROP_OLDEST);
+        fill(writer);
+
+        assertEquals(1, writer.getDroppedBatches());
+        release(writer);
+        assertEquals("[1, 3]", delegate.written.toString());
+    }
+
+    @Test
+    public void blocksWhenFull() throws Exception {
+        final AsyncFrameWriter writer = new AsyncFrameWriter(delegate, 1, OverflowPolicy.BLOCK);
+        writer.write(frame(1));
+        assertTrue(delegate.started.await(5, TimeUnit.SECONDS));
+        writer.write(frame(2));
+
+        Thread blocked = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writer.write(frame(3));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        blocked.start();
+        blocked.join(200);
+        assertTrue(blocked.isAlive());
+
+        delegate.release.countDown();
+        blocked.join(5000);
+        writer.close();
+        assertEquals(0, writer.getDroppedBatches());
+        assertEquals("[1, 2, 3]", delegate.written.toString());
+    }
+
+    @Test
+    public void sendsOnTheExecutorOneTaskAtATime() throws Exception {
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+        try {
+            AsyncFrameWriter writer = new AsyncFrameWriter(delegate, 2, OverflowPolicy.DROP_NEWEST, executor);
+            fill(writer);
+
+            // the second and third joined the queue of the task that is sending the first
+            assertEquals(1, executor.getTaskCount());
+            assertEquals(0, writer.getDroppedBatches());
+            release(writer);
+            assertEquals("[1, 2, 3]", delegate.written.toString());
+            // the pool counts the task once it has returned, which may be after close
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+            assertEquals(1, executor.getCompletedTaskCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void closesPromptlyWhenTheExecutorRejectsSends() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        AsyncFrameWriter writer = new AsyncFrameWriter(delegate, 2, OverflowPolicy.DROP_NEWEST, executor);
+        writer.write(frame(1));
+
+        assertEquals(1, writer.getQueuedBatches());
+        long start = System.nanoTime();
+        release(writer);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertEquals(1, writer.getQueuedBatches());
+    }
+
+    @Test
+    public void passesOnTheEndOfTheCycleOnceItsBatchesAreSent() throws Exception {
+        delegate.release.countDown();
+        AsyncFrameWriter writer = new AsyncFrameWriter(delegate, 4, OverflowPolicy.BLOCK);
+        // the sender catches up after each of these
+        writer.write(frame(1));
+        awaitWritten(1);
+        writer.write(frame(2));
+        awaitWritten(2);
+        assertEquals(0, delegate.cycles.get());
+
+        writer.write(frame(3));
+        writer.endCycle();
+        writer.close();
+        assertEquals("[1, 2, 3]", delegate.written.toString());
+        assertEquals(1, delegate.cycles.get());
+    }
+
+    @Test
+    public void passesOnTheEndOfTheCycleOnTheExecutor() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        delegate.release.countDown();
+        try {
+            AsyncFrameWriter writer = new AsyncFrameWriter(delegate, 4, OverflowPolicy.BLOCK, executor);
+            // each of these is sent by a task of its own, which ends once the queue is empty
+            writer.write(frame(1));
+            awaitWritten(1);
+            writer.write(frame(2));
+            awaitWritten(2);
+            assertEquals(0, delegate.cycles.get());
+
+            writer.endCycle();
+            writer.close();
+            assertEquals(1, delegate.cycles.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void awaitWritten(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (delegate.written.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, delegate.written.size());
+        // long enough for the sender to find the queue empty
+        Thread.sleep(50);
+    }
+
+    /**
+     * Block the sender on the first frame, queue the second and overflow with the third.
+     */
+    private void fill(AsyncFrameWriter writer) throws Exception {
+        writer.write(frame(1));
+        assertTrue(delegate.started.await(5, TimeUnit.SECONDS));
+        writer.write(frame(2));
+        writer.write(frame(3));
+    }
+
+    private void release(AsyncFrameWriter writer) {
+        delegate.release.countDown();
+        writer.close();
+        assertTrue(delegate.closed);
+    }
+
+    private static PickleBuffer frame(int id) {
+        PickleBuffer frame = new PickleBuffer(1).put(id);
+        // a batch of as many points as its id
+        frame.setPoints(id);
+        return frame;
+    }
+
+    private static class BlockingWriter implements FrameWriter {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> written = new CopyOnWriteArrayList<Integer>();
+        final AtomicInteger cycles = new AtomicInteger();
+        volatile boolean closed;
+
+        @Override
+        public void write(PickleBuffer payload) throws Exception {
+            started.countDown();
+            release.await();
+            written.add((int) payload.toByteArray()[0]);
+        }
+
+        @Override
+        public void endCycle() {
+            cycles.incrementAndGet();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.OutputStream;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.reporting.AbstractPollingReporter;
+
+/**
+ * Tests of the reporter when batches are sent from a separate thread
+ */
+public class AsyncGraphitePickleReporterTest extends GraphitePickleReporterTest {
+
+    @Override
+    protected AbstractPollingReporter createReporter(MetricsRegistry registry, OutputStream out, Clock clock) throws Exception {
+        final GraphitePickleReporter reporter = (GraphitePickleReporter) super.createReporter(registry, out, clock);
+        reporter.setPersistentConnection(true);
+        reporter.setAsyncSend(4, OverflowPolicy.BLOCK);
+        return reporter;
+    }
+
+    @Override
+    protected void afterRun() throws Exception {
+        // shutting down waits for the sender to drain the queue
+        reporter.shutdown();
+    }
+}
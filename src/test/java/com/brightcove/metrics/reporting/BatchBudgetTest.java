@@ -0,0 +1,40 @@
+package com.brightcove.metrics.reporting;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchBudgetTest {
+
+    @Test
+    public void fixedBudgetNeverChanges() {
+        BatchBudget budget = BatchBudget.fixed(1000);
+        budget.recordWrite(Long.MAX_VALUE);
+        budget.recordWrite(0);
+        assertEquals(1000, budget.bytes());
+    }
+
+    @Test
+    public void adaptiveBudgetFollowsWriteLatency() {
+        BatchBudget budget = BatchBudget.adaptive(1000, 2000, 100);
+        assertEquals(1000, budget.bytes());
+
+        // fast writes grow it by a quarter, up to the maximum
+        budget.recordWrite(10);
+        assertEquals(1250, budget.bytes());
+        for (int i = 0; i < 10; i++) {
+            budget.recordWrite(10);
+        }
+        assertEquals(2000, budget.bytes());
+
+        // writes near the target leave it alone
+        budget.recordWrite(80);
+        assertEquals(2000, budget.bytes());
+
+        // slow writes halve it, down to the minimum
+        budget.recordWrite(200);
+        assertEquals(1000, budget.bytes());
+        budget.recordWrite(200);
+        assertEquals(1000, budget.bytes());
+    }
+}
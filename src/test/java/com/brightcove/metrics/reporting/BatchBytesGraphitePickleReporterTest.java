@@ -0,0 +1,58 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.reporting.AbstractPollingReporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the reporter when batches are cut by size rather than by count
+ */
+public class BatchBytesGraphitePickleReporterTest extends GraphitePickleReporterTest {
+
+    private static final int BATCH_BYTES = 400;
+
+    @Override
+    protected AbstractPollingReporter createReporter(MetricsRegistry registry, OutputStream out, Clock clock) throws Exception {
+        final GraphitePickleReporter reporter = (GraphitePickleReporter) super.createReporter(registry, out, clock);
+        reporter.setBatchBytes(BATCH_BYTES);
+        return reporter;
+    }
+
+    @Test
+    public void everyMessageFitsTheBudget() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            registry.newCounter(new MetricName(Object.class, "counter" + i)).inc(i);
+        }
+        try {
+            reporter.run();
+
+            ByteBuffer frames = ByteBuffer.wrap(out.toByteArray());
+            int messages = 0;
+            while (frames.hasRemaining()) {
+                int length = frames.getInt();
+                assertTrue("message of " + length + " bytes", length <= BATCH_BYTES);
+                frames.position(frames.position() + length);
+                messages++;
+            }
+            // more than one data point shares each message, far more than the count of 2 would allow
+            assertTrue(messages + " messages", messages < 100);
+            assertEquals(200, unpickle(out.toString(GraphitePickleReporter.CHARSET_NAME)).size());
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBudgetsCarbonWouldNotAccept() {
+        ((GraphitePickleReporter) reporter).setBatchBytes(BatchBudget.CARBON_MAX_LENGTH + 1);
+    }
+}
@@ -0,0 +1,98 @@
+package com.brightcove.metrics.reporting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests of the reporter when it collects every cycle and sends at a longer interval
+ */
+public class BufferedGraphitePickleReporterTest {
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final Clock clock = mock(Clock.class);
+    private FakeCarbonReceiver carbon;
+    private GraphitePickleReporter reporter;
+
+    @Before
+    public void before() throws Exception {
+        carbon = new FakeCarbonReceiver();
+        reporter = new GraphitePickleReporter(registry, "prefix", MetricPredicate.ALL,
+                                              carbon.socketProvider(), clock, 100);
+        reporter.printVMMetrics = false;
+        reporter.setPersistentConnection(true);
+    }
+
+    @After
+    public void after() throws Exception {
+        reporter.shutdown();
+        carbon.close();
+    }
+
+    @Test
+    public void sendsEveryCollectedPointOnceTheFlushIsDue() throws Exception {
+        Counter counter = registry.newCounter(new MetricName(Object.class, "counter"));
+        reporter.setFlushInterval(30, TimeUnit.SECONDS, 1 << 20);
+        reporter.start(10, TimeUnit.SECONDS);
+
+        for (long time = 0; time < 30000; time += 10000) {
+            counter.inc();
+            when(clock.time()).thenReturn(time);
+            reporter.run();
+            if (time < 20000) {
+                assertEquals(time / 10000 + 1, reporter.getBufferedPoints());
+            }
+        }
+
+        assertTrue(carbon.awaitPoints(3, 5, TimeUnit.SECONDS));
+        assertEquals(0, reporter.getBufferedPoints());
+        assertEquals(1, carbon.getFrames());
+        List<String> points = new ArrayList<String>();
+        for (FakeCarbonReceiver.DataPoint point : carbon.getReceived()) {
+            points.add(point.timestamp + "=" + point.value);
+        }
+        assertEquals("[0=1, 10=2, 20=3]", points.toString());
+    }
+
+    @Test
+    public void aFullBufferIsSentEarly() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            registry.newCounter(new MetricName(Object.class, "counter" + i)).inc();
+        }
+        reporter.setFlushInterval(1, TimeUnit.HOURS, 1000);
+        reporter.start(10, TimeUnit.SECONDS);
+        when(clock.time()).thenReturn(0L);
+        reporter.run();
+
+        assertTrue(reporter.getBufferedPoints() < 100);
+        assertTrue(carbon.awaitPoints(100 - reporter.getBufferedPoints(), 5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shutdownSendsWhatWasCollected() throws Exception {
+        registry.newCounter(new MetricName(Object.class, "counter")).inc();
+        reporter.setFlushInterval(1, TimeUnit.HOURS, 1 << 20);
+        reporter.start(10, TimeUnit.SECONDS);
+        when(clock.time()).thenReturn(0L);
+        reporter.run();
+        assertEquals(1, reporter.getBufferedPoints());
+
+        reporter.shutdown();
+        assertTrue(carbon.awaitPoints(1, 5, TimeUnit.SECONDS));
+    }
+}
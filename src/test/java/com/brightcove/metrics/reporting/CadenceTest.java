@@ -0,0 +1,36 @@
+package com.brightcove.metrics.reporting;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CadenceTest {
+
+    private static String due(Cadence cadence, long... times) {
+        StringBuilder due = new StringBuilder();
+        for (long time : times) {
+            due.append(cadence.isDue(time, 10) ? 'x' : '-');
+        }
+        return due.toString();
+    }
+
+    @Test
+    public void dueEveryInterval() {
+        assertEquals("x--x--x", due(new Cadence(30, true), 0, 10, 20, 30, 40, 50, 60));
+    }
+
+    @Test
+    public void firstDueAfterAnInterval() {
+        assertEquals("--x--x", due(new Cadence(30, false), 0, 10, 20, 30, 40, 50));
+    }
+
+    @Test
+    public void toleratesCyclesThatRunALittleEarlyOrLate() {
+        assertEquals("x--x--x", due(new Cadence(30, true), 1, 12, 19, 29, 41, 52, 58));
+    }
+
+    @Test
+    public void dueOnceAfterSkippedCycles() {
+        assertEquals("x-xx--x", due(new Cadence(30, true), 0, 10, 100, 130, 140, 150, 160));
+    }
+}
@@ -0,0 +1,104 @@
+package com.brightcove.metrics.reporting;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the reporter against a fake carbon over real sockets
+ */
+public class CarbonReceiverGraphitePickleReporterTest {
+
+    private static final int COUNTERS = 1000;
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private FakeCarbonReceiver carbon;
+    private GraphitePickleReporter reporter;
+
+    @Before
+    public void before() throws Exception {
+        for (int i = 0; i < COUNTERS; i++) {
+            registry.newCounter(new MetricName(Object.class, "counter" + i)).inc(i);
+        }
+        carbon = new FakeCarbonReceiver();
+    }
+
+    @After
+    public void after() throws Exception {
+        if (reporter != null) {
+            reporter.shutdown();
+        }
+        carbon.close();
+    }
+
+    @Test
+    public void deliversEveryDataPoint() throws Exception {
+        for (PickleProtocol protocol : PickleProtocol.values()) {
+            reporter = newReporter(100);
+            reporter.setPickleProtocol(protocol);
+            reporter.setMemoize(true);
+            reporter.run();
+            reporter.shutdown();
+        }
+
+        assertTrue(carbon.awaitPoints(2 * COUNTERS, 5, TimeUnit.SECONDS));
+        Set<String> values = new HashSet<String>();
+        for (FakeCarbonReceiver.DataPoint point : carbon.getReceived()) {
+            values.add(point.name + "=" + point.value);
+        }
+        // the same data points over both protocols, give or take the type of the value
+        assertEquals(COUNTERS, values.size());
+        assertTrue(values.contains("prefix.java.lang.Object.counter999.count=999"));
+        assertEquals(20, carbon.getConnections());
+    }
+
+    @Test
+    public void persistentConnectionRecoversFromAReset() throws Exception {
+        reporter = newReporter(COUNTERS);
+        reporter.setPersistentConnection(true);
+        carbon.setResetAfterFrames(1);
+
+        reporter.run();
+        assertTrue(carbon.awaitResets(1, 5, TimeUnit.SECONDS));
+        reporter.run();
+
+        assertTrue(carbon.awaitPoints(2 * COUNTERS, 5, TimeUnit.SECONDS));
+        assertEquals(2, carbon.getConnections());
+    }
+
+    @Test
+    public void asyncSendKeepsReportingWhileCarbonStalls() throws Exception {
+        reporter = newReporter(100);
+        reporter.setAsyncSend(2, OverflowPolicy.DROP_NEWEST);
+        reporter.setPersistentConnection(true);
+        carbon.setFrameLatency(200, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        reporter.run();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // 10 batches would take 2 seconds to deliver
+        assertTrue("run took " + elapsed + "ms", elapsed < 1000);
+        assertTrue(reporter.getDroppedBatches() > 0);
+    }
+
+    private GraphitePickleReporter newReporter(int batchSize) throws Exception {
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, "prefix", MetricPredicate.ALL,
+                                                                     carbon.socketProvider(), Clock.defaultClock(),
+                                                                     batchSize);
+        reporter.printVMMetrics = false;
+        return reporter;
+    }
+}
@@ -0,0 +1,102 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.reporting.AbstractPollingReporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests of the reporter when it writes to a local channel instead of a socket
+ */
+public class ChannelGraphitePickleReporterTest extends GraphitePickleReporterTest {
+
+    private ServerSocketChannel server;
+    private int connections;
+
+    @Override
+    protected AbstractPollingReporter createReporter(MetricsRegistry registry, OutputStream out, Clock clock) throws Exception {
+        final GraphitePickleReporter reporter = (GraphitePickleReporter) super.createReporter(registry, out, clock);
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        reporter.setChannelProvider(new DefaultChannelProvider("127.0.0.1", server.socket().getLocalPort()));
+        return reporter;
+    }
+
+    @After
+    public void closeServer() throws Exception {
+        server.close();
+    }
+
+    /**
+     * Every message used its own channel, which was closed once it was written. Read
+     * them back in the order they were made.
+     */
+    @Override
+    protected void afterRun() throws Exception {
+        server.configureBlocking(false);
+        SocketChannel accepted;
+        while ((accepted = server.accept()) != null) {
+            readFully(accepted);
+        }
+    }
+
+    @Test
+    public void reusesChannelWhenPersistent() throws Exception {
+        GraphitePickleReporter reporter = (GraphitePickleReporter) this.reporter;
+        reporter.setPersistentConnection(true);
+        try {
+            // three counters are two batches with a batch size of 2
+            for (int i = 0; i < 3; i++) {
+                registry.newCounter(new MetricName(Object.class, "counter" + i)).inc(i);
+            }
+            reporter.run();
+            reporter.run();
+        } finally {
+            reporter.shutdown();
+        }
+
+        SocketChannel accepted = server.accept();
+        readFully(accepted);
+        server.configureBlocking(false);
+        assertNull(server.accept());
+
+        assertEquals(1, connections);
+        assertEquals(4, countFrames(out.toByteArray()));
+    }
+
+    private void readFully(SocketChannel channel) throws Exception {
+        connections++;
+        channel.configureBlocking(true);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        try {
+            while (channel.read(buffer) != -1) {
+                out.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static int countFrames(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int frames = 0;
+        while (buffer.hasRemaining()) {
+            buffer.position(buffer.position() + 4 + buffer.getInt());
+            frames++;
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,69 @@
+package com.brightcove.metrics.reporting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The expected placements were produced by carbon's own ConsistentHashRing
+ * (carbon/hashing.py, hash_type carbon_ch) with the same destinations.
+ */
+public class ConsistentHashRingTest {
+
+    private static final List<CarbonDestination> DESTINATIONS = Arrays.asList(
+            CarbonDestination.parse("10.0.0.1:2004:a"),
+            CarbonDestination.parse("10.0.0.1:2104:b"),
+            CarbonDestination.parse("10.0.0.2:2004"));
+
+    @Test
+    public void buildsCarbonRingKeys() {
+        assertEquals("('10.0.0.1', 'a')", DESTINATIONS.get(0).ringKey());
+        assertEquals("('10.0.0.2', None)", DESTINATIONS.get(2).ringKey());
+        assertEquals("(\"it's\", 'x\\\\y')", new CarbonDestination("it's", 2004, "x\\y").ringKey());
+    }
+
+    @Test
+    public void placesMetricsLikeCarbon() {
+        ConsistentHashRing ring = ring(DESTINATIONS);
+        assertEquals(
+                "12102012021101010110201222200100221201102000120020222222121110012000001201221111212210200202"
+                + "02221100211121021002012110122110210101212010201101202102220221101021012201122012102111122222"
+                + "1101002000210111",
+                placements(ring, "carbon.agents.host%d.cpuUsage", 200));
+    }
+
+    @Test
+    public void placesMetricsLikeCarbonWithQuotedKeys() {
+        ConsistentHashRing ring = ring(Arrays.asList(
+                new CarbonDestination("graphite-1", 2004, null),
+                new CarbonDestination("it's", 2004, "x\\y")));
+        assertEquals(
+                "1110000100011000100011110011011110001001111011100010011100100101010010001100010100000010110011101000",
+                placements(ring, "m%d", 100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDestinationWithoutPort() {
+        CarbonDestination.parse("10.0.0.1");
+    }
+
+    static ConsistentHashRing ring(List<CarbonDestination> destinations) {
+        List<String> keys = new ArrayList<String>();
+        for (CarbonDestination destination : destinations) {
+            keys.add(destination.ringKey());
+        }
+        return new ConsistentHashRing(keys, ConsistentHashRing.DEFAULT_REPLICAS);
+    }
+
+    private static String placements(ConsistentHashRing ring, String format, int count) {
+        StringBuilder placements = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            placements.append(ring.getNode(String.format(format, i)));
+        }
+        return placements.toString();
+    }
+}
@@ -0,0 +1,270 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.reporting.SocketProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the write timeout, the cycle budget and the skipping of late runs
+ */
+public class DeadlineGraphitePickleReporterTest {
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final AtomicInteger writes = new AtomicInteger();
+
+    private GraphitePickleReporter newReporter(SocketProvider provider, int batchSize) throws Exception {
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, "prefix", MetricPredicate.ALL,
+                                                                     provider, Clock.defaultClock(), batchSize);
+        reporter.printVMMetrics = false;
+        return reporter;
+    }
+
+    @Test
+    public void writeTimeoutAbortsAStalledWrite() throws Exception {
+        registry.newCounter(new MetricName(Object.class, "counter")).inc();
+        GraphitePickleReporter reporter = newReporter(new SocketProvider() {
+            @Override
+            public Socket get() {
+                return new StalledSocket();
+            }
+        }, 100);
+        reporter.setWriteTimeout(100, TimeUnit.MILLISECONDS);
+        try {
+            long start = System.nanoTime();
+            reporter.run();
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            assertEquals(1, reporter.getAbortedWrites());
+            assertEquals(CycleOutcome.FAILED, reporter.getLastCycleOutcome());
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    @Test
+    public void aStalledPersistentWriteIsAbortedOnce() throws Exception {
+        registry.newCounter(new MetricName(Object.class, "counter")).inc();
+        final AtomicInteger sockets = new AtomicInteger();
+        GraphitePickleReporter reporter = newReporter(new SocketProvider() {
+            @Override
+            public Socket get() {
+                sockets.incrementAndGet();
+                return new StalledSocket();
+            }
+        }, 100);
+        reporter.setPersistentConnection(true);
+        reporter.setWriteTimeout(100, TimeUnit.MILLISECONDS);
+        try {
+            reporter.run();
+            // the write is not tried again on a new socket, to time out a second time
+            assertEquals(1, sockets.get());
+            assertEquals(1, reporter.getAbortedWrites());
+            assertEquals(CycleOutcome.FAILED, reporter.getLastCycleOutcome());
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    @Test
+    public void cycleBudgetGivesUpOnTheRestOfTheCycle() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            registry.newCounter(new MetricName(Object.class, "counter" + i)).inc();
+        }
+        GraphitePickleReporter reporter = newReporter(new SlowSocketProvider(20), 1);
+        reporter.setCycleBudget(100, TimeUnit.MILLISECONDS);
+        try {
+            reporter.run();
+            assertEquals(CycleOutcome.TIMED_OUT, reporter.getLastCycleOutcome());
+            assertEquals(1, reporter.getCycles(CycleOutcome.TIMED_OUT));
+            assertTrue("wrote " + writes.get(), writes.get() < 50);
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    @Test
+    public void cycleBudgetBoundsAWriteBlockedOnTheSendQueue() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            registry.newCounter(new MetricName(Object.class, "counter" + i)).inc();
+        }
+        GraphitePickleReporter reporter = newReporter(new SocketProvider() {
+            @Override
+            public Socket get() {
+                return new StalledSocket();
+            }
+        }, 1);
+        reporter.setAsyncSend(1, OverflowPolicy.BLOCK);
+        reporter.setCycleBudget(100, TimeUnit.MILLISECONDS);
+        // lets the sender go when the test is over
+        reporter.setWriteTimeout(100, TimeUnit.MILLISECONDS);
+        try {
+            long start = System.nanoTime();
+            reporter.run();
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+            assertEquals(CycleOutcome.TIMED_OUT, reporter.getLastCycleOutcome());
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shutdownFailsAWriteThatIsBlocked() throws Exception {
+        registry.newCounter(new MetricName(Object.class, "counter")).inc();
+        final CountDownLatch connected = new CountDownLatch(1);
+        final GraphitePickleReporter reporter = newReporter(new SocketProvider() {
+            @Override
+            public Socket get() {
+                connected.countDown();
+                return new StalledSocket();
+            }
+        }, 100);
+        // no write timeout, so nothing else would let go of the write
+        reporter.setPersistentConnection(true);
+        Thread cycle = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reporter.run();
+            }
+        });
+        cycle.start();
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+
+        reporter.shutdown(1, TimeUnit.SECONDS);
+        cycle.join(5000);
+        assertFalse(cycle.isAlive());
+        assertEquals(CycleOutcome.FAILED, reporter.getLastCycleOutcome());
+    }
+
+    @Test
+    public void runsThatAreDueDuringAnOverrunAreSkipped() throws Exception {
+        registry.newCounter(new MetricName(Object.class, "counter")).inc();
+        final SocketProvider slow = new SlowSocketProvider(300);
+        GraphitePickleReporter reporter = newReporter(new SocketProvider() {
+            @Override
+            public Socket get() throws Exception {
+                // only the first cycle overruns
+                return writes.get() == 0 ? slow.get() : new SlowSocketProvider(0).get();
+            }
+        }, 100);
+        try {
+            reporter.start(50, TimeUnit.MILLISECONDS);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (reporter.getCycles(CycleOutcome.COMPLETED) < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(reporter.getCycles(CycleOutcome.COMPLETED) >= 3);
+            assertTrue("missed " + reporter.getMissedRuns(), reporter.getMissedRuns() >= 3);
+            assertEquals(reporter.getMissedRuns(), reporter.getCycles(CycleOutcome.SKIPPED));
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    @Test
+    public void timeoutSocketProviderConnects() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        try {
+            Socket socket = new TimeoutSocketProvider("localhost", server.getLocalPort(), 1, TimeUnit.SECONDS).get();
+            assertTrue(socket.isConnected());
+            socket.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * A socket to a carbon that has stopped reading: writes block until it is closed.
+     */
+    private static class StalledSocket extends Socket {
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (StalledSocket.this) {
+                    while (!isClosed()) {
+                        try {
+                            StalledSocket.this.wait();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                    }
+                }
+                throw new IOException("Socket closed");
+            }
+        };
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void shutdownOutput() {
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            super.close();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Opens sockets whose every write takes a while.
+     */
+    private class SlowSocketProvider implements SocketProvider {
+        private final long writeMillis;
+
+        SlowSocketProvider(long writeMillis) {
+            this.writeMillis = writeMillis;
+        }
+
+        @Override
+        public Socket get() {
+            return new Socket() {
+                @Override
+                public OutputStream getOutputStream() {
+                    return new OutputStream() {
+                        @Override
+                        public void write(int b) {
+                        }
+
+                        @Override
+                        public void flush() throws IOException {
+                            try {
+                                Thread.sleep(writeMillis);
+                            } catch (InterruptedException e) {
+                                throw new IOException(e);
+                            }
+                            writes.incrementAndGet();
+                        }
+                    };
+                }
+
+                @Override
+                public void shutdownOutput() {
+                }
+            };
+        }
+    }
+}
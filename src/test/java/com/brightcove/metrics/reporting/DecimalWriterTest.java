@@ -0,0 +1,105 @@
+package com.brightcove.metrics.reporting;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DecimalWriterTest {
+
+    private static final double[] TRICKY = {
+        0.0, -0.0, 0.005, 1.005, 2.675, 0.125, 0.375, 9.995, -0.001, -1.5, 0.045,
+        123456.785, 1e13, 1e-7, 1e300, Double.MIN_VALUE, Double.MAX_VALUE,
+        Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+    };
+
+    private final PickleBuffer buffer = new PickleBuffer(64);
+
+    @Test
+    public void longsMatchStringFormat() throws Exception {
+        long[] values = { 0, 1, -1, 9, 10, -10, 99, 100, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE };
+        for (long value : values) {
+            buffer.clear();
+            DecimalWriter.putLong(buffer, value);
+            assertEquals(String.format(Locale.US, "%d", value), written());
+        }
+    }
+
+    @Test
+    public void fixedMatchesStringFormat() throws Exception {
+        for (double value : TRICKY) {
+            assertFixed(value);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            assertFixed(randomDouble(random, i));
+        }
+    }
+
+    @Test
+    public void shortestRoundTrips() throws Exception {
+        for (double value : TRICKY) {
+            assertShortest(value);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            assertShortest(randomDouble(random, i));
+        }
+    }
+
+    @Test
+    public void shortestIsShort() throws Exception {
+        assertShortest("0.1", 0.1);
+        assertShortest("100.0", 100);
+        assertShortest("0.000123", 0.000123);
+        assertShortest("-2.5", -2.5);
+        assertShortest("0.3333333333333333", 1.0 / 3);
+    }
+
+    private void assertFixed(double value) throws Exception {
+        buffer.clear();
+        DecimalWriter.putFixed2(buffer, value);
+        assertEquals(String.format(Locale.US, "%2.2f", value), written());
+    }
+
+    private void assertShortest(double value) throws Exception {
+        buffer.clear();
+        DecimalWriter.putShortest(buffer, value);
+        String written = written();
+        assertEquals(written, Double.doubleToLongBits(value), Double.doubleToLongBits(Double.parseDouble(written)));
+        assertTrue(written + " is longer than " + value, significantDigits(written) <= significantDigits(Double.toString(value)));
+    }
+
+    private void assertShortest(String expected, double value) throws Exception {
+        buffer.clear();
+        DecimalWriter.putShortest(buffer, value);
+        assertEquals(expected, written());
+    }
+
+    private String written() throws Exception {
+        return new String(buffer.toByteArray(), GraphitePickleReporter.CHARSET_NAME);
+    }
+
+    private static int significantDigits(String s) {
+        String mantissa = s.split("E")[0].replace("-", "").replace(".", "");
+        return mantissa.replaceAll("^0+", "").replaceAll("0+$", "").length();
+    }
+
+    private static double randomDouble(Random random, int i) {
+        switch (i % 5) {
+            case 0:
+                return random.nextDouble();
+            case 1:
+                return random.nextInt(1000000) / 1000.0;
+            case 2:
+                return (random.nextInt(2000000) - 1000000) / 200.0 + 0.005;
+            case 3:
+                return random.nextGaussian() * Math.pow(10, random.nextInt(30) - 10);
+            default:
+                return Double.longBitsToDouble(random.nextLong());
+        }
+    }
+}
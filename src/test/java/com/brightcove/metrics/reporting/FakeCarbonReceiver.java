@@ -0,0 +1,519 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.yammer.metrics.reporting.SocketProvider;
+
+/**
+ * A stand-in for carbon's pickle receiver that listens on localhost. It reads frames the
+ * way carbon does, a 4 byte length followed by a pickled list of data points, decodes
+ * every frame and counts what it received.
+ *
+ * Faults can be injected while it runs: a stall before every frame, reads throttled to a
+ * number of bytes per second, and connections reset after a number of frames.
+ */
+class FakeCarbonReceiver implements Closeable {
+    // carbon's MetricPickleReceiver.MAX_LENGTH
+    static final int MAX_LENGTH = 1 << 20;
+
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ServerSocket server;
+    private final Thread acceptor;
+    private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong resets = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong points = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final List<DataPoint> received = Collections.synchronizedList(new ArrayList<DataPoint>());
+
+    private volatile long frameLatencyMillis;
+    private volatile int bytesPerSecond;
+    private volatile int resetAfterFrames;
+    private volatile boolean recording = true;
+    private volatile boolean closed;
+
+    FakeCarbonReceiver() throws IOException {
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "fake-carbon-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    SocketProvider socketProvider() {
+        return new SocketProvider() {
+            @Override
+            public Socket get() throws IOException {
+                return new Socket(InetAddress.getLoopbackAddress(), getPort());
+            }
+        };
+    }
+
+    ChannelProvider channelProvider() {
+        return new DefaultChannelProvider(InetAddress.getLoopbackAddress().getHostAddress(), getPort());
+    }
+
+    /**
+     * Stall for this long before reading each frame, like a carbon-cache that is busy
+     * writing to disk.
+     */
+    void setFrameLatency(long latency, TimeUnit unit) {
+        this.frameLatencyMillis = unit.toMillis(latency);
+    }
+
+    /**
+     * Read no faster than this, or 0 to read as fast as possible.
+     */
+    void setBytesPerSecond(int bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Reset every connection once it has delivered this many frames, or 0 to never.
+     */
+    void setResetAfterFrames(int frames) {
+        this.resetAfterFrames = frames;
+    }
+
+    /**
+     * Keep every data point received, for {@link #getReceived}. Soak tests only count.
+     */
+    void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    long getConnections() {
+        return connections.get();
+    }
+
+    long getResets() {
+        return resets.get();
+    }
+
+    long getFrames() {
+        return frames.get();
+    }
+
+    long getPoints() {
+        return points.get();
+    }
+
+    /**
+     * @return bytes received, headers included
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    List<DataPoint> getReceived() {
+        synchronized (received) {
+            return new ArrayList<DataPoint>(received);
+        }
+    }
+
+    /**
+     * Wait until at least {@code count} data points have been received in all.
+     *
+     * @return whether they were received in time
+     */
+    boolean awaitPoints(long count, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (points.get() < count) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * Wait until at least {@code count} connections have been reset in all.
+     */
+    boolean awaitResets(long count, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (resets.get() < count) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connections.incrementAndGet();
+            sockets.add(socket);
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        read(socket);
+                    } catch (IOException e) {
+                        // the reporter hung up, or we did
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        sockets.remove(socket);
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                            // closing anyway
+                        }
+                    }
+                }
+            }, "fake-carbon-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    private void read(Socket socket) throws IOException, InterruptedException {
+        DataInputStream in = new DataInputStream(new ThrottledInputStream(socket.getInputStream()));
+        int delivered = 0;
+        while (true) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            if (length < 0 || length > MAX_LENGTH) {
+                // carbon logs the bad length and drops the connection
+                return;
+            }
+            if (frameLatencyMillis > 0) {
+                Thread.sleep(frameLatencyMillis);
+            }
+            byte[] frame = new byte[length];
+            in.readFully(frame);
+
+            List<DataPoint> decoded = decode(frame);
+            if (recording) {
+                received.addAll(decoded);
+            }
+            bytes.addAndGet(4 + length);
+            frames.incrementAndGet();
+            points.addAndGet(decoded.size());
+
+            delivered++;
+            if (resetAfterFrames > 0 && delivered >= resetAfterFrames) {
+                // close with a RST rather than a FIN
+                socket.setSoLinger(true, 0);
+                socket.close();
+                resets.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * One data point, as carbon would unpickle it.
+     */
+    static final class DataPoint {
+        final String name;
+        final long timestamp;
+        final Object value;
+
+        DataPoint(String name, long timestamp, Object value) {
+            this.name = name;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + value + " " + timestamp;
+        }
+    }
+
+    /**
+     * Unpickle a frame. Only the opcodes graphite's payloads need are understood, in
+     * protocol 0 and protocol 2; anything else fails the frame.
+     */
+    static List<DataPoint> decode(byte[] frame) {
+        List<Object> stack = new ArrayList<Object>();
+        List<Integer> marks = new ArrayList<Integer>();
+        Map<Long, Object> memo = new HashMap<Long, Object>();
+        int pos = 0;
+        while (true) {
+            int op = frame[pos++] & 0xFF;
+            switch (op) {
+                case 0x80: // PROTO
+                    pos++;
+                    break;
+                case '(': // MARK
+                    marks.add(stack.size());
+                    break;
+                case ']': // EMPTY_LIST
+                    stack.add(new ArrayList<Object>());
+                    break;
+                case 'l': { // LIST
+                    List<Object> items = popMark(stack, marks);
+                    stack.add(new ArrayList<Object>(items));
+                    break;
+                }
+                case 't': // TUPLE
+                    stack.add(popMark(stack, marks).toArray());
+                    break;
+                case 0x86: { // TUPLE2
+                    Object second = stack.remove(stack.size() - 1);
+                    Object first = stack.remove(stack.size() - 1);
+                    stack.add(new Object[]{first, second});
+                    break;
+                }
+                case 'a': { // APPEND
+                    Object item = stack.remove(stack.size() - 1);
+                    list(stack).add(item);
+                    break;
+                }
+                case 'e': { // APPENDS
+                    List<Object> items = popMark(stack, marks);
+                    list(stack).addAll(items);
+                    break;
+                }
+                case 'S': { // STRING, a quoted repr
+                    int end = lineEnd(frame, pos);
+                    stack.add(unquote(new String(frame, pos, end - pos, LATIN_1)));
+                    pos = end + 1;
+                    break;
+                }
+                case 'V': { // UNICODE, raw-unicode-escape encoded
+                    int end = lineEnd(frame, pos);
+                    stack.add(unescapeUnicode(new String(frame, pos, end - pos, LATIN_1)));
+                    pos = end + 1;
+                    break;
+                }
+                case 'L': // LONG
+                case 'I': { // INT
+                    int end = lineEnd(frame, pos);
+                    String text = new String(frame, pos, end - pos, LATIN_1);
+                    stack.add(Long.parseLong(text.endsWith("L") ? text.substring(0, text.length() - 1) : text));
+                    pos = end + 1;
+                    break;
+                }
+                case 'F': { // FLOAT
+                    int end = lineEnd(frame, pos);
+                    stack.add(Double.parseDouble(new String(frame, pos, end - pos, LATIN_1)));
+                    pos = end + 1;
+                    break;
+                }
+                case 'p': // PUT
+                case 'g': { // GET
+                    int end = lineEnd(frame, pos);
+                    long id = Long.parseLong(new String(frame, pos, end - pos, LATIN_1));
+                    pos = end + 1;
+                    if (op == 'p') {
+                        memo.put(id, stack.get(stack.size() - 1));
+                    } else {
+                        stack.add(memo.get(id));
+                    }
+                    break;
+                }
+                case 'q': // BINPUT
+                    memo.put((long) (frame[pos++] & 0xFF), stack.get(stack.size() - 1));
+                    break;
+                case 'r': // LONG_BINPUT
+                    memo.put((long) intLE(frame, pos), stack.get(stack.size() - 1));
+                    pos += 4;
+                    break;
+                case 'h': // BINGET
+                    stack.add(memo.get((long) (frame[pos++] & 0xFF)));
+                    break;
+                case 'j': // LONG_BINGET
+                    stack.add(memo.get((long) intLE(frame, pos)));
+                    pos += 4;
+                    break;
+                case 'K': // BININT1
+                    stack.add((long) (frame[pos++] & 0xFF));
+                    break;
+                case 'M': // BININT2
+                    stack.add((long) ((frame[pos] & 0xFF) | (frame[pos + 1] & 0xFF) << 8));
+                    pos += 2;
+                    break;
+                case 'J': // BININT
+                    stack.add((long) intLE(frame, pos));
+                    pos += 4;
+                    break;
+                case 0x8a: { // LONG1
+                    int count = frame[pos++] & 0xFF;
+                    long value = 0;
+                    for (int i = 0; i < count; i++) {
+                        value |= (long) (frame[pos + i] & 0xFF) << (i * 8);
+                    }
+                    // sign extend
+                    int unused = 64 - count * 8;
+                    stack.add(count == 0 ? 0L : (value << unused) >> unused);
+                    pos += count;
+                    break;
+                }
+                case 'G': { // BINFLOAT
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++) {
+                        bits = bits << 8 | (frame[pos + i] & 0xFF);
+                    }
+                    stack.add(Double.longBitsToDouble(bits));
+                    pos += 8;
+                    break;
+                }
+                case 'U': { // SHORT_BINSTRING
+                    int length = frame[pos++] & 0xFF;
+                    stack.add(new String(frame, pos, length, LATIN_1));
+                    pos += length;
+                    break;
+                }
+                case 'T': // BINSTRING
+                case 'X': { // BINUNICODE
+                    int length = intLE(frame, pos);
+                    pos += 4;
+                    stack.add(new String(frame, pos, length, op == 'X' ? UTF_8 : LATIN_1));
+                    pos += length;
+                    break;
+                }
+                case '.': // STOP
+                    return dataPoints(stack.get(stack.size() - 1));
+                default:
+                    throw new IllegalArgumentException("Unexpected opcode " + op + " at " + (pos - 1));
+            }
+        }
+    }
+
+    private static List<DataPoint> dataPoints(Object pickled) {
+        List<DataPoint> points = new ArrayList<DataPoint>();
+        for (Object item : (List<?>) pickled) {
+            Object[] metric = (Object[]) item;
+            Object[] value = (Object[]) metric[1];
+            points.add(new DataPoint((String) metric[0], (Long) value[0], value[1]));
+        }
+        return points;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> list(List<Object> stack) {
+        return (List<Object>) stack.get(stack.size() - 1);
+    }
+
+    private static List<Object> popMark(List<Object> stack, List<Integer> marks) {
+        int mark = marks.remove(marks.size() - 1);
+        List<Object> items = new ArrayList<Object>(stack.subList(mark, stack.size()));
+        stack.subList(mark, stack.size()).clear();
+        return items;
+    }
+
+    private static int lineEnd(byte[] frame, int pos) {
+        while (frame[pos] != '\n') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static String unquote(String repr) {
+        // the reporter never writes escapes, so the quotes are all there is to remove
+        return repr.substring(1, repr.length() - 1);
+    }
+
+    private static String unescapeUnicode(String escaped) {
+        StringBuilder s = new StringBuilder(escaped.length());
+        for (int i = 0; i < escaped.length(); i++) {
+            char c = escaped.charAt(i);
+            if (c == '\\' && i + 1 < escaped.length()
+                    && (escaped.charAt(i + 1) == 'u' || escaped.charAt(i + 1) == 'U')) {
+                int digits = escaped.charAt(i + 1) == 'u' ? 4 : 8;
+                s.appendCodePoint(Integer.parseInt(escaped.substring(i + 2, i + 2 + digits), 16));
+                i += 1 + digits;
+            } else {
+                s.append(c);
+            }
+        }
+        return s.toString();
+    }
+
+    private static int intLE(byte[] frame, int pos) {
+        return (frame[pos] & 0xFF) | (frame[pos + 1] & 0xFF) << 8
+                | (frame[pos + 2] & 0xFF) << 16 | (frame[pos + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * Reads no faster than {@link #setBytesPerSecond} allows.
+     */
+    private class ThrottledInputStream extends InputStream {
+        private final InputStream in;
+
+        ThrottledInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int rate = bytesPerSecond;
+            if (rate <= 0) {
+                return in.read(b, off, len);
+            }
+            // read in chunks of a hundredth of a second's worth
+            int chunk = Math.max(1, Math.min(len, rate / 100));
+            int count = in.read(b, off, chunk);
+            if (count > 0) {
+                try {
+                    Thread.sleep(Math.max(1, count * 1000L / rate));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted");
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.ByteArrayOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngineManager;
+import javax.script.SimpleBindings;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.python.core.PyList;
+import org.python.core.PyTuple;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.reporting.SocketProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests of one reporter reporting on several registries
+ */
+public class FanInGraphitePickleReporterTest {
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final MetricsRegistry tenantA = new MetricsRegistry();
+    private final MetricsRegistry tenantB = new MetricsRegistry();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private SocketProvider provider;
+    private CompiledScript unpickleScript;
+
+    @Before
+    public void before() throws Exception {
+        unpickleScript = ((Compilable) new ScriptEngineManager().getEngineByName("python"))
+                .compile(GraphitePickleReporterTest.UNPICKLER_SCRIPT);
+
+        Socket socket = mock(Socket.class);
+        when(socket.getOutputStream()).thenReturn(out);
+        provider = mock(SocketProvider.class);
+        when(provider.get()).thenReturn(socket);
+
+        // the same metric name in every registry
+        registry.newCounter(new MetricName(Object.class, "requests")).inc(1);
+        tenantA.newCounter(new MetricName(Object.class, "requests")).inc(2);
+        tenantB.newCounter(new MetricName(Object.class, "requests")).inc(3);
+        tenantB.newCounter(new MetricName(Object.class, "hidden")).inc(4);
+    }
+
+    @Test
+    public void reportsEveryRegistryWithItsOwnPrefix() throws Exception {
+        assertEquals(Arrays.asList("prefix.java.lang.Object.requests.count 1",
+                                   "a.java.lang.Object.requests.count 2",
+                                   "b.java.lang.Object.requests.count 3"),
+                     report(1));
+        // a single batch in each of the two cycles
+        verify(provider, times(2)).get();
+    }
+
+    @Test
+    public void reportsEveryRegistryInParallel() throws Exception {
+        assertEquals(Arrays.asList("prefix.java.lang.Object.requests.count 1",
+                                   "a.java.lang.Object.requests.count 2",
+                                   "b.java.lang.Object.requests.count 3"),
+                     report(2));
+    }
+
+    private List<String> report(int parallelism) throws Exception {
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, "prefix", MetricPredicate.ALL,
+                                                                     provider, Clock.defaultClock(), 100);
+        reporter.printVMMetrics = false;
+        reporter.setParallelism(parallelism);
+        reporter.addRegistry(tenantA, "a", MetricPredicate.ALL);
+        reporter.addRegistry(tenantB, "b", new MetricPredicate() {
+            @Override
+            public boolean matches(MetricName name, Metric metric) {
+                return !name.getName().equals("hidden");
+            }
+        });
+        try {
+            // the second cycle is served from the name caches
+            reporter.run();
+            out.reset();
+            reporter.run();
+            assertEquals(3, reporter.getNameCacheSize());
+        } finally {
+            reporter.shutdown();
+        }
+
+        Bindings bindings = new SimpleBindings();
+        bindings.put("payload", out.toString(GraphitePickleReporter.CHARSET_NAME));
+        unpickleScript.eval(bindings);
+        List<String> points = new ArrayList<String>();
+        for (Object datapoint : (PyList) bindings.get("metrics")) {
+            PyTuple tuple = (PyTuple) datapoint;
+            points.add(tuple.get(0) + " " + ((PyTuple) tuple.get(1)).get(1));
+        }
+        return points;
+    }
+}
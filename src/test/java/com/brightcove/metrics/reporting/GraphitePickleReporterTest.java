@@ -2,6 +2,8 @@ package com.brightcove.metrics.reporting;
 
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.Callable;
 
 import javax.script.Bindings;
@@ -12,8 +14,11 @@ import javax.script.ScriptEngineManager;
 import javax.script.SimpleBindings;
 
 import org.junit.Before;
+import org.junit.Test;
 import org.python.core.PyList;
+import org.python.core.PyObject;
 import org.python.core.PyTuple;
+import org.python.core.PyUnicode;
 
 import com.yammer.metrics.core.Clock;
 import com.yammer.metrics.core.Metric;
@@ -32,7 +37,7 @@ public class GraphitePickleReporterTest extends AbstractPollingReporterTest {
     
     // Pulls apart the pickled payload. This skips ahead 4 characters to safely ignore
     // the header (length)
-    private static final String UNPICKLER_SCRIPT = 
+    static final String UNPICKLER_SCRIPT = 
         "import cPickle\n" +
         "import struct\n" +
         "format = '!L'\n" +
@@ -42,6 +47,8 @@ public class GraphitePickleReporterTest extends AbstractPollingReporterTest {
         "metrics = cPickle.loads(payload[headerLength:batchLength])\n";
         
     private CompiledScript unpickleScript;
+    protected Socket socket;
+    protected SocketProvider provider;
 
     public String getPrefix() {
         return "prefix";
@@ -56,10 +63,10 @@ public class GraphitePickleReporterTest extends AbstractPollingReporterTest {
     
     @Override
     protected AbstractPollingReporter createReporter(MetricsRegistry registry, OutputStream out, Clock clock) throws Exception {
-        final Socket socket = mock(Socket.class);
+        socket = mock(Socket.class);
         when(socket.getOutputStream()).thenReturn(out);
 
-        final SocketProvider provider = mock(SocketProvider.class);
+        provider = mock(SocketProvider.class);
         when(provider.get()).thenReturn(socket);
 
         // use a small batch size so the boundary cases are tested
@@ -140,21 +147,13 @@ public class GraphitePickleReporterTest extends AbstractPollingReporterTest {
             // Add the metric to the registry, run the reporter and flush the result
             registry.add(new MetricName(Object.class, "metric"), metric);
             reporter.run();
+            afterRun();
             out.flush();
             // the charset is important. if the GraphitePickleReporter and this test
             // don't agree, the header is not always correctly unpacked.
             String payload = out.toString(GraphitePickleReporter.CHARSET_NAME);
             
-            PyList result = new PyList();
-
-            int nextIndex = 0;
-            while(nextIndex < payload.length()) {
-                Bindings bindings = new SimpleBindings();
-                bindings.put("payload", payload.substring(nextIndex));
-                unpickleScript.eval(bindings);
-                result.addAll(result.size(), (PyList) bindings.get("metrics"));
-                nextIndex += (Integer) bindings.get("batchLength");
-            }
+            PyList result = unpickle(payload);
             
             // Assertions: first check that the line count matches then compare line by line ignoring leading and trailing whitespace
             assertEquals("Line count mismatch, was:\n" + payload, expected.length,
@@ -164,7 +163,7 @@ public class GraphitePickleReporterTest extends AbstractPollingReporterTest {
                 String name = datapoint.get(0).toString();
                 PyTuple valueTuple = (PyTuple) datapoint.get(1);
                 Object timestamp = valueTuple.get(0);
-                Object value = valueTuple.get(1);
+                String value = formatValue(valueTuple.get(1));
                 
                 String actual = name + " " + value + " " + timestamp;
                 if (!expected[i].trim().equals(actual.trim())) {
@@ -179,6 +178,59 @@ public class GraphitePickleReporterTest extends AbstractPollingReporterTest {
         }
     }
 
+    @Test
+    public void nonAsciiNamesUnpickleAsUnicode() throws Exception {
+        try {
+            registry.newCounter(new MetricName(Object.class, "caf\u00e9")).inc();
+            registry.newCounter(new MetricName(Object.class, "\u6e29\u5ea6\\")).inc();
+            reporter.run();
+            afterRun();
+            out.flush();
+
+            Set<String> names = new HashSet<String>();
+            for (Object datapoint : unpickle(out.toString(GraphitePickleReporter.CHARSET_NAME))) {
+                PyObject name = ((PyTuple) datapoint).pyget(0);
+                // the same under every protocol, as python's own pickle would have it
+                assertTrue(name + " is a " + name.getType(), name instanceof PyUnicode);
+                names.add(name.toString());
+            }
+            assertTrue(names.toString(), names.contains(withPrefix("java.lang.Object.caf\u00e9.count")));
+            assertTrue(names.toString(), names.contains(withPrefix("java.lang.Object.\u6e29\u5ea6\\.count")));
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    /**
+     * Called once the reporter has run, before its output is checked.
+     */
+    protected void afterRun() throws Exception {
+    }
+
+    /**
+     * Unpickle every message in the payload and collect the metrics.
+     */
+    protected PyList unpickle(String payload) throws Exception {
+        PyList result = new PyList();
+
+        int nextIndex = 0;
+        while(nextIndex < payload.length()) {
+            Bindings bindings = new SimpleBindings();
+            bindings.put("payload", payload.substring(nextIndex));
+            unpickleScript.eval(bindings);
+            result.addAll(result.size(), (PyList) bindings.get("metrics"));
+            nextIndex += (Integer) bindings.get("batchLength");
+        }
+        return result;
+    }
+
+    /**
+     * Format an unpickled value for comparison with the expected output.
+     */
+    protected String formatValue(Object value) {
+        return value.toString();
+    }
+
     private String withPrefix(String metric) {
         String prefix = getPrefix();
         if (prefix == null || prefix.length() == 0) {
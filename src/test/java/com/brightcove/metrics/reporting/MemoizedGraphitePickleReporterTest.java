@@ -0,0 +1,72 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.junit.Test;
+import org.python.core.PyList;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.reporting.AbstractPollingReporter;
+import com.yammer.metrics.reporting.SocketProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests of the reporter when it memoizes repeated objects
+ */
+public class MemoizedGraphitePickleReporterTest extends GraphitePickleReporterTest {
+
+    @Override
+    protected AbstractPollingReporter createReporter(MetricsRegistry registry, OutputStream out, Clock clock) throws Exception {
+        final GraphitePickleReporter reporter = (GraphitePickleReporter) super.createReporter(registry, out, clock);
+        reporter.setMemoize(true);
+        return reporter;
+    }
+
+    @Test
+    public void memoizedPayloadsAreSmallerAndUnpickleTheSame() throws Exception {
+        // enough distinct tuples to need the 4 byte memo ids in protocol 2
+        for (int i = 0; i < 600; i++) {
+            registry.newCounter(new MetricName(Object.class, "counter" + i)).inc(i % 300);
+        }
+        try {
+            for (PickleProtocol protocol : PickleProtocol.values()) {
+                String plain = report(protocol, false);
+                String memoized = report(protocol, true);
+
+                PyList expected = unpickle(plain);
+                PyList actual = unpickle(memoized);
+                assertEquals(600, actual.size());
+                assertEquals(expected, actual);
+                assertTrue(protocol + " memoized " + memoized.length() + " plain " + plain.length(),
+                           memoized.length() < plain.length());
+            }
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    private String report(PickleProtocol protocol, boolean memoize) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Socket socket = mock(Socket.class);
+        when(socket.getOutputStream()).thenReturn(out);
+        SocketProvider provider = mock(SocketProvider.class);
+        when(provider.get()).thenReturn(socket);
+
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, getPrefix(), MetricPredicate.ALL,
+                                                                     provider, clock, 1000);
+        reporter.printVMMetrics = false;
+        reporter.setPickleProtocol(protocol);
+        reporter.setMemoize(memoize);
+        reporter.run();
+        return out.toString(GraphitePickleReporter.CHARSET_NAME);
+    }
+}
@@ -0,0 +1,70 @@
+package com.brightcove.metrics.reporting;
+
+import org.junit.Test;
+
+import com.yammer.metrics.core.MetricName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class MetricNameCacheTest {
+
+    private final MetricName first = new MetricName(Object.class, "first");
+    private final MetricName second = new MetricName(Object.class, "second");
+    private final MetricName third = new MetricName(Object.class, "third");
+    private final EncodedName encoded = new EncodedName(new byte[] { 'S' }, 0);
+
+    @Test
+    public void countsHitsAndMisses() {
+        MetricNameCache cache = new MetricNameCache(10, 0);
+        assertNull(cache.get(first, "count"));
+        cache.put(first, "count", encoded);
+
+        assertSame(encoded, cache.get(new MetricName(Object.class, "first"), "count"));
+        assertNull(cache.get(first, "max"));
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedMetrics() {
+        MetricNameCache cache = new MetricNameCache(3, 0);
+        cache.put(first, "min", encoded);
+        cache.put(first, "max", encoded);
+        cache.put(second, "count", encoded);
+        cache.get(first, "min");
+        cache.put(third, "count", encoded);
+
+        assertEquals(3, cache.size());
+        assertNull(cache.get(second, "count"));
+        assertSame(encoded, cache.get(first, "max"));
+        assertSame(encoded, cache.get(third, "count"));
+    }
+
+    @Test
+    public void evictsIdleMetrics() {
+        MetricNameCache cache = new MetricNameCache(10, 2);
+        cache.put(first, "count", encoded);
+        cache.put(second, "count", encoded);
+        cache.endCycle();
+
+        cache.get(second, "count");
+        cache.endCycle();
+        assertEquals(2, cache.size());
+
+        cache.get(second, "count");
+        cache.endCycle();
+        assertEquals(1, cache.size());
+        assertNull(cache.get(first, "count"));
+    }
+
+    @Test
+    public void canBeDisabled() {
+        MetricNameCache cache = new MetricNameCache(0, 0);
+        cache.put(first, "count", encoded);
+        assertNull(cache.get(first, "count"));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,42 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.OutputStream;
+import java.net.Socket;
+
+import com.yammer.metrics.reporting.SocketProvider;
+
+/**
+ * Hands out sockets that throw away everything written to them, so the allocation test
+ * and the benchmarks measure the reporter rather than the network. The benchmarks get
+ * it from this project's test jar.
+ */
+class NullSocketProvider implements SocketProvider {
+    private static final OutputStream NULL_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Override
+    public Socket get() {
+        return new Socket() {
+            @Override
+            public OutputStream getOutputStream() {
+                return NULL_STREAM;
+            }
+
+            @Override
+            public void shutdownOutput() {
+            }
+
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+        };
+    }
+}
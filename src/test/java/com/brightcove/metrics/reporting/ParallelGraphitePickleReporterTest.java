@@ -0,0 +1,59 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.python.core.PyList;
+import org.python.core.PyTuple;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.reporting.AbstractPollingReporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the reporter when it processes the registry on several threads
+ */
+public class ParallelGraphitePickleReporterTest extends GraphitePickleReporterTest {
+
+    @Override
+    protected AbstractPollingReporter createReporter(MetricsRegistry registry, OutputStream out, Clock clock) throws Exception {
+        final GraphitePickleReporter reporter = (GraphitePickleReporter) super.createReporter(registry, out, clock);
+        reporter.setParallelism(4);
+        return reporter;
+    }
+
+    @Test
+    public void reportsEveryMetricOnce() throws Exception {
+        GraphitePickleReporter reporter = (GraphitePickleReporter) this.reporter;
+        try {
+            for (int i = 0; i < 500; i++) {
+                registry.newCounter(new MetricName(Object.class, "counter" + i)).inc(i);
+            }
+            reporter.run();
+
+            PyList metrics = unpickle(out.toString(GraphitePickleReporter.CHARSET_NAME));
+            assertEquals(500, metrics.size());
+            Set<String> seen = new HashSet<String>();
+            for (Object metric : metrics) {
+                PyTuple datapoint = (PyTuple) metric;
+                String name = datapoint.get(0).toString();
+                String counter = name.substring(name.indexOf("counter"), name.length() - ".count".length());
+                assertEquals(counter, "counter" + ((PyTuple) datapoint.get(1)).get(1));
+                assertTrue(seen.add(name));
+            }
+
+            // each partition keeps its own names
+            reporter.run();
+            assertEquals(500, reporter.getNameCacheMisses());
+            assertEquals(500, reporter.getNameCacheHits());
+        } finally {
+            reporter.shutdown();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.reporting.AbstractPollingReporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests of the reporter when it keeps its connection to graphite open
+ */
+public class PersistentConnectionGraphitePickleReporterTest extends GraphitePickleReporterTest {
+
+    @Override
+    protected AbstractPollingReporter createReporter(MetricsRegistry registry, OutputStream out, Clock clock) throws Exception {
+        final GraphitePickleReporter reporter = (GraphitePickleReporter) super.createReporter(registry, out, clock);
+        when(socket.isConnected()).thenReturn(true);
+        reporter.setPersistentConnection(true);
+        return reporter;
+    }
+
+    @Test
+    public void reusesConnectionAcrossBatchesAndCycles() throws Exception {
+        try {
+            // three counters are two batches with a batch size of 2
+            addCounters(3);
+            reporter.run();
+            reporter.run();
+
+            verify(provider, times(1)).get();
+            verify(socket, never()).close();
+        } finally {
+            reporter.shutdown();
+        }
+        verify(socket).close();
+    }
+
+    @Test
+    public void reconnectsWhenConnectionIsClosed() throws Exception {
+        try {
+            addCounters(3);
+            reporter.run();
+            when(socket.isClosed()).thenReturn(true);
+            reporter.run();
+
+            verify(provider, times(2)).get();
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    @Test
+    public void aFlushThatFailsMidCycleIsRetriedOnANewConnection() throws Exception {
+        // the first socket breaks as soon as anything reaches it
+        Socket broken = mock(Socket.class);
+        when(broken.isConnected()).thenReturn(true);
+        when(broken.getOutputStream()).thenReturn(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        });
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Socket healthy = mock(Socket.class);
+        when(healthy.isConnected()).thenReturn(true);
+        when(healthy.getOutputStream()).thenReturn(received);
+        when(provider.get()).thenReturn(broken, healthy);
+        try {
+            // two batches, both of which would have been lost in the buffer of the broken socket
+            addCounters(3);
+            reporter.run();
+
+            verify(provider, times(2)).get();
+            assertEquals(3, points(received.toByteArray()));
+            assertEquals(CycleOutcome.COMPLETED, ((GraphitePickleReporter) reporter).getLastCycleOutcome());
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    private static int points(byte[] written) {
+        int points = 0;
+        int pos = 0;
+        while (pos < written.length) {
+            int length = ((written[pos] & 0xFF) << 24) | ((written[pos + 1] & 0xFF) << 16)
+                    | ((written[pos + 2] & 0xFF) << 8) | (written[pos + 3] & 0xFF);
+            points += FakeCarbonReceiver.decode(Arrays.copyOfRange(written, pos + 4, pos + 4 + length)).size();
+            pos += 4 + length;
+        }
+        return points;
+    }
+
+    private void addCounters(int count) {
+        for (int i = 0; i < count; i++) {
+            registry.newCounter(new MetricName(Object.class, "counter" + i)).inc(i);
+        }
+    }
+}
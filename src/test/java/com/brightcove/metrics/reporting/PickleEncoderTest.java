@@ -0,0 +1,79 @@
+package com.brightcove.metrics.reporting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PickleEncoderTest {
+
+    // a timestamp that needs 4 bytes, like the wall clock's
+    private static final long TIMESTAMP = 1400000000L;
+
+    @Test
+    public void valuesThatNeverRepeatDoNotMakeTheFrameBigger() {
+        List<Number> fractions = new ArrayList<Number>();
+        List<Number> integers = new ArrayList<Number>();
+        for (int i = 0; i < 600; i++) {
+            fractions.add(i + 0.25);
+            integers.add(100000L + i);
+        }
+        for (PickleProtocol protocol : PickleProtocol.values()) {
+            for (List<Number> values : asList(fractions, integers)) {
+                byte[] plain = encode(protocol, false, values);
+                byte[] memoized = encode(protocol, true, values);
+
+                assertEquals(FakeCarbonReceiver.decode(plain).toString(),
+                             FakeCarbonReceiver.decode(memoized).toString());
+                assertTrue(protocol + " memoized " + memoized.length + " plain " + plain.length,
+                           memoized.length < plain.length);
+            }
+        }
+    }
+
+    @Test
+    public void repeatedValuesAreFetchedFromTheMemo() {
+        List<Number> values = new ArrayList<Number>();
+        for (int i = 0; i < 1000; i++) {
+            values.add(i % 2 == 0 ? Long.valueOf(i % 10) : Double.valueOf(i % 10 == 1 ? 0.0 : 1.0));
+        }
+        for (PickleProtocol protocol : PickleProtocol.values()) {
+            byte[] plain = encode(protocol, false, values);
+            byte[] memoized = encode(protocol, true, values);
+
+            List<FakeCarbonReceiver.DataPoint> points = FakeCarbonReceiver.decode(memoized);
+            assertEquals(1000, points.size());
+            assertEquals(FakeCarbonReceiver.decode(plain).toString(), points.toString());
+            // every value tuple after the first few is a 2 or 3 byte memo reference
+            assertTrue(protocol + " memoized " + memoized.length + " plain " + plain.length,
+                       memoized.length < plain.length * 2 / 3);
+        }
+    }
+
+    /**
+     * Encode one data point per value, named metric0, metric1 and so on.
+     */
+    private static byte[] encode(PickleProtocol protocol, boolean memoize, List<Number> values) {
+        PickleEncoder encoder = protocol.newEncoder(FloatFormat.SHORTEST_ROUND_TRIP, memoize);
+        List<MetricTuple> metrics = new ArrayList<MetricTuple>();
+        for (Number value : values) {
+            byte[] name = encoder.encodeName("metric" + metrics.size());
+            metrics.add(value instanceof Double
+                        ? MetricTuple.ofFloat(name, TIMESTAMP, value.doubleValue())
+                        : MetricTuple.ofInt(name, TIMESTAMP, value.longValue()));
+        }
+        PickleBuffer pickled = new PickleBuffer(4096);
+        encoder.encode(metrics, pickled);
+        return pickled.toByteArray();
+    }
+
+    private static List<List<Number>> asList(List<Number> first, List<Number> second) {
+        List<List<Number>> lists = new ArrayList<List<Number>>();
+        lists.add(first);
+        lists.add(second);
+        return lists;
+    }
+}
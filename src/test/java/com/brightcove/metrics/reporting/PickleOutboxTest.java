@@ -0,0 +1,162 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+public class PickleOutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FlakyWriter delegate = new FlakyWriter();
+
+    @Test
+    public void sendsDirectlyWhileGraphiteIsUp() throws Exception {
+        PickleOutbox outbox = new PickleOutbox(delegate, folder.getRoot(), 1 << 20, 10);
+        outbox.write(frame(1));
+        outbox.endCycle();
+
+        assertEquals("[1]", delegate.written.toString());
+        assertEquals(0, outbox.getPendingBatches());
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void replaysFailedBatchesInOrder() throws Exception {
+        PickleOutbox outbox = new PickleOutbox(delegate, folder.getRoot(), 1 << 20, 10);
+        delegate.down = true;
+        outbox.write(frame(1));
+        outbox.write(frame(2));
+        outbox.endCycle();
+        assertEquals(2, outbox.getPendingBatches());
+        assertEquals("[]", delegate.written.toString());
+
+        delegate.down = false;
+        outbox.write(frame(3));
+        outbox.endCycle();
+
+        assertEquals("[3, 1, 2]", delegate.written.toString());
+        assertEquals(0, outbox.getPendingBatches());
+        assertEquals(2, outbox.getStoredBatches());
+    }
+
+    @Test
+    public void limitsReplayPerCycle() throws Exception {
+        PickleOutbox outbox = new PickleOutbox(delegate, folder.getRoot(), 1 << 20, 2);
+        delegate.down = true;
+        for (int i = 1; i <= 5; i++) {
+            outbox.write(frame(i));
+        }
+        delegate.down = false;
+
+        outbox.endCycle();
+        assertEquals("[1, 2]", delegate.written.toString());
+        outbox.endCycle();
+        outbox.endCycle();
+        assertEquals("[1, 2, 3, 4, 5]", delegate.written.toString());
+        assertEquals(0, outbox.getPendingBatches());
+    }
+
+    @Test
+    public void survivesRestart() throws Exception {
+        PickleOutbox outbox = new PickleOutbox(delegate, folder.getRoot(), 1 << 20, 1);
+        delegate.down = true;
+        outbox.write(frame(1));
+        outbox.write(frame(2));
+        outbox.write(frame(3));
+        delegate.down = false;
+        outbox.endCycle();
+        outbox.close();
+        assertEquals("[1]", delegate.written.toString());
+
+        FlakyWriter restarted = new FlakyWriter();
+        outbox = new PickleOutbox(restarted, folder.getRoot(), 1 << 20, 10);
+        assertEquals(2, outbox.getPendingBatches());
+        outbox.endCycle();
+        assertEquals("[2, 3]", restarted.written.toString());
+    }
+
+    @Test
+    public void evictsOldestWhenFull() throws Exception {
+        // 64K segments, two of them
+        PickleOutbox outbox = new PickleOutbox(delegate, folder.getRoot(), 128 * 1024, 100);
+        delegate.down = true;
+        int batches = 0;
+        while (outbox.getEvictedBatches() == 0) {
+            outbox.write(frame(++batches, 10000));
+        }
+        assertEquals(6, outbox.getEvictedBatches());
+
+        delegate.down = false;
+        outbox.endCycle();
+        assertEquals(7, (int) delegate.written.get(0));
+        assertEquals(batches, (int) delegate.written.get(delegate.written.size() - 1));
+        assertEquals(batches - 6, delegate.written.size());
+    }
+
+    @Test
+    public void ignoresTornRecords() throws Exception {
+        PickleOutbox outbox = new PickleOutbox(delegate, folder.getRoot(), 1 << 20, 10);
+        delegate.down = true;
+        outbox.write(frame(1));
+        outbox.write(frame(2));
+        outbox.close();
+
+        // corrupt the payload of the second record, as if the JVM died mid write
+        File segment = folder.getRoot().listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.seek(16 + 9 + 8);
+            raf.write(99);
+        } finally {
+            raf.close();
+        }
+
+        FlakyWriter restarted = new FlakyWriter();
+        outbox = new PickleOutbox(restarted, folder.getRoot(), 1 << 20, 10);
+        outbox.endCycle();
+        assertEquals("[1]", restarted.written.toString());
+    }
+
+    private static PickleBuffer frame(int id) {
+        return new PickleBuffer(1).put(id);
+    }
+
+    private static PickleBuffer frame(int id, int size) {
+        PickleBuffer frame = frame(id);
+        for (int i = 1; i < size; i++) {
+            frame.put(0);
+        }
+        return frame;
+    }
+
+    private static class FlakyWriter implements FrameWriter {
+        final List<Integer> written = new ArrayList<Integer>();
+        boolean down;
+
+        @Override
+        public void write(PickleBuffer payload) throws Exception {
+            if (down) {
+                throw new IOException("Connection refused");
+            }
+            written.add((int) payload.toByteArray()[0] & 0xff);
+        }
+
+        @Override
+        public void endCycle() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.brightcove.metrics.reporting;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PointBufferTest {
+
+    private final byte[] first = "first".getBytes();
+    private final byte[] second = "second".getBytes();
+
+    @Test
+    public void dataPointsComeOutAsTheyWentIn() {
+        PointBuffer buffer = new PointBuffer(1 << 20);
+        for (int i = 0; i < 1000; i++) {
+            buffer.add(0, MetricTuple.ofInt(first, i, i));
+            buffer.add(1, MetricTuple.ofFloat(second, i, i / 2.0));
+        }
+        buffer.add(0, MetricTuple.ofObject(first, 1000, "value"));
+        assertEquals(2001, buffer.size());
+
+        MetricTuple tuple = new MetricTuple();
+        buffer.fill(1998, tuple);
+        assertSame(first, tuple.name);
+        assertEquals(999, tuple.timestamp);
+        assertEquals(MetricTuple.INT, tuple.type);
+        assertEquals(999, tuple.intValue);
+        assertEquals(0, buffer.shard(1998));
+
+        buffer.fill(1999, tuple);
+        assertSame(second, tuple.name);
+        assertEquals(MetricTuple.FLOAT, tuple.type);
+        assertEquals(499.5, tuple.floatValue, 0);
+        assertEquals(1, buffer.shard(1999));
+
+        buffer.fill(2000, tuple);
+        assertEquals(MetricTuple.OBJECT, tuple.type);
+        assertEquals("value", tuple.objectValue);
+    }
+
+    @Test
+    public void namesAreStoredOncePerSeries() {
+        PointBuffer buffer = new PointBuffer(1 << 20);
+        buffer.add(0, MetricTuple.ofInt(first, 0, 0));
+        long oneSeries = buffer.bytes();
+        buffer.add(0, MetricTuple.ofInt(first, 1, 1));
+        assertTrue(buffer.bytes() - oneSeries < oneSeries);
+    }
+
+    @Test
+    public void staysWithinItsBudget() {
+        PointBuffer buffer = new PointBuffer(200);
+        int added = 0;
+        while (buffer.add(0, MetricTuple.ofInt(first, added, added))) {
+            added++;
+        }
+        assertTrue(added > 1);
+        assertTrue(buffer.bytes() <= 200);
+
+        buffer.clear();
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.bytes());
+        assertTrue(buffer.add(0, MetricTuple.ofInt(second, 0, 0)));
+        // an empty buffer takes any data point
+        assertTrue(new PointBuffer(1).add(0, MetricTuple.ofInt(first, 0, 0)));
+    }
+}
@@ -0,0 +1,71 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.OutputStream;
+import java.util.Locale;
+
+import org.junit.Test;
+import org.python.core.PyList;
+import org.python.core.PyTuple;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.reporting.AbstractPollingReporter;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the reporter when it uses pickle protocol 2
+ */
+public class Protocol2GraphitePickleReporterTest extends GraphitePickleReporterTest {
+
+    @Override
+    protected AbstractPollingReporter createReporter(MetricsRegistry registry, OutputStream out, Clock clock) throws Exception {
+        final GraphitePickleReporter reporter = (GraphitePickleReporter) super.createReporter(registry, out, clock);
+        reporter.setPickleProtocol(PickleProtocol.PROTOCOL_2);
+        return reporter;
+    }
+
+    @Override
+    protected String formatValue(Object value) {
+        // floats arrive as floats rather than pre-formatted strings
+        if (value instanceof Double) {
+            return String.format(Locale.US, "%2.2f", value);
+        }
+        return super.formatValue(value);
+    }
+
+    @Test
+    public void encodesLongNamesAndLargeValues() throws Exception {
+        StringBuilder longName = new StringBuilder();
+        while (longName.length() < 300) {
+            longName.append("abcdefghij");
+        }
+        try {
+            registry.newCounter(new MetricName(Object.class, longName.toString())).inc(1L << 40);
+            registry.newCounter(new MetricName(Object.class, "negative")).dec(70000);
+            registry.newCounter(new MetricName(Object.class, "caf\u00e9")).inc(300);
+            reporter.run();
+
+            PyList result = unpickle(out.toString(GraphitePickleReporter.CHARSET_NAME));
+            assertEquals(3, result.size());
+            assertDatapoint(result, "java.lang.Object." + longName + ".count", "1099511627776");
+            assertDatapoint(result, "java.lang.Object.caf\u00e9.count", "300");
+            assertDatapoint(result, "java.lang.Object.negative.count", "-70000");
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    private void assertDatapoint(PyList result, String name, String value) {
+        String expectedName = getPrefix() == null ? name : getPrefix() + "." + name;
+        for (Object o : result) {
+            PyTuple datapoint = (PyTuple) o;
+            if (datapoint.get(0).toString().equals(expectedName)) {
+                assertEquals(value, ((PyTuple) datapoint.get(1)).get(1).toString());
+                return;
+            }
+        }
+        throw new AssertionError("Missing " + expectedName + " in " + result);
+    }
+}
@@ -0,0 +1,138 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngineManager;
+import javax.script.SimpleBindings;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.python.core.PyList;
+import org.python.core.PyTuple;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.reporting.SocketProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests of the metrics the reporter keeps about itself
+ */
+public class SelfMetricsGraphitePickleReporterTest {
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private SocketProvider provider;
+    private GraphitePickleReporter reporter;
+    private CompiledScript unpickleScript;
+
+    @Before
+    public void before() throws Exception {
+        unpickleScript = ((Compilable) new ScriptEngineManager().getEngineByName("python"))
+                .compile(GraphitePickleReporterTest.UNPICKLER_SCRIPT);
+        Socket socket = mock(Socket.class);
+        when(socket.getOutputStream()).thenReturn(out);
+        provider = mock(SocketProvider.class);
+        when(provider.get()).thenReturn(socket);
+
+        registry.newCounter(new MetricName(Object.class, "counter")).inc();
+        reporter = new GraphitePickleReporter(registry, "prefix", MetricPredicate.ALL, provider,
+                                              Clock.defaultClock(), 10);
+        reporter.printVMMetrics = false;
+        reporter.setSelfMetrics("self");
+    }
+
+    @Test
+    public void reportsThePreviousCycle() throws Exception {
+        try {
+            Map<String, String> first = report();
+            assertEquals("1", first.get("prefix.java.lang.Object.counter.count"));
+            assertEquals("0", first.get("prefix.self.reporter.run.count"));
+            assertEquals("0", first.get("prefix.self.reporter.write.count"));
+            assertEquals("0", first.get("prefix.self.reporter.points.value"));
+            int firstBytes = out.size();
+
+            Map<String, String> second = report();
+            assertEquals("1", second.get("prefix.self.reporter.run.count"));
+            assertEquals(String.valueOf(first.size()), second.get("prefix.self.reporter.points.value"));
+            assertEquals(String.valueOf(firstBytes), second.get("prefix.self.reporter.bytes.value"));
+            assertEquals(String.valueOf((first.size() + 9) / 10), second.get("prefix.self.reporter.batches.value"));
+            assertEquals(second.get("prefix.self.reporter.batches.value"), second.get("prefix.self.reporter.write.count"));
+            assertEquals("0", second.get("prefix.self.reporter.connection-failures.count"));
+        } finally {
+            reporter.shutdown();
+        }
+        assertEquals(1, registry.allMetrics().size());
+    }
+
+    @Test
+    public void countsFailures() throws Exception {
+        try {
+            when(provider.get()).thenThrow(new IOException("Connection refused"));
+            reporter.run();
+            int points = ((Long) ((Gauge<?>) registry.allMetrics()
+                    .get(new MetricName("self", "reporter", "points"))).value()).intValue();
+
+            assertEquals((points + 9) / 10, count("connection-failures"));
+            assertEquals(points, count("dropped-points"));
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    @Test
+    public void countsFailuresOnTheSendQueue() throws Exception {
+        reporter.setAsyncSend(4, OverflowPolicy.BLOCK);
+        when(provider.get()).thenThrow(new IOException("Connection refused"));
+        Counter dropped;
+        int points;
+        try {
+            reporter.run();
+            dropped = (Counter) registry.allMetrics().get(new MetricName("self", "reporter", "dropped-points"));
+            points = ((Long) ((Gauge<?>) registry.allMetrics()
+                    .get(new MetricName("self", "reporter", "points"))).value()).intValue();
+        } finally {
+            // waits for the sender to get through the queue
+            reporter.shutdown();
+        }
+        assertEquals(points, dropped.count());
+    }
+
+    private long count(String name) {
+        return ((Counter) registry.allMetrics()
+                .get(new MetricName("self", "reporter", name))).count();
+    }
+
+    private Map<String, String> report() throws Exception {
+        out.reset();
+        reporter.run();
+        String payload = out.toString(GraphitePickleReporter.CHARSET_NAME);
+        Map<String, String> values = new HashMap<String, String>();
+        int nextIndex = 0;
+        while (nextIndex < payload.length()) {
+            Bindings bindings = new SimpleBindings();
+            bindings.put("payload", payload.substring(nextIndex));
+            unpickleScript.eval(bindings);
+            for (Object datapoint : (PyList) bindings.get("metrics")) {
+                PyTuple tuple = (PyTuple) datapoint;
+                values.put(tuple.get(0).toString(), ((PyTuple) tuple.get(1)).get(1).toString());
+            }
+            nextIndex += (Integer) bindings.get("batchLength");
+        }
+        return values;
+    }
+}
@@ -0,0 +1,94 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.ByteArrayOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngineManager;
+import javax.script.SimpleBindings;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.python.core.PyList;
+import org.python.core.PyTuple;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.reporting.SocketProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests of the reporter when it sends straight to several carbon-caches
+ */
+public class ShardedGraphitePickleReporterTest {
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final List<ByteArrayOutputStream> outputs = new ArrayList<ByteArrayOutputStream>();
+    private final List<CarbonDestination> destinations = new ArrayList<CarbonDestination>();
+    private CompiledScript unpickleScript;
+
+    @Before
+    public void before() throws Exception {
+        unpickleScript = ((Compilable) new ScriptEngineManager().getEngineByName("python"))
+                .compile(GraphitePickleReporterTest.UNPICKLER_SCRIPT);
+        for (String destination : Arrays.asList("10.0.0.1:2004:a", "10.0.0.1:2104:b", "10.0.0.2:2004")) {
+            CarbonDestination parsed = CarbonDestination.parse(destination);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Socket socket = mock(Socket.class);
+            when(socket.getOutputStream()).thenReturn(out);
+            SocketProvider provider = mock(SocketProvider.class);
+            when(provider.get()).thenReturn(socket);
+
+            outputs.add(out);
+            destinations.add(new CarbonDestination(parsed.getHost(), parsed.getPort(), parsed.getInstance(), provider));
+        }
+    }
+
+    @Test
+    public void sendsEachMetricToItsCarbonCache() throws Exception {
+        for (int i = 0; i < 12; i++) {
+            registry.newCounter(new MetricName(Object.class, "counter" + i)).inc(i);
+        }
+
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, "prefix", MetricPredicate.ALL,
+                destinations.get(0).getSocketProvider(), Clock.defaultClock(), 2);
+        reporter.printVMMetrics = false;
+        reporter.setDestinations(destinations);
+        reporter.run();
+        reporter.shutdown();
+
+        // placements according to carbon's consistent hash ring, in registry order
+        assertEquals(Arrays.asList("counter5", "counter8", "counter9"), received(0));
+        assertEquals(Arrays.asList("counter0", "counter1", "counter10", "counter11", "counter3", "counter7"),
+                     received(1));
+        assertEquals(Arrays.asList("counter2", "counter4", "counter6"), received(2));
+        assertEquals(0, reporter.getDroppedBatches());
+    }
+
+    private List<String> received(int destination) throws Exception {
+        String payload = outputs.get(destination).toString(GraphitePickleReporter.CHARSET_NAME);
+        List<String> names = new ArrayList<String>();
+        int nextIndex = 0;
+        while (nextIndex < payload.length()) {
+            Bindings bindings = new SimpleBindings();
+            bindings.put("payload", payload.substring(nextIndex));
+            unpickleScript.eval(bindings);
+            for (Object datapoint : (PyList) bindings.get("metrics")) {
+                String name = ((PyTuple) datapoint).get(0).toString();
+                names.add(name.substring("prefix.java.lang.Object.".length(), name.length() - ".count".length()));
+            }
+            nextIndex += (Integer) bindings.get("batchLength");
+        }
+        return names;
+    }
+}
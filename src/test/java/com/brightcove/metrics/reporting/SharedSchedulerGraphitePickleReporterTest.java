@@ -0,0 +1,138 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.ByteArrayOutputStream;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.reporting.SocketProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests of reporters that run on a scheduler and send on an executor they are given
+ */
+public class SharedSchedulerGraphitePickleReporterTest {
+
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+
+    @After
+    public void after() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void reportersShareTheScheduler() throws Exception {
+        SocketProvider first = provider();
+        SocketProvider second = provider();
+        GraphitePickleReporter one = reporter(first);
+        GraphitePickleReporter other = reporter(second);
+        one.start(100, TimeUnit.MILLISECONDS);
+        other.start(100, TimeUnit.MILLISECONDS);
+        try {
+            verify(first, timeout(2000).atLeast(3)).get();
+            verify(second, timeout(2000).atLeast(3)).get();
+        } finally {
+            one.shutdown(1, TimeUnit.SECONDS);
+            other.shutdown(1, TimeUnit.SECONDS);
+        }
+        // the scheduler is the caller's, and only the reporters' runs were cancelled
+        assertFalse(scheduler.isShutdown());
+        assertNoMoreRuns(first);
+        assertNoMoreRuns(second);
+        assertEquals(0, threadsNamed("graphite-pickle-reporter"));
+    }
+
+    @Test
+    public void alignedRunsStopOnShutdown() throws Exception {
+        SocketProvider provider = provider();
+        GraphitePickleReporter reporter = reporter(provider);
+        reporter.setAlignedSchedule(0, TimeUnit.MILLISECONDS);
+        reporter.start(100, TimeUnit.MILLISECONDS);
+        try {
+            verify(provider, timeout(2000).atLeast(2)).get();
+        } finally {
+            reporter.shutdown(1, TimeUnit.SECONDS);
+        }
+        assertFalse(scheduler.isShutdown());
+        assertNoMoreRuns(provider);
+    }
+
+    @Test
+    public void sendsOnTheSendExecutor() throws Exception {
+        final AtomicInteger tasks = new AtomicInteger();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.incrementAndGet();
+                scheduler.execute(command);
+            }
+        };
+        SocketProvider provider = provider();
+        GraphitePickleReporter reporter = reporter(provider);
+        reporter.setPersistentConnection(true);
+        reporter.setAsyncSend(4, OverflowPolicy.BLOCK);
+        reporter.setSendExecutor(executor);
+        int senders = threadsNamed("graphite-pickle-sender");
+        try {
+            reporter.run();
+            assertEquals(senders, threadsNamed("graphite-pickle-sender"));
+        } finally {
+            reporter.shutdown();
+        }
+        verify(provider, atLeast(1)).get();
+        assertTrue(tasks.get() > 0);
+    }
+
+    private GraphitePickleReporter reporter(SocketProvider provider) throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.newCounter(new MetricName(Object.class, "counter")).inc();
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, "prefix", MetricPredicate.ALL,
+                                                                     provider, Clock.defaultClock(), 100);
+        reporter.printVMMetrics = false;
+        reporter.setScheduler(scheduler);
+        return reporter;
+    }
+
+    private static SocketProvider provider() throws Exception {
+        Socket socket = mock(Socket.class);
+        when(socket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        SocketProvider provider = mock(SocketProvider.class);
+        when(provider.get()).thenReturn(socket);
+        return provider;
+    }
+
+    private static void assertNoMoreRuns(SocketProvider provider) throws InterruptedException {
+        reset(provider);
+        Thread.sleep(300);
+        verifyZeroInteractions(provider);
+    }
+
+    private static int threadsNamed(String prefix) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,150 @@
+package com.brightcove.metrics.reporting;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * Drives the reporter against a fake carbon with a large registry and prints what each
+ * cycle achieved. It only runs when asked to, for example:
+ *
+ * <pre>
+ * mvn test -Dtest=SoakGraphitePickleReporterTest -Dsoak.metrics=100000 -Dsoak.cycles=20 \
+ *          -Dsoak.persistent=true -Dsoak.protocol=PROTOCOL_2 -Dsoak.latency=5
+ * </pre>
+ *
+ * Properties, all prefixed with {@code soak.}:
+ * <ul>
+ *     <li>metrics (10000): metrics in the registry, 70% counters and 10% each of meters,
+ *     histograms and timers</li>
+ *     <li>cycles (10) and period (1000): how many cycles to run, and how many milliseconds
+ *     apart</li>
+ *     <li>batchSize (100), protocol (PROTOCOL_0), persistent (false), memoize (false),
+ *     async (0, the send queue capacity) and parallelism (1): the reporter's settings</li>
+ *     <li>latency (0), bytesPerSecond (0) and resetAfterFrames (0): faults injected into
+ *     carbon, see {@link FakeCarbonReceiver}</li>
+ * </ul>
+ */
+public class SoakGraphitePickleReporterTest {
+
+    @Test
+    public void soak() throws Exception {
+        Assume.assumeTrue(System.getProperty("soak.metrics") != null || System.getProperty("soak.cycles") != null);
+
+        int metrics = Integer.getInteger("soak.metrics", 10000);
+        int cycles = Integer.getInteger("soak.cycles", 10);
+        long period = Long.getLong("soak.period", 1000);
+
+        MetricsRegistry registry = new MetricsRegistry();
+        long pointsPerCycle = populate(registry, metrics);
+
+        FakeCarbonReceiver carbon = new FakeCarbonReceiver();
+        carbon.setRecording(false);
+        carbon.setFrameLatency(Long.getLong("soak.latency", 0), TimeUnit.MILLISECONDS);
+        carbon.setBytesPerSecond(Integer.getInteger("soak.bytesPerSecond", 0));
+        carbon.setResetAfterFrames(Integer.getInteger("soak.resetAfterFrames", 0));
+
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, "soak", MetricPredicate.ALL,
+                carbon.socketProvider(), Clock.defaultClock(), Integer.getInteger("soak.batchSize", 100));
+        reporter.printVMMetrics = false;
+        reporter.setPickleProtocol(PickleProtocol.valueOf(System.getProperty("soak.protocol", "PROTOCOL_0")));
+        reporter.setPersistentConnection(Boolean.getBoolean("soak.persistent"));
+        reporter.setMemoize(Boolean.getBoolean("soak.memoize"));
+        reporter.setParallelism(Integer.getInteger("soak.parallelism", 1));
+        int async = Integer.getInteger("soak.async", 0);
+        if (async > 0) {
+            reporter.setAsyncSend(async, OverflowPolicy.DROP_OLDEST);
+        }
+
+        System.out.printf("%d metrics, %d data points a cycle%n", metrics, pointsPerCycle);
+        System.out.printf("%5s %8s %8s %12s %12s %6s %8s%n",
+                          "cycle", "run ms", "lag ms", "points/s", "bytes/s", "conns", "missing");
+        long expected = 0;
+        long totalNanos = 0;
+        try {
+            for (int cycle = 1; cycle <= cycles; cycle++) {
+                long points = carbon.getPoints();
+                long bytes = carbon.getBytes();
+                long connections = carbon.getConnections();
+                expected += pointsPerCycle;
+
+                long start = System.nanoTime();
+                reporter.run();
+                long run = System.nanoTime() - start;
+                // everything this cycle sent has arrived, or it is time for the next one
+                boolean complete = carbon.awaitPoints(expected, Math.max(1, period - TimeUnit.NANOSECONDS.toMillis(run)),
+                                                      TimeUnit.MILLISECONDS);
+                long lag = System.nanoTime() - start;
+                totalNanos += lag;
+
+                long received = carbon.getPoints() - points;
+                System.out.printf("%5d %8d %8s %12d %12d %6d %8d%n", cycle,
+                                  TimeUnit.NANOSECONDS.toMillis(run),
+                                  complete ? String.valueOf(TimeUnit.NANOSECONDS.toMillis(lag)) : "-",
+                                  received * TimeUnit.SECONDS.toNanos(1) / lag,
+                                  (carbon.getBytes() - bytes) * TimeUnit.SECONDS.toNanos(1) / lag,
+                                  carbon.getConnections() - connections,
+                                  Math.max(0, expected - carbon.getPoints()));
+                // lost points are not coming back; don't wait for them in the next cycle
+                expected = Math.min(expected, carbon.getPoints());
+
+                long sleep = period - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if (sleep > 0) {
+                    Thread.sleep(sleep);
+                }
+            }
+        } finally {
+            reporter.shutdown();
+            carbon.close();
+        }
+        System.out.printf("%d points in %d frames, %d bytes over %d connections; %d points/s while sending%n",
+                          carbon.getPoints(), carbon.getFrames(), carbon.getBytes(), carbon.getConnections(),
+                          carbon.getPoints() * TimeUnit.SECONDS.toNanos(1) / Math.max(1, totalNanos));
+    }
+
+    /**
+     * @return how many data points the registry reports each cycle
+     */
+    private static long populate(MetricsRegistry registry, int size) {
+        Random random = new Random(42);
+        long points = 0;
+        for (int i = 0; i < size; i++) {
+            // spread the metrics over groups like a real application would
+            MetricName name = new MetricName("com.example.service" + (i % 50), "Type" + (i % 7), "metric" + i);
+            switch (i % 10) {
+                case 0:
+                    registry.newMeter(name, "requests", TimeUnit.SECONDS).mark(random.nextInt(1000));
+                    points += 5;
+                    break;
+                case 1:
+                    Histogram histogram = registry.newHistogram(name, true);
+                    for (int j = 0; j < 100; j++) {
+                        histogram.update(random.nextInt(10000));
+                    }
+                    points += 10;
+                    break;
+                case 2:
+                    Timer timer = registry.newTimer(name, TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+                    for (int j = 0; j < 100; j++) {
+                        timer.update(random.nextInt(10000), TimeUnit.MICROSECONDS);
+                    }
+                    points += 15;
+                    break;
+                default:
+                    registry.newCounter(name).inc(random.nextInt(1000));
+                    points += 1;
+                    break;
+            }
+        }
+        return points;
+    }
+}
@@ -0,0 +1,156 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.reporting.AbstractPollingReporter;
+import com.yammer.metrics.reporting.SocketProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+
+/**
+ * Tests of the reporter when it skips data points that have not changed
+ */
+public class SuppressUnchangedGraphitePickleReporterTest extends GraphitePickleReporterTest {
+
+    private long time = 5678;
+    private final Clock movingClock = new Clock() {
+        @Override
+        public long tick() {
+            return time * 1000000;
+        }
+
+        @Override
+        public long time() {
+            return time;
+        }
+    };
+
+    @Override
+    protected AbstractPollingReporter createReporter(MetricsRegistry registry, OutputStream out, Clock clock) throws Exception {
+        final GraphitePickleReporter reporter = (GraphitePickleReporter) super.createReporter(registry, out, clock);
+        reporter.setSuppressUnchanged(60, TimeUnit.SECONDS);
+        return reporter;
+    }
+
+    @Test
+    public void skipsUnchangedValuesUntilHeartbeat() throws Exception {
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, getPrefix(), MetricPredicate.ALL,
+                                                                     provider, movingClock, 2);
+        reporter.printVMMetrics = false;
+        reporter.setSuppressUnchanged(60, TimeUnit.SECONDS);
+        try {
+            Counter idle = registry.newCounter(new MetricName(Object.class, "idle"));
+            Counter busy = registry.newCounter(new MetricName(Object.class, "busy"));
+            idle.inc();
+
+            assertEquals(2, reportedPoints(reporter));
+
+            time += 10000;
+            busy.inc();
+            assertEquals(1, reportedPoints(reporter));
+            assertEquals(1, reporter.getSuppressedPoints());
+
+            time += 10000;
+            assertEquals(0, reportedPoints(reporter));
+
+            // a minute after they were last sent both are sent again
+            time += 40000;
+            assertEquals(1, reportedPoints(reporter));
+            time += 10000;
+            assertEquals(1, reportedPoints(reporter));
+            assertEquals(5, reporter.getSuppressedPoints());
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    @Test
+    public void resendsValuesWhoseBatchFailed() throws Exception {
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, getPrefix(), MetricPredicate.ALL,
+                                                                     provider, movingClock, 2);
+        reporter.printVMMetrics = false;
+        reporter.setSuppressUnchanged(60, TimeUnit.SECONDS);
+        try {
+            registry.newCounter(new MetricName(Object.class, "idle")).inc();
+            doThrow(new IOException("Connection refused")).when(provider).get();
+            assertEquals(0, reportedPoints(reporter));
+
+            // carbon never got it, so it is sent although it has not changed
+            doReturn(socket).when(provider).get();
+            time += 10000;
+            assertEquals(1, reportedPoints(reporter));
+            time += 10000;
+            assertEquals(0, reportedPoints(reporter));
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    @Test
+    public void resendsValuesThatTheSendQueueDropped() throws Exception {
+        FakeCarbonReceiver carbon = new FakeCarbonReceiver();
+        final SocketProvider carbonProvider = carbon.socketProvider();
+        final CountDownLatch stalled = new CountDownLatch(1);
+        SocketProvider stallingProvider = new SocketProvider() {
+            @Override
+            public Socket get() throws Exception {
+                // holds up the sender until the queue has overflowed
+                stalled.await();
+                return carbonProvider.get();
+            }
+        };
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, getPrefix(), MetricPredicate.ALL,
+                                                                     stallingProvider, movingClock, 1);
+        reporter.printVMMetrics = false;
+        reporter.setSuppressUnchanged(60, TimeUnit.SECONDS);
+        reporter.setAsyncSend(1, OverflowPolicy.DROP_NEWEST);
+        try {
+            for (int i = 0; i < 4; i++) {
+                registry.newCounter(new MetricName(Object.class, "idle" + i)).inc();
+            }
+            reporter.run();
+            long dropped = reporter.getDroppedBatches();
+            assertTrue(dropped > 0);
+            stalled.countDown();
+            assertTrue(carbon.awaitPoints(4 - dropped, 5, TimeUnit.SECONDS));
+
+            // carbon never got the dropped ones, so they are sent although they have not changed;
+            // the queue may drop some again, but never for long enough to reach the heartbeat
+            Set<String> names = new HashSet<String>();
+            for (int cycle = 0; cycle < 20 && names.size() < 4; cycle++) {
+                time += 1000;
+                reporter.run();
+                Thread.sleep(50);
+                for (FakeCarbonReceiver.DataPoint point : carbon.getReceived()) {
+                    names.add(point.name);
+                }
+            }
+            assertEquals(4, names.size());
+        } finally {
+            reporter.shutdown();
+            carbon.close();
+        }
+    }
+
+    private int reportedPoints(GraphitePickleReporter reporter) throws Exception {
+        out.reset();
+        reporter.run();
+        return unpickle(out.toString(GraphitePickleReporter.CHARSET_NAME)).size();
+    }
+}
@@ -0,0 +1,151 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.ByteArrayOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngineManager;
+import javax.script.SimpleBindings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.python.core.PyList;
+import org.python.core.PyTuple;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.reporting.SocketProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests of the reporter when some metrics are reported more often than others
+ */
+public class TieredGraphitePickleReporterTest {
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private SocketProvider provider;
+    private GraphitePickleReporter reporter;
+    private CompiledScript unpickleScript;
+
+    @Before
+    public void before() throws Exception {
+        unpickleScript = ((Compilable) new ScriptEngineManager().getEngineByName("python"))
+                .compile(GraphitePickleReporterTest.UNPICKLER_SCRIPT);
+
+        Socket socket = mock(Socket.class);
+        when(socket.getOutputStream()).thenReturn(out);
+        provider = mock(SocketProvider.class);
+        when(provider.get()).thenReturn(socket);
+
+        registry.newCounter(new MetricName(Object.class, "fast")).inc();
+        registry.newCounter(new MetricName(Object.class, "medium")).inc();
+        registry.newCounter(new MetricName(Object.class, "slow")).inc();
+
+        reporter = reporter(MetricPredicate.ALL);
+    }
+
+    @After
+    public void after() {
+        reporter.shutdown();
+    }
+
+    @Test
+    public void eachCycleOnlyReportsTheTiersThatAreDue() throws Exception {
+        // ticks every 10 seconds, the default tier every 6th
+        reporter.start(1, TimeUnit.MINUTES);
+
+        assertEquals(Arrays.asList("fast", "medium", "slow"), report());
+        assertEquals(Arrays.asList("fast"), report());
+        assertEquals(Arrays.asList("fast", "medium"), report());
+        assertEquals(Arrays.asList("fast"), report());
+        assertEquals(Arrays.asList("fast", "medium"), report());
+        assertEquals(Arrays.asList("fast"), report());
+        assertEquals(Arrays.asList("fast", "medium", "slow"), report());
+    }
+
+    @Test
+    public void metricsAreFiledAsTheyComeAndGo() throws Exception {
+        reporter.start(1, TimeUnit.MINUTES);
+        report();
+
+        registry.newCounter(new MetricName(Object.class, "fast", "new")).inc();
+        registry.removeMetric(new MetricName(Object.class, "fast"));
+        assertEquals(Arrays.asList("new.fast"), report());
+        assertEquals(Arrays.asList("medium", "new.fast"), report());
+    }
+
+    @Test
+    public void tiersOnlyHoldMetricsThatTheReportersPredicateMatches() throws Exception {
+        registry.newCounter(new MetricName(Object.class, "fast", "hidden")).inc();
+        registry.newCounter(new MetricName(Object.class, "slow", "hidden")).inc();
+        reporter.shutdown();
+        reporter = reporter(new MetricPredicate() {
+            @Override
+            public boolean matches(MetricName name, Metric metric) {
+                return !"hidden".equals(name.getScope());
+            }
+        });
+        reporter.start(1, TimeUnit.MINUTES);
+
+        assertEquals(Arrays.asList("fast", "medium", "slow"), report());
+        assertEquals(Arrays.asList("fast"), report());
+    }
+
+    /**
+     * A reporter with a fast and a medium tier, and a default tier of a minute.
+     */
+    private GraphitePickleReporter reporter(MetricPredicate predicate) throws Exception {
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, "prefix", predicate,
+                                                                     provider, Clock.defaultClock(), 100);
+        reporter.printVMMetrics = false;
+        reporter.addTier(named("fast"), 10, TimeUnit.SECONDS);
+        reporter.addTier(named("medium"), 20, TimeUnit.SECONDS);
+        return reporter;
+    }
+
+    private static MetricPredicate named(final String name) {
+        return new MetricPredicate() {
+            @Override
+            public boolean matches(MetricName metricName, Metric metric) {
+                return metricName.getName().equals(name);
+            }
+        };
+    }
+
+    /**
+     * Run a cycle and collect the names of the counters it reported.
+     */
+    private List<String> report() throws Exception {
+        out.reset();
+        reporter.run();
+
+        List<String> names = new ArrayList<String>();
+        String payload = out.toString(GraphitePickleReporter.CHARSET_NAME);
+        if (payload.length() > 0) {
+            Bindings bindings = new SimpleBindings();
+            bindings.put("payload", payload);
+            unpickleScript.eval(bindings);
+            for (Object datapoint : (PyList) bindings.get("metrics")) {
+                String name = ((PyTuple) datapoint).get(0).toString();
+                names.add(name.substring("prefix.java.lang.Object.".length(), name.length() - ".count".length()));
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+}
@@ -0,0 +1,122 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.ByteArrayOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngineManager;
+import javax.script.SimpleBindings;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.python.core.PyList;
+import org.python.core.PyTuple;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.reporting.SocketProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests of the reporter when only some values are reported
+ */
+public class ValueNamesGraphitePickleReporterTest {
+
+    private final SpyingRegistry registry = new SpyingRegistry();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private GraphitePickleReporter reporter;
+    private CompiledScript unpickleScript;
+    private Histogram histogram;
+
+    @Before
+    public void before() throws Exception {
+        unpickleScript = ((Compilable) new ScriptEngineManager().getEngineByName("python"))
+                .compile(GraphitePickleReporterTest.UNPICKLER_SCRIPT);
+
+        Socket socket = mock(Socket.class);
+        when(socket.getOutputStream()).thenReturn(out);
+        SocketProvider provider = mock(SocketProvider.class);
+        when(provider.get()).thenReturn(socket);
+
+        registry.newCounter(new MetricName(Object.class, "counter")).inc();
+        registry.newTimer(new MetricName(Object.class, "timer"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS)
+                .update(1, TimeUnit.MILLISECONDS);
+        histogram = registry.addSpy(new MetricName(Object.class, "histogram"),
+                                    new MetricsRegistry().newHistogram(Object.class, "histogram"));
+        histogram.update(1);
+
+        reporter = new GraphitePickleReporter(registry, "prefix", MetricPredicate.ALL,
+                                              provider, Clock.defaultClock(), 100);
+        reporter.printVMMetrics = false;
+    }
+
+    @Test
+    public void reportsOnlyTheSelectedValues() throws Exception {
+        reporter.setValueNames(EnumSet.of(ValueName.COUNT, ValueName.P99));
+
+        assertEquals(Arrays.asList("counter.count", "histogram.99percentile", "timer.count", "timer.99percentile"),
+                     report());
+    }
+
+    @Test
+    public void metricsGetTheValuesOfTheFirstPredicateTheyMatch() throws Exception {
+        reporter.setValueNames(new MetricPredicate() {
+            @Override
+            public boolean matches(MetricName name, Metric metric) {
+                return metric instanceof Histogram;
+            }
+        }, EnumSet.of(ValueName.MIN, ValueName.MAX));
+        reporter.setValueNames(MetricPredicate.ALL, EnumSet.of(ValueName.ONE_MINUTE_RATE));
+        reporter.setValueNames(EnumSet.noneOf(ValueName.class));
+
+        assertEquals(Arrays.asList("histogram.min", "histogram.max", "timer.1MinuteRate"), report());
+        // no percentiles, so the sample is never sorted
+        verify(histogram, never()).getSnapshot();
+    }
+
+    /**
+     * Run a cycle and collect the names it reported, less the prefix.
+     */
+    private List<String> report() throws Exception {
+        try {
+            reporter.run();
+        } finally {
+            reporter.shutdown();
+        }
+
+        Bindings bindings = new SimpleBindings();
+        bindings.put("payload", out.toString(GraphitePickleReporter.CHARSET_NAME));
+        unpickleScript.eval(bindings);
+        List<String> names = new ArrayList<String>();
+        for (Object datapoint : (PyList) bindings.get("metrics")) {
+            names.add(((PyTuple) datapoint).get(0).toString().substring("prefix.java.lang.Object.".length()));
+        }
+        return names;
+    }
+
+    /**
+     * Registers spies, to see which statistics are computed.
+     */
+    private static class SpyingRegistry extends MetricsRegistry {
+        <T extends Metric> T addSpy(MetricName name, T metric) {
+            return getOrAdd(name, spy(metric));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.brightcove.metrics.reporting;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.VirtualMachineMetrics;
+import com.yammer.metrics.reporting.GraphiteReporter;
+import com.yammer.metrics.reporting.SocketProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests of the VM metrics, their groups and their period
+ */
+public class VmMetricsGraphitePickleReporterTest {
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final Clock clock = mock(Clock.class);
+    private SocketProvider provider;
+
+    @Before
+    public void before() throws Exception {
+        Socket socket = mock(Socket.class);
+        when(socket.getOutputStream()).thenReturn(out);
+        provider = mock(SocketProvider.class);
+        when(provider.get()).thenReturn(socket);
+    }
+
+    @Test
+    public void namesAreThoseOfGraphiteReporter() throws Exception {
+        GraphiteReporter plain = new GraphiteReporter(registry, "prefix", MetricPredicate.ALL, provider, clock);
+        plain.run();
+        Set<String> expected = new TreeSet<String>();
+        for (String line : out.toString("UTF-8").split("\n")) {
+            expected.add(line.split(" ")[0]);
+        }
+        out.reset();
+
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, "prefix", MetricPredicate.ALL,
+                                                                     provider, clock, 10000);
+        try {
+            reporter.run();
+            Set<String> names = names();
+            // on newer JVMs GraphiteReporter stops at fd_usage, whose reflection fails
+            assertTrue(names.containsAll(expected));
+            assertTrue(names.contains("prefix.jvm.fd_usage"));
+            assertTrue(names.contains("prefix.jvm.thread-states.runnable"));
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                assertTrue(names.contains("prefix.jvm.gc." + collector.getName().replace(' ', '-') + ".runs"));
+            }
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    @Test
+    public void groupsThatAreLeftOutAreNotSent() throws Exception {
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, "prefix", MetricPredicate.ALL,
+                                                                     provider, clock, 10000);
+        reporter.setVmMetricGroups(EnumSet.of(VmMetricGroup.MEMORY, VmMetricGroup.UPTIME));
+        try {
+            reporter.run();
+            assertEquals(new HashSet<String>(Arrays.asList("prefix.jvm.memory.heap_usage",
+                                                           "prefix.jvm.memory.non_heap_usage",
+                                                           "prefix.jvm.uptime")), names());
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    @Test
+    public void vmMetricsHaveTheirOwnPeriod() throws Exception {
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, "prefix", MetricPredicate.ALL,
+                                                                     provider, clock, 10000);
+        reporter.setVmMetricsPeriod(30, TimeUnit.SECONDS);
+        try {
+            reporter.start(10, TimeUnit.SECONDS);
+            StringBuilder sent = new StringBuilder();
+            for (long time = 0; time <= 60000; time += 10000) {
+                when(clock.time()).thenReturn(time);
+                out.reset();
+                reporter.run();
+                sent.append(names().isEmpty() ? '-' : 'x');
+            }
+            assertEquals("x--x--x", sent.toString());
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    @Test
+    public void readsAVirtualMachineMetricsThatIsGiven() throws Exception {
+        VirtualMachineMetrics vm = mock(VirtualMachineMetrics.class);
+        when(vm.heapUsage()).thenReturn(0.25);
+        GraphitePickleReporter reporter = new GraphitePickleReporter(registry, "prefix", MetricPredicate.ALL,
+                                                                     provider, clock, vm, 10000);
+        try {
+            reporter.run();
+            verify(vm).heapUsage();
+            Set<String> names = names();
+            assertTrue(names.contains("prefix.jvm.memory.heap_usage"));
+            // the mock has no memory pools or collectors, unlike the platform
+            for (String name : names) {
+                assertTrue(name, !name.startsWith("prefix.jvm.memory.memory_pool_usages"));
+            }
+        } finally {
+            reporter.shutdown();
+        }
+    }
+
+    /**
+     * @return the names of the data points written since {@code out} was last reset
+     */
+    private Set<String> names() {
+        Set<String> names = new TreeSet<String>();
+        byte[] written = out.toByteArray();
+        int pos = 0;
+        while (pos < written.length) {
+            int length = ((written[pos] & 0xFF) << 24) | ((written[pos + 1] & 0xFF) << 16)
+                    | ((written[pos + 2] & 0xFF) << 8) | (written[pos + 3] & 0xFF);
+            byte[] frame = Arrays.copyOfRange(written, pos + 4, pos + 4 + length);
+            for (FakeCarbonReceiver.DataPoint point : FakeCarbonReceiver.decode(frame)) {
+                names.add(point.name);
+            }
+            pos += 4 + length;
+        }
+        assertTrue(pos == written.length);
+        return names;
+    }
+}